@@ -0,0 +1,34 @@
+package org.example.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Scratch directories for benchmarks that touch the disk
+final class BenchFiles {
+
+    private BenchFiles() {
+    }
+
+    static Path tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory("mail-bench-" + prefix);
+    }
+
+    static void delete(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.example.bench;
+
+import org.example.Frame;
+import org.example.Opcode;
+import org.example.Server;
+import org.example.ServerConfig;
+import org.example.ShardMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A cluster of N servers on loopback, all in this process, driven by one client per benchmark
+// thread. Clients are spread round-robin over the nodes as their entry node. viaAnyNode sends
+// every request to the entry node, so about (N-1)/N of them take the extra forwarding hop;
+// viaOwner asks the owner directly, as a client that knows the node list would. With every
+// node on one machine the nodes share its cores, so this measures what forwarding costs
+// rather than how far more machines scale.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Threads(4)
+@Fork(1)
+public class ClusterThroughputBenchmark {
+
+    private static final int REPLY_TIMEOUT_MS = 1000;
+
+    @Param({"1", "2", "4"})
+    public int nodes;
+
+    private final List<Path> roots = new ArrayList<>();
+    private final List<Server> servers = new ArrayList<>();
+    private final List<InetSocketAddress> addresses = new ArrayList<>();
+    private ShardMap map;
+    private final AtomicInteger clients = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Every node needs the whole list before it starts, so the ports are picked up front
+        StringJoiner cluster = new StringJoiner(",");
+        for (int i = 0; i < nodes; i++) {
+            try (DatagramSocket probe = new DatagramSocket(0)) {
+                cluster.add("127.0.0.1:" + probe.getLocalPort());
+            }
+        }
+        map = ShardMap.parse(cluster.toString());
+        for (InetSocketAddress node : map.nodes()) {
+            Path root = BenchFiles.tempDir("cluster");
+            Properties properties = new Properties();
+            properties.setProperty("mail.bind", "127.0.0.1");
+            properties.setProperty("mail.port", String.valueOf(node.getPort()));
+            properties.setProperty("mail.root", root.toString());
+            properties.setProperty("mail.fsync", "none");
+            properties.setProperty("mail.headless", "true");
+            properties.setProperty("mail.jmx", "false");
+            properties.setProperty("mail.cluster", cluster.toString());
+            properties.setProperty("mail.node", "127.0.0.1:" + node.getPort());
+            properties.setProperty("mail.clusterSecret", "bench");
+            Server server = new Server(new ServerConfig(properties));
+            roots.add(root);
+            servers.add(server);
+            addresses.add(server.start());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Server server : servers) {
+            server.close();
+        }
+        for (Path root : roots) {
+            BenchFiles.delete(root);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        DatagramSocket socket;
+        InetSocketAddress entry;
+        InetSocketAddress owner;
+        String account;
+        final ByteBuffer send = ByteBuffer.allocate(65507);
+        final byte[] receive = new byte[65507];
+        final Frame reply = new Frame();
+        long nextId = 1;
+        long timeouts;
+
+        @Setup(Level.Trial)
+        public void setUp(ClusterThroughputBenchmark benchmark) throws IOException {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+            int index = benchmark.clients.getAndIncrement();
+            entry = benchmark.addresses.get(index % benchmark.addresses.size());
+            account = "client" + index;
+            owner = benchmark.map.owner(account);
+            request(entry, Opcode.CREATE_ACCOUNT, 0, null, account);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            socket.close();
+        }
+
+        // Sends one request and waits for its reply, which comes from the owner whichever node was asked
+        Frame request(InetSocketAddress server, Opcode opcode, long seq, ByteBuffer payload, String... fields) throws IOException {
+            long id = nextId++;
+            send.clear();
+            Frame.encode(send, opcode, id, seq, fields);
+            if (payload != null) {
+                send.put(payload);
+            }
+            socket.send(new DatagramPacket(send.array(), send.position(), server));
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(receive, receive.length);
+                    socket.receive(packet);
+                    ByteBuffer data = ByteBuffer.wrap(receive, 0, packet.getLength());
+                    if (Frame.isFramed(data) && reply.decode(data).id() == id) {
+                        return reply;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                timeouts++;
+                return null;
+            }
+        }
+    }
+
+    @Benchmark
+    public Frame viaAnyNode(Client client) throws IOException {
+        return client.request(client.entry, Opcode.LIST, 0, emptyPage(), client.account, "");
+    }
+
+    @Benchmark
+    public Frame viaOwner(Client client) throws IOException {
+        return client.request(client.owner, Opcode.LIST, 0, emptyPage(), client.account, "");
+    }
+
+    private static ByteBuffer emptyPage() {
+        ByteBuffer page = ByteBuffer.allocate(2);
+        Frame.putVarint(page, 0);
+        return page.flip();
+    }
+}
@@ -0,0 +1,83 @@
+package org.example.bench;
+
+import org.example.BlobStore;
+import org.example.FanOut;
+import org.example.MailStore;
+import org.example.MailboxIndex;
+import org.example.SearchIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// One newsletter to every account: fanOut stores the body once and appends a reference per
+// mailbox on the fan-out thread; inlineCopies is what the same delivery cost before, a full
+// copy of the body appended to each mailbox. Each operation is one whole delivery.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"1000", "100000"})
+    public int recipients;
+
+    @Param({"4096"})
+    public int bodySize;
+
+    private Path root;
+    private MailStore store;
+    private FanOut fanOut;
+    private SearchIndex search;
+    private List<String> accounts;
+    private String body;
+    private int round;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchFiles.tempDir("fanout");
+        accounts = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            String account = "user" + i;
+            Files.createDirectory(root.resolve(account));
+            accounts.add(account);
+        }
+        store = new MailStore(root, MailStore.FsyncPolicy.NONE, 10, 64L * 1024 * 1024);
+        MailboxIndex index = new MailboxIndex(root, store, 1_000_000);
+        index.load();
+        search = new SearchIndex(root, store, System.err::println);
+        fanOut = new FanOut(root, store, index, search, new BlobStore(root, true), (what, delivered, skipped, nanos) -> { },
+                null, System.err::println);
+        body = "x".repeat(bodySize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fanOut.close();
+        search.close();
+        store.close();
+        BenchFiles.delete(root);
+    }
+
+    // Each round sends a different body, so the content store really writes it
+    @Benchmark
+    public int fanOut() throws IOException {
+        return fanOut.message("newsletter", accounts, body + round++, System.currentTimeMillis()).join();
+    }
+
+    @Benchmark
+    public int inlineCopies() throws IOException {
+        String text = body + round++;
+        long timestamp = System.currentTimeMillis();
+        for (String account : accounts) {
+            store.append(account, "newsletter", text, timestamp);
+        }
+        return accounts.size();
+    }
+}
@@ -0,0 +1,97 @@
+package org.example.bench;
+
+import org.example.Journal;
+import org.example.MailStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Startup after a crash, as Server.recover() runs it: read the journal, put back what the
+// mailboxes lost and checkpoint. The journal is left behind by a store that was closed without
+// a checkpoint. With applied=true every mailbox still holds its messages, the usual case after
+// a kill, so replay only has to match them up; with applied=false the mailboxes were lost and
+// every message is appended again.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JournalRecoveryBenchmark {
+
+    private static final int ACCOUNTS = 16;
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long JOURNAL_BYTES = 1L << 40;
+
+    @Param({"1000", "10000", "100000"})
+    public int messages;
+
+    @Param({"true", "false"})
+    public boolean applied;
+
+    private Path template;
+    private Path root;
+    private Journal journal;
+    private MailStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        template = BenchFiles.tempDir("journal-template");
+        Journal writer = new Journal(template, MailStore.FsyncPolicy.NONE, 1000, JOURNAL_BYTES, System.err::println);
+        MailStore mail = new MailStore(template, MailStore.FsyncPolicy.NONE, 1000, SEGMENT_BYTES, writer, System.err::println);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            Files.createDirectories(template.resolve("user" + i));
+        }
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < messages; i++) {
+            mail.append("user" + i % ACCOUNTS, "sender" + i % 7, "message number " + i, timestamp + i);
+        }
+        mail.close();
+        writer.close();
+        if (!applied) {
+            for (int i = 0; i < ACCOUNTS; i++) {
+                BenchFiles.delete(template.resolve("user" + i).resolve(MailStore.MAILBOX_FOLDER));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchFiles.delete(template);
+    }
+
+    @Setup(Level.Iteration)
+    public void copy() throws IOException {
+        root = BenchFiles.tempDir("journal");
+        try (Stream<Path> paths = Files.walk(template)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path target = root.resolve(template.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(path, target);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void clean() throws IOException {
+        store.close();
+        journal.close();
+        BenchFiles.delete(root);
+    }
+
+    @Benchmark
+    public int recover() throws IOException {
+        journal = new Journal(root, MailStore.FsyncPolicy.BATCH, 1000, JOURNAL_BYTES, System.err::println);
+        store = new MailStore(root, MailStore.FsyncPolicy.BATCH, 1000, SEGMENT_BYTES, journal, System.err::println);
+        int replayed = store.replay(journal.recover());
+        journal.checkpoint();
+        return replayed;
+    }
+}
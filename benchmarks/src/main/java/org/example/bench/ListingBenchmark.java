@@ -0,0 +1,97 @@
+package org.example.bench;
+
+import org.example.Frame;
+import org.example.MailStore;
+import org.example.MailboxEntry;
+import org.example.MailboxIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// LOGIN and LIST on a mailbox with many senders: a page served from the cached listing,
+// the same with a name filter, and the cold load that happens on an index miss, which reads
+// only senders and timestamps however large the bodies are
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingBenchmark {
+
+    private static final int PAGE_BYTES = 1400;
+
+    @Param({"1000", "100000"})
+    public int senders;
+
+    @Param({"5", "4000"})
+    public int bodyBytes;
+
+    private Path root;
+    private MailStore store;
+    private MailboxIndex index;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(65507);
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchFiles.tempDir("listing");
+        Files.createDirectories(root.resolve("bob"));
+        store = new MailStore(root, MailStore.FsyncPolicy.NONE, 10, 64L * 1024 * 1024);
+        String body = "x".repeat(bodyBytes);
+        for (int i = 0; i < senders; i++) {
+            store.append("bob", "sender" + i, body, 1_700_000_000_000L + i);
+        }
+        store.flush();
+        index = new MailboxIndex(root, store, Integer.MAX_VALUE);
+        index.load();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        BenchFiles.delete(root);
+    }
+
+    @Benchmark
+    public int pageByDate() throws IOException {
+        List<MailboxEntry> view = index.listing("bob", MailboxIndex.Sort.DATE, "");
+        cursor = encodePage(view, cursor);
+        return out.position();
+    }
+
+    @Benchmark
+    public int pageFiltered() throws IOException {
+        List<MailboxEntry> view = index.listing("bob", MailboxIndex.Sort.NAME, "sender9");
+        encodePage(view, 0);
+        return out.position();
+    }
+
+    @Benchmark
+    public int coldListing() throws IOException {
+        MailboxIndex cold = new MailboxIndex(root, store, Integer.MAX_VALUE);
+        cold.load();
+        return cold.listing("bob").size();
+    }
+
+    // Fills one reply the way the server's LIST handler does and returns the next cursor, wrapping at the end
+    private int encodePage(List<MailboxEntry> view, int first) {
+        out.clear();
+        int budget = PAGE_BYTES - Frame.MAX_HEADER - 2 * Frame.varintLength(view.size());
+        int last = first;
+        while (last < view.size() && (budget -= view.get(last).encodedLength()) >= 0) {
+            last++;
+        }
+        Frame.putVarint(out, view.size());
+        Frame.putVarint(out, last - first);
+        for (int i = first; i < last; i++) {
+            view.get(i).write(out);
+        }
+        return last >= view.size() ? 0 : last;
+    }
+}
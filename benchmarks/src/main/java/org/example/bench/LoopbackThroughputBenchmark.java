@@ -0,0 +1,135 @@
+package org.example.bench;
+
+import org.example.Frame;
+import org.example.Opcode;
+import org.example.Server;
+import org.example.ServerConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A real server on loopback driven by N clients, one per benchmark thread (-t N, 4 by default).
+// Each operation is a request and its reply, so the score is round trips per second across all
+// clients. Transport and worker count are parameters so both receive paths can be compared.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Threads(4)
+@Fork(1)
+public class LoopbackThroughputBenchmark {
+
+    private static final int REPLY_TIMEOUT_MS = 1000;
+
+    @Param({"socket", "nio"})
+    public String transport;
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    private Path root;
+    private Server server;
+    private InetSocketAddress address;
+    private final AtomicInteger clients = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchFiles.tempDir("loopback");
+        Properties properties = new Properties();
+        properties.setProperty("mail.bind", "127.0.0.1");
+        properties.setProperty("mail.port", "0");
+        properties.setProperty("mail.root", root.toString());
+        properties.setProperty("mail.transport", transport);
+        properties.setProperty("mail.workers", String.valueOf(workers));
+        properties.setProperty("mail.fsync", "none");
+        properties.setProperty("mail.headless", "true");
+        properties.setProperty("mail.jmx", "false");
+        server = new Server(new ServerConfig(properties));
+        address = server.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        BenchFiles.delete(root);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        DatagramSocket socket;
+        InetSocketAddress server;
+        String account;
+        final ByteBuffer send = ByteBuffer.allocate(65507);
+        final byte[] receive = new byte[65507];
+        final Frame reply = new Frame();
+        long nextId = 1;
+        long timeouts;
+
+        @Setup(Level.Trial)
+        public void setUp(LoopbackThroughputBenchmark benchmark) throws IOException {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+            server = benchmark.address;
+            account = "client" + benchmark.clients.getAndIncrement();
+            request(Opcode.CREATE_ACCOUNT, 0, null, account);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            socket.close();
+        }
+
+        // Sends one request and waits for its reply; a lost datagram counts as a timeout, not a failure
+        Frame request(Opcode opcode, long seq, ByteBuffer payload, String... fields) throws IOException {
+            long id = nextId++;
+            send.clear();
+            Frame.encode(send, opcode, id, seq, fields);
+            if (payload != null) {
+                send.put(payload);
+            }
+            socket.send(new DatagramPacket(send.array(), send.position(), server));
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(receive, receive.length);
+                    socket.receive(packet);
+                    ByteBuffer data = ByteBuffer.wrap(receive, 0, packet.getLength());
+                    if (Frame.isFramed(data) && reply.decode(data).id() == id) {
+                        return reply;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                timeouts++;
+                return null;
+            }
+        }
+    }
+
+    // The cheapest round trip: an empty LIST page only checks the account
+    @Benchmark
+    public Frame emptyListPage(Client client) throws IOException {
+        ByteBuffer page = ByteBuffer.allocate(2);
+        Frame.putVarint(page, 0);
+        return client.request(Opcode.LIST, 0, page.flip(), client.account, "");
+    }
+
+    // A stored message followed by a full first page; both land on the account's lane, so the page sees the message
+    @Benchmark
+    public Frame sendEmailThenList(Client client) throws IOException {
+        ByteBuffer page = ByteBuffer.allocate(4);
+        Frame.putVarint(page, 64);
+        client.send.clear();
+        Frame.encode(client.send, Opcode.SEND_EMAIL, client.nextId++, 0, "bench", client.account, "Hello from the benchmark");
+        client.socket.send(new DatagramPacket(client.send.array(), client.send.position(), client.server));
+        return client.request(Opcode.LIST, 0, page.flip(), client.account, "");
+    }
+}
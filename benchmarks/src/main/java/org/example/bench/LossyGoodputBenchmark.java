@@ -0,0 +1,160 @@
+package org.example.bench;
+
+import org.example.ClientEngine;
+import org.example.Frame;
+import org.example.Opcode;
+import org.example.PathMtu;
+import org.example.Server;
+import org.example.ServerConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// A ClientEngine upload through a relay that drops the given share of the upload's chunks, acks
+// and NACKs. The "bytes" counter is goodput: file bytes the server has acked and assembled per
+// second, so retransmissions and timeouts count against it. ATTACH_BEGIN and other requests get
+// through untouched: ClientEngine gives a request up after three lost attempts, which at 5% loss
+// ends a long trial with a timeout instead of a number. The relay's Random is seeded, so every
+// trial makes the same sequence of drop decisions.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class LossyGoodputBenchmark {
+
+    @Param({"0", "0.01", "0.05"})
+    public double loss;
+
+    @Param({"4194304"})
+    public int fileBytes;
+
+    private Path root;
+    private Server server;
+    private Relay relay;
+    private ClientEngine engine;
+    private Path file;
+    private long nextId = 1;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Goodput {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchFiles.tempDir("goodput");
+        Properties properties = new Properties();
+        properties.setProperty("mail.bind", "127.0.0.1");
+        properties.setProperty("mail.port", "0");
+        properties.setProperty("mail.root", root.resolve("server").toString());
+        properties.setProperty("mail.fsync", "none");
+        properties.setProperty("mail.headless", "true");
+        properties.setProperty("mail.jmx", "false");
+        server = new Server(new ServerConfig(properties));
+        relay = new Relay(server.start(), loss, 7);
+        engine = new ClientEngine(InetAddress.getLoopbackAddress(), relay.port());
+        ClientEngine.await(engine.connect());
+        ClientEngine.await(engine.request(Opcode.CREATE_ACCOUNT, "bench"));
+        byte[] data = new byte[fileBytes];
+        new Random(7).nextBytes(data);
+        file = Files.write(root.resolve("upload.bin"), data);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.close();
+        relay.close();
+        server.close();
+        BenchFiles.delete(root);
+    }
+
+    @Benchmark
+    public void upload(Goodput goodput) throws IOException {
+        ClientEngine.await(engine.upload("bench", "bench", "", file, "upload-" + nextId++ + ".bin", null));
+        goodput.bytes += fileBytes;
+    }
+
+    // Forwards datagrams between the one client and the server, dropping each upload frame with the given probability
+    private static final class Relay {
+
+        private final DatagramSocket socket;
+        private final InetSocketAddress server;
+        private final Random random;
+        private final double loss;
+        private final Thread thread;
+        private volatile SocketAddress client;
+
+        Relay(InetSocketAddress server, double loss, long seed) throws IOException {
+            this.server = server;
+            this.loss = loss;
+            this.random = new Random(seed);
+            socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            socket.setReceiveBufferSize(4 * 1024 * 1024);
+            socket.setSendBufferSize(4 * 1024 * 1024);
+            thread = Thread.ofPlatform().name("goodput-relay").daemon(true).start(this::run);
+        }
+
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        void close() {
+            socket.close();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() {
+            byte[] buffer = new byte[PathMtu.MAX_DATAGRAM];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            Frame frame = new Frame();
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    boolean toClient = packet.getSocketAddress().equals(server);
+                    if (!toClient) {
+                        client = packet.getSocketAddress();
+                    }
+                    if (client == null || isUpload(frame, ByteBuffer.wrap(buffer, 0, packet.getLength()))
+                            && random.nextDouble() < loss) {
+                        continue;
+                    }
+                    packet.setSocketAddress(toClient ? client : server);
+                    socket.send(packet);
+                } catch (IOException e) {
+                    // Closed, or an ICMP error from an earlier send; the loop condition tells which
+                }
+            }
+        }
+
+        private static boolean isUpload(Frame frame, ByteBuffer data) {
+            if (!Frame.isFramed(data)) {
+                return false;
+            }
+            try {
+                frame.decode(data);
+            } catch (IOException e) {
+                return false;
+            }
+            return frame.opcode() == Opcode.ATTACH_CHUNK || frame.opcode() == Opcode.ACK || frame.opcode() == Opcode.NACK;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.example.bench;
+
+import org.example.MailStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// MailStore.append as sendEmail calls it. Each benchmark thread writes to its own group of accounts;
+// run with -t to see how group commit behaves with more writers.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailboxAppendBenchmark {
+
+    @Param({"NONE", "BATCH"})
+    public MailStore.FsyncPolicy fsync;
+
+    @Param({"1", "64"})
+    public int accounts;
+
+    @Param({"256"})
+    public int bodySize;
+
+    private Path root;
+    private MailStore store;
+    private String body;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchFiles.tempDir("append");
+        store = new MailStore(root, fsync, 10, 64L * 1024 * 1024);
+        body = "x".repeat(bodySize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        BenchFiles.delete(root);
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        int thread;
+        int next;
+
+        @Setup
+        public void setUp(MailboxAppendBenchmark benchmark) {
+            thread = benchmark.threads.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    public void append(Writer writer) throws IOException {
+        int account = writer.next++ % accounts;
+        store.append("user" + writer.thread + "-" + account, "alice", body, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,87 @@
+package org.example.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.example.Transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// One whole upload as receiveFile and assembleFile handle it: every chunk stored into the sparse
+// part file, in order or shuffled as a lossy link delivers them, then moved into place
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReassemblyBenchmark {
+
+    @Param({"1024"})
+    public int chunkSize;
+
+    @Param({"1024"})
+    public int chunks;
+
+    @Param({"true", "false"})
+    public boolean shuffled;
+
+    private Path root;
+    private ByteBuffer chunk;
+    private int[] order;
+    private Transfer transfer;
+    private Path target;
+    private int round;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchFiles.tempDir("reassembly");
+        chunk = ByteBuffer.allocateDirect(chunkSize);
+        new Random(7).ints(chunkSize).forEach(value -> chunk.put((byte) value));
+        chunk.flip();
+        order = new int[chunks];
+        for (int i = 0; i < chunks; i++) {
+            order[i] = i;
+        }
+        if (shuffled) {
+            Random random = new Random(42);
+            for (int i = chunks - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newTransfer() throws IOException {
+        round++;
+        transfer = new Transfer("bob", "file-" + round, chunks, chunkSize, (long) chunks * chunkSize,
+                root.resolve("transfer-" + round + ".part"));
+        target = root.resolve("file-" + round);
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeFile() throws IOException {
+        Files.deleteIfExists(target);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchFiles.delete(root);
+    }
+
+    @Benchmark
+    public boolean storeAndAssemble() throws IOException {
+        boolean complete = false;
+        for (int index : order) {
+            complete = transfer.store(index, chunk.duplicate());
+        }
+        transfer.finish(target);
+        return complete;
+    }
+}
@@ -0,0 +1,84 @@
+package org.example.bench;
+
+import org.example.MailStore;
+import org.example.SearchIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// SEARCH on one large mailbox, indexed at setup the way a server start indexes a mailbox from
+// before the index existed. Every call asks something different, so the cached last result
+// never answers: a rare word, a rare word and a common one, a sender, and a common word
+// within one day.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    private static final long START = 1_700_000_000_000L;
+    private static final long MINUTE = 60_000L;
+    private static final int TOPICS = 10_000;
+    private static final int SENDERS = 5_000;
+    private static final int PAGE = 50;
+    private static final String[] WORDS = {"meeting", "report", "invoice", "lunch", "deadline", "project", "review",
+            "budget", "travel", "update", "draft", "schedule", "contract", "release", "offsite", "hiring"};
+
+    @Param({"100000", "1000000"})
+    public int messages;
+
+    private Path root;
+    private MailStore store;
+    private SearchIndex index;
+    private int round;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchFiles.tempDir("search");
+        Files.createDirectories(root.resolve("bob"));
+        store = new MailStore(root, MailStore.FsyncPolicy.NONE, 10, 64L * 1024 * 1024);
+        Random random = new Random(42);
+        for (int i = 0; i < messages; i++) {
+            String body = WORDS[random.nextInt(WORDS.length)] + " about topic" + random.nextInt(TOPICS) + ", see the "
+                    + WORDS[random.nextInt(WORDS.length)] + " and the " + WORDS[random.nextInt(WORDS.length)] + " notes";
+            store.append("bob", "sender" + random.nextInt(SENDERS), body, START + i * MINUTE);
+        }
+        store.flush();
+        index = new SearchIndex(root, store, System.err::println);
+        index.recover();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        store.close();
+        BenchFiles.delete(root);
+    }
+
+    @Benchmark
+    public int rareWord() throws IOException {
+        return index.search("bob", "topic" + round++ % TOPICS, 0, 0, 0, PAGE).total();
+    }
+
+    @Benchmark
+    public int rareAndCommonWord() throws IOException {
+        return index.search("bob", "topic" + round++ % TOPICS + " " + WORDS[round % WORDS.length], 0, 0, 0, PAGE).total();
+    }
+
+    @Benchmark
+    public int sender() throws IOException {
+        return index.search("bob", "from:sender" + round++ % SENDERS, 0, 0, 0, PAGE).total();
+    }
+
+    @Benchmark
+    public int commonWordInOneDay() throws IOException {
+        long since = START + (round++ % (messages / 1440 + 1)) * 1440 * MINUTE;
+        return index.search("bob", WORDS[round % WORDS.length], since, since + 1440 * MINUTE, 0, PAGE).total();
+    }
+}
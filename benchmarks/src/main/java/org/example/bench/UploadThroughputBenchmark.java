@@ -0,0 +1,140 @@
+package org.example.bench;
+
+import org.example.CongestionController;
+import org.example.Frame;
+import org.example.Opcode;
+import org.example.ReliableSender;
+import org.example.Server;
+import org.example.ServerConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// One attachment upload over loopback, exactly as the client sends it: ATTACH_BEGIN, then the
+// chunks through ReliableSender until the server has acked them all and assembled the file.
+// Throughput in MB/s is fileBytes divided by the score; the chunk sizes cover the old fixed
+// 1 KB, an Ethernet datagram, a jumbo frame and the largest datagram loopback carries.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class UploadThroughputBenchmark {
+
+    private static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+    @Param({"1024", "1449", "8949", "65484"})
+    public int chunkSize;
+
+    @Param({"4194304"})
+    public int fileBytes;
+
+    @Param({"socket", "nio"})
+    public String transport;
+
+    private Path root;
+    private Server server;
+    private InetSocketAddress address;
+    private DatagramSocket socket;
+    private byte[] file;
+    private final ByteBuffer send = ByteBuffer.allocate(65507);
+    private final byte[] receive = new byte[65507];
+    private final Frame reply = new Frame();
+    private long nextId = 1;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchFiles.tempDir("upload");
+        Properties properties = new Properties();
+        properties.setProperty("mail.bind", "127.0.0.1");
+        properties.setProperty("mail.port", "0");
+        properties.setProperty("mail.root", root.toString());
+        properties.setProperty("mail.transport", transport);
+        properties.setProperty("mail.fsync", "none");
+        properties.setProperty("mail.headless", "true");
+        properties.setProperty("mail.jmx", "false");
+        server = new Server(new ServerConfig(properties));
+        address = server.start();
+        socket = new DatagramSocket();
+        socket.setReceiveBufferSize(SOCKET_BUFFER);
+        socket.setSendBufferSize(SOCKET_BUFFER);
+        file = new byte[fileBytes];
+        new Random(7).nextBytes(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        server.close();
+        BenchFiles.delete(root);
+    }
+
+    @Benchmark
+    public long upload() throws IOException {
+        long id = nextId++;
+        int totalChunks = (fileBytes + chunkSize - 1) / chunkSize;
+        ByteBuffer sizes = ByteBuffer.allocate(20);
+        Frame.putVarint(sizes, fileBytes);
+        Frame.putVarint(sizes, chunkSize);
+        send.clear();
+        Frame.encode(send, Opcode.ATTACH_BEGIN, id, totalChunks, "bench", "bench", "", "upload-" + id + ".bin");
+        send.put(sizes.flip());
+        transmit();
+        if (await(id, 1000, Opcode.REPLY, Opcode.ERROR) == null || reply.opcode() != Opcode.REPLY) {
+            throw new IOException("Upload was refused");
+        }
+        ReliableSender sender = new ReliableSender(new ReliableSender.Link() {
+            @Override
+            public void sendChunk(int index) throws IOException {
+                int start = index * chunkSize;
+                send.clear();
+                Frame.encode(send, Opcode.ATTACH_CHUNK, id, index);
+                send.put(file, start, Math.min(chunkSize, fileBytes - start));
+                transmit();
+            }
+
+            @Override
+            public Frame receiveAck(long timeoutMillis) throws IOException {
+                return await(id, timeoutMillis, Opcode.ACK, Opcode.NACK);
+            }
+        }, totalChunks, chunkSize, CongestionController.create("aimd", ReliableSender.MAX_WINDOW));
+        sender.run();
+        return sender.retransmissions();
+    }
+
+    private void transmit() throws IOException {
+        socket.send(new DatagramPacket(send.array(), send.position(), address));
+    }
+
+    private Frame await(long id, long timeoutMillis, Opcode first, Opcode second) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (true) {
+            long remaining = (deadline - System.nanoTime()) / 1_000_000L;
+            if (remaining <= 0) {
+                return null;
+            }
+            socket.setSoTimeout((int) remaining);
+            DatagramPacket packet = new DatagramPacket(receive, receive.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            ByteBuffer data = ByteBuffer.wrap(receive, 0, packet.getLength());
+            if (Frame.isFramed(data) && reply.decode(data).id() == id
+                    && (reply.opcode() == first || reply.opcode() == second)) {
+                return reply;
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// One account in a single file, for moving a mailbox to the cluster node that now owns it.
+// Messages are written with their bodies and attachments with their bytes, since fan-out
+// bodies and blobs belong to the node's shared stores and mean nothing on another node:
+//
+//   magic int, account name, then records
+//   'M'  sender, timestamp long, body
+//   'A'  attachment name, timestamp long, length long, bytes
+//   'F'  plain file name, timestamp long, length long, bytes
+//   'E'  end
+//
+// Strings are an int length and UTF-8 bytes. The stream is deflated, which pays off well on
+// mail text.
+final class AccountArchive {
+
+    // The file name an archive is uploaded under; names starting with '.' are refused from clients
+    static final String FILE_NAME = ".account";
+    private static final int MAGIC = 0x4D414343;
+    private static final int BUFFER = 64 * 1024;
+    // Far beyond any message body, but a damaged length cannot ask for gigabytes
+    private static final int MAX_STRING = 16 * 1024 * 1024;
+
+    interface Sink {
+        void message(String from, String body, long timestamp) throws IOException;
+
+        // The content is in a scratch file the sink may move; it is deleted afterwards if still there
+        void file(String name, boolean attachment, long timestamp, Path content, byte[] sha256) throws IOException;
+    }
+
+    private AccountArchive() {
+    }
+
+    static void write(Path target, String account, Path accountDir, List<MailMessage> messages, BlobStore blobs) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(Files.newOutputStream(target), new Deflater(Deflater.BEST_SPEED)), BUFFER))) {
+            out.writeInt(MAGIC);
+            writeString(out, account);
+            for (MailMessage message : messages) {
+                out.writeByte('M');
+                writeString(out, message.from());
+                out.writeLong(message.timestamp());
+                writeString(out, message.body());
+            }
+            Path references = accountDir.resolve(BlobStore.REFERENCE_FOLDER);
+            if (Files.isDirectory(references)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(references, Files::isRegularFile)) {
+                    for (Path reference : files) {
+                        String name = reference.getFileName().toString();
+                        BlobStore.Blob blob = name.startsWith(".") ? null : blobs.resolve(accountDir, name);
+                        if (blob != null) {
+                            writeFile(out, 'A', name, Files.getLastModifiedTime(reference).toMillis(), blobs.plain(blob));
+                        }
+                    }
+                }
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(accountDir, Files::isRegularFile)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (!name.startsWith(".")) {
+                        writeFile(out, 'F', name, Files.getLastModifiedTime(file).toMillis(), file);
+                    }
+                }
+            }
+            out.writeByte('E');
+        }
+    }
+
+    // Returns the account the archive is for, after handing every record to the sink
+    static String read(Path source, Path scratch, Sink sink) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(Files.newInputStream(source)), BUFFER))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an account archive");
+            }
+            String account = readString(in);
+            byte[] buffer = new byte[BUFFER];
+            while (true) {
+                int type = in.readByte();
+                if (type == 'E') {
+                    return account;
+                } else if (type == 'M') {
+                    String from = readString(in);
+                    long timestamp = in.readLong();
+                    sink.message(from, readString(in), timestamp);
+                } else if (type == 'A' || type == 'F') {
+                    String name = readString(in);
+                    long timestamp = in.readLong();
+                    long remaining = in.readLong();
+                    Path content = Files.createTempFile(scratch, "account", ".part");
+                    MessageDigest sha256 = FileDigests.newSha256();
+                    try {
+                        try (OutputStream out = Files.newOutputStream(content)) {
+                            while (remaining > 0) {
+                                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                                if (read < 0) {
+                                    throw new IOException("Account archive ends inside " + name);
+                                }
+                                out.write(buffer, 0, read);
+                                sha256.update(buffer, 0, read);
+                                remaining -= read;
+                            }
+                        }
+                        sink.file(name, type == 'A', timestamp, content, sha256.digest());
+                    } finally {
+                        Files.deleteIfExists(content);
+                    }
+                } else {
+                    throw new IOException("Unknown account archive record " + type);
+                }
+            }
+        }
+    }
+
+    private static void writeFile(DataOutputStream out, char type, String name, long timestamp, Path file) throws IOException {
+        out.writeByte(type);
+        writeString(out, name);
+        out.writeLong(timestamp);
+        out.writeLong(Files.size(file));
+        try (InputStream in = Files.newInputStream(file)) {
+            in.transferTo(out);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING) {
+            throw new IOException("Account archive string of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
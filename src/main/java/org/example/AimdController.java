@@ -0,0 +1,75 @@
+package org.example;
+
+// Classic additive-increase/multiplicative-decrease window: slow start doubles the
+// window every round trip until the threshold, then it grows by one chunk per round
+// trip. A loss halves it (a timeout drops it to one) at most once per round trip.
+// Growth also pauses while RTT samples sit well above the minimum seen, so a
+// filling queue is backed off before it overflows into drops.
+public class AimdController implements CongestionController {
+
+    private static final int INITIAL_WINDOW = 4;
+    private static final double QUEUEING_FACTOR = 2.0;
+
+    private final int maxWindow;
+    private double window = INITIAL_WINDOW;
+    private double threshold;
+    private long minRtt = Long.MAX_VALUE;
+    private long srtt;
+    private long lastReduction;
+
+    public AimdController(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.threshold = maxWindow;
+    }
+
+    @Override
+    public int window() {
+        return (int) window;
+    }
+
+    @Override
+    public long pacingRate() {
+        return 0;
+    }
+
+    @Override
+    public long sendDelayNanos(long now, int bytes) {
+        return 0;
+    }
+
+    @Override
+    public void onSent(long now, int bytes) {
+    }
+
+    @Override
+    public void onAck(int chunks, long rttNanos) {
+        if (rttNanos >= 0) {
+            // RFC 6298 SRTT with alpha = 1/8, as ReliableSender keeps for its timeout
+            srtt = srtt == 0 ? rttNanos : (7 * srtt + rttNanos) / 8;
+            minRtt = Math.min(minRtt, rttNanos);
+            if (rttNanos > minRtt * QUEUEING_FACTOR) {
+                return;
+            }
+        }
+        for (int i = 0; i < chunks; i++) {
+            window += window < threshold ? 1 : 1 / window;
+        }
+        window = Math.min(window, maxWindow);
+    }
+
+    @Override
+    public void onLoss(boolean timeout) {
+        long now = System.nanoTime();
+        if (!timeout && now - lastReduction < smoothedRtt()) {
+            return;
+        }
+        lastReduction = now;
+        threshold = Math.max(2, window / 2);
+        window = timeout ? 1 : threshold;
+    }
+
+    // Smoothed RTT, or 0 before the first sample
+    public long smoothedRtt() {
+        return srtt;
+    }
+}
@@ -0,0 +1,159 @@
+package org.example;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Log that never makes a request thread wait. Callers drop the message and the time into a
+// bounded lock-free ring (each slot carries a sequence number, so producers only race on one
+// counter) and a single "mail-log" thread formats them in batches and hands each batch to
+// the sinks. When the ring is full the message is counted as dropped instead of blocking.
+public class AsyncLog implements AutoCloseable {
+
+    public interface Sink {
+        // Called on the log thread; the list is reused once this returns
+        void write(List<String> lines) throws IOException;
+
+        default void close() throws IOException {
+        }
+    }
+
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_PARK_NANOS = 5_000_000;
+
+    private final DateTimeFormatter formatter;
+    private final int mask;
+    private final String[] messages;
+    private final long[] times;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final List<Sink> sinks = new CopyOnWriteArrayList<>();
+    private final Thread consumer;
+    private volatile boolean running = true;
+    private volatile long head;
+    // The consumer formats at most one timestamp per second
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedPrefix;
+
+    public AsyncLog(int capacity, DateTimeFormatter formatter) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.formatter = formatter;
+        mask = size - 1;
+        messages = new String[size];
+        times = new long[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        consumer = Thread.ofPlatform().name("mail-log").daemon(true).start(this::drain);
+    }
+
+    public void addSink(Sink sink) {
+        sinks.add(sink);
+    }
+
+    public boolean log(String message) {
+        long now = System.currentTimeMillis();
+        long position = tail.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long diff = sequences.get(slot) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        int slot = (int) position & mask;
+        messages[slot] = message;
+        times[slot] = now;
+        // Publishing the sequence makes the two plain writes above visible to the consumer
+        sequences.set(slot, position + 1);
+        return true;
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public int pending() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    // Writes out whatever is still queued and closes the sinks; an interrupt stops the wait, not the log thread
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        List<String> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            boolean stopping = !running;
+            while (batch.size() < MAX_BATCH) {
+                int slot = (int) head & mask;
+                if (sequences.get(slot) != head + 1) {
+                    break;
+                }
+                batch.add(prefix(times[slot]) + messages[slot]);
+                messages[slot] = null;
+                sequences.set(slot, head + mask + 1);
+                head++;
+            }
+            if (!batch.isEmpty()) {
+                publish(batch);
+                batch.clear();
+            } else if (stopping) {
+                break;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        for (Sink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close log sink: " + e.getMessage());
+            }
+        }
+    }
+
+    private void publish(List<String> batch) {
+        for (Sink sink : sinks) {
+            try {
+                sink.write(batch);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Log sink failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private String prefix(long millis) {
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedPrefix = formatter.format(Instant.ofEpochSecond(second)) + " - ";
+        }
+        return cachedPrefix;
+    }
+}
@@ -0,0 +1,293 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Attachments stored once by the SHA-256 of their content under MailServer/.blobs/<aa>/<digest>.
+// Mailboxes hold reference files ("<account>/.attachments/<name>", holding the digest and
+// size) and every reference is counted in "<digest>.meta", so the blob is deleted when the last
+// reference to it is replaced. A blob whose first 64 KB deflate well is kept deflated; clients
+// that accept deflate are sent that form as is, and a plain copy is only inflated on demand for
+// the ones that do not.
+public class BlobStore {
+
+    public static final String FOLDER = ".blobs";
+    public static final String REFERENCE_FOLDER = ".attachments";
+    private static final int PROBE_BYTES = 64 * 1024;
+    private static final int MIN_COMPRESS_BYTES = 512;
+    // Deflate only pays when it saves at least a tenth
+    private static final double MAX_RATIO = 0.9;
+    private static final int LOCKS = 64;
+
+    public record Blob(String digest, long size, boolean deflated, long storedSize, byte[] storedDigest, Path file) {
+    }
+
+    private final Path dir;
+    private final boolean compress;
+    private final Object[] locks = new Object[LOCKS];
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+    private final AtomicLong nextTemp = new AtomicLong();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+
+    public BlobStore(Path root, boolean compress) {
+        this.dir = root.resolve(FOLDER);
+        this.compress = compress;
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    // Takes ownership of the assembled file and returns its blob with one reference held for the caller
+    public Blob put(Path source, byte[] sha256) throws IOException {
+        String digest = HexFormat.of().formatHex(sha256);
+        synchronized (lock(digest)) {
+            Blob existing = find(digest);
+            if (existing != null) {
+                Files.delete(source);
+                adjust(existing, 1);
+                deduplicated.increment();
+                savedBytes.add(existing.size());
+                return existing;
+            }
+            Files.createDirectories(folder(digest));
+            Blob blob = compress && worthDeflating(source) ? deflate(source, digest) : null;
+            if (blob == null) {
+                Path target = folder(digest).resolve(digest);
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                long size = Files.size(target);
+                blob = new Blob(digest, size, false, size, sha256, target);
+            } else {
+                Files.delete(source);
+                savedBytes.add(blob.size() - blob.storedSize());
+            }
+            writeMeta(blob, 1);
+            blobs.put(digest, blob);
+            return blob;
+        }
+    }
+
+    public Blob get(String digest) throws IOException {
+        if (digest.length() != 64 || !digest.chars().allMatch(HexFormat::isHexDigit)) {
+            throw new IOException("Not a blob digest: " + digest);
+        }
+        synchronized (lock(digest)) {
+            return find(digest);
+        }
+    }
+
+    public void retain(Blob blob, int references) throws IOException {
+        if (references != 0) {
+            synchronized (lock(blob.digest())) {
+                adjust(blob, references);
+            }
+        }
+    }
+
+    public void release(Blob blob) throws IOException {
+        retain(blob, -1);
+    }
+
+    // Files the blob in the account folder under the given name and returns the reference file.
+    // The blob must already be retained for this reference; whatever the name referred to before
+    // is released, and a plain file of that name left from before the blob store is removed.
+    public Path attach(Path accountDir, String fileName, Blob blob) throws IOException {
+        Path reference = accountDir.resolve(REFERENCE_FOLDER).resolve(fileName);
+        Blob previous = resolve(accountDir, fileName);
+        Files.createDirectories(reference.getParent());
+        Path temp = reference.resolveSibling("." + fileName + "." + nextTemp.incrementAndGet() + ".tmp");
+        Files.writeString(temp, blob.digest() + " " + blob.size() + "\n", StandardCharsets.UTF_8);
+        Files.move(temp, reference, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(accountDir.resolve(fileName));
+        if (previous != null) {
+            release(previous);
+        }
+        return reference;
+    }
+
+    // The blob the account refers to by that name, or null if there is no such attachment
+    public Blob resolve(Path accountDir, String fileName) throws IOException {
+        String[] reference;
+        try {
+            reference = Files.readString(accountDir.resolve(REFERENCE_FOLDER).resolve(fileName), StandardCharsets.UTF_8)
+                    .strip().split(" ");
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return get(reference[0]);
+    }
+
+    // Size recorded in a reference file, read without touching the blob
+    public static long referencedSize(Path referenceFile) throws IOException {
+        String[] reference = Files.readString(referenceFile, StandardCharsets.UTF_8).strip().split(" ");
+        return reference.length > 1 ? Long.parseLong(reference[1]) : 0;
+    }
+
+    // The blob as the client wrote it; a deflated blob is inflated to a cached copy the first time
+    public Path plain(Blob blob) throws IOException {
+        if (!blob.deflated()) {
+            return blob.file();
+        }
+        Path plain = folder(blob.digest()).resolve(blob.digest() + ".plain");
+        if (Files.exists(plain)) {
+            return plain;
+        }
+        Path temp = temp();
+        try (InputStream in = new InflaterInputStream(Files.newInputStream(blob.file()))) {
+            Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(temp, plain, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return plain;
+    }
+
+    public long deduplicated() {
+        return deduplicated.sum();
+    }
+
+    // Bytes not written thanks to deduplication and compression since startup
+    public long savedBytes() {
+        return savedBytes.sum();
+    }
+
+    private Blob find(String digest) throws IOException {
+        Blob blob = blobs.get(digest);
+        if (blob != null) {
+            return blob;
+        }
+        Path meta = folder(digest).resolve(digest + ".meta");
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        boolean deflated = "deflate".equals(properties.getProperty("encoding"));
+        blob = new Blob(digest, Long.parseLong(properties.getProperty("size")), deflated,
+                Long.parseLong(properties.getProperty("stored")), HexFormat.of().parseHex(properties.getProperty("storedDigest")),
+                folder(digest).resolve(deflated ? digest + ".deflate" : digest));
+        blobs.put(digest, blob);
+        return blob;
+    }
+
+    private void adjust(Blob blob, int delta) throws IOException {
+        int references = references(blob) + delta;
+        if (references > 0) {
+            writeMeta(blob, references);
+            return;
+        }
+        blobs.remove(blob.digest());
+        Path folder = folder(blob.digest());
+        Files.deleteIfExists(folder.resolve(blob.digest() + ".meta"));
+        Files.deleteIfExists(blob.file());
+        Files.deleteIfExists(folder.resolve(blob.digest() + ".plain"));
+    }
+
+    private int references(Blob blob) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(folder(blob.digest()).resolve(blob.digest() + ".meta"), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        return Integer.parseInt(properties.getProperty("refs", "0"));
+    }
+
+    private void writeMeta(Blob blob, int references) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("size", String.valueOf(blob.size()));
+        properties.setProperty("stored", String.valueOf(blob.storedSize()));
+        properties.setProperty("encoding", blob.deflated() ? "deflate" : "identity");
+        properties.setProperty("storedDigest", HexFormat.of().formatHex(blob.storedDigest()));
+        properties.setProperty("refs", String.valueOf(references));
+        Path temp = temp();
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+        Files.move(temp, folder(blob.digest()).resolve(blob.digest() + ".meta"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Deflates a sample from the start of the file at the fastest level
+    private static boolean worthDeflating(Path source) throws IOException {
+        long size = Files.size(source);
+        if (size < MIN_COMPRESS_BYTES) {
+            return false;
+        }
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(PROBE_BYTES, size));
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            while (sample.hasRemaining() && channel.read(sample) > 0) {
+                // fill the sample
+            }
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample.array(), 0, sample.position());
+            deflater.finish();
+            byte[] out = new byte[sample.position()];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < out.length) {
+                compressed += deflater.deflate(out, compressed, out.length - compressed);
+            }
+            return deflater.finished() && compressed < sample.position() * MAX_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Null when the whole file turned out not to compress after all
+    private Blob deflate(Path source, String digest) throws IOException {
+        Path temp = temp();
+        MessageDigest storedDigest = FileDigests.newSha256();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new DeflaterOutputStream(new DigestOutputStream(Files.newOutputStream(temp), storedDigest), deflater, 64 * 1024)) {
+            in.transferTo(out);
+        } finally {
+            deflater.end();
+        }
+        long size = Files.size(source);
+        long stored = Files.size(temp);
+        if (stored >= size * MAX_RATIO) {
+            Files.delete(temp);
+            return null;
+        }
+        Path target = folder(digest).resolve(digest + ".deflate");
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new Blob(digest, size, true, stored, storedDigest.digest(), target);
+    }
+
+    private Path folder(String digest) {
+        return dir.resolve(digest.substring(0, 2));
+    }
+
+    private Path temp() throws IOException {
+        Files.createDirectories(dir);
+        return dir.resolve(ProcessHandle.current().pid() + "-" + nextTemp.incrementAndGet() + ".tmp");
+    }
+
+    private Object lock(String digest) {
+        return locks[digest.hashCode() & (LOCKS - 1)];
+    }
+}
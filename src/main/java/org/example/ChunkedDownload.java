@@ -0,0 +1,285 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.InflaterInputStream;
+
+// Client side of a chunked download. Missing chunks are requested in ranges, with as
+// many chunks in flight as the congestion controller allows, and each DOWNLOAD_DATA
+// frame is written at its offset in "<target>.part". The received-chunk bitmap is
+// saved next to it in "<target>.part.map", so an interrupted download picks up
+// where it stopped. The finished file is checked against the server's SHA-256
+// before it replaces the target. A deflated download is checked in the form it was
+// sent and inflated into the target afterwards.
+public class ChunkedDownload {
+
+    // Encodings of the data a download sends; a client that sends ACCEPT_DEFLATE with
+    // DOWNLOAD_FILE may be answered with DEFLATE
+    public static final int IDENTITY = 0;
+    public static final int DEFLATE = 1;
+    public static final int ACCEPT_DEFLATE = 1;
+    public static final int RANGE_CHUNKS = 16;
+    private static final int MAX_TIMEOUTS = 12;
+    private static final int SAVE_EVERY = 1024;
+    private static final long MIN_TIMEOUT_NANOS = 50_000_000L;
+    private static final long INITIAL_TIMEOUT_NANOS = 500_000_000L;
+
+    public interface Link {
+        void requestRange(int firstChunk, int count) throws IOException;
+
+        // The next DOWNLOAD_DATA frame for this download, or null if none arrived in time
+        Frame receiveData(long timeoutMillis) throws IOException;
+
+        // Called whenever another chunk has been written
+        default void progress(int receivedChunks, int totalChunks) {
+        }
+    }
+
+    private final Link link;
+    private final Path target;
+    private final Path partFile;
+    private final Path mapFile;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int totalChunks;
+    private final byte[] digest;
+    private final int encoding;
+    private final CongestionController controller;
+    private final TreeMap<Integer, Range> outstanding = new TreeMap<>();
+    private BitSet received = new BitSet();
+    private final BitSet requested = new BitSet();
+    private int receivedCount;
+    private int inFlight;
+    private int unsaved;
+    private long srtt;
+    private int backoff = 1;
+
+    public ChunkedDownload(Link link, Path target, long fileSize, int chunkSize, byte[] digest, int encoding,
+                           CongestionController controller) {
+        this.link = link;
+        this.target = target;
+        this.partFile = target.resolveSibling(target.getFileName() + ".part");
+        this.mapFile = target.resolveSibling(target.getFileName() + ".part.map");
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        this.digest = digest;
+        this.encoding = encoding;
+        this.controller = controller;
+    }
+
+    public void run() throws IOException {
+        loadMap();
+        boolean done = false;
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.SPARSE)) {
+            int timeouts = 0;
+            while (receivedCount < totalChunks) {
+                fillWindow();
+                long now = System.nanoTime();
+                Frame data = link.receiveData(Math.max(1, (earliestDeadline() - now) / 1_000_000L));
+                if (data != null) {
+                    store(channel, data);
+                    timeouts = 0;
+                }
+                if (expireRanges() && ++timeouts > MAX_TIMEOUTS) {
+                    throw new SocketTimeoutException("Download stalled with " + receivedCount + " of " + totalChunks + " chunks");
+                }
+            }
+            channel.truncate(fileSize);
+            channel.force(false);
+            done = true;
+        } finally {
+            if (!done) {
+                saveMap();
+            }
+        }
+
+        if (!Arrays.equals(digest, FileDigests.sha256(partFile))) {
+            Files.deleteIfExists(partFile);
+            Files.deleteIfExists(mapFile);
+            throw new IOException("Checksum mismatch for " + target.getFileName());
+        }
+        if (encoding == DEFLATE) {
+            Path inflated = target.resolveSibling(target.getFileName() + ".inflate");
+            try (InputStream in = new InflaterInputStream(Files.newInputStream(partFile))) {
+                Files.copy(in, inflated, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(inflated, target, StandardCopyOption.REPLACE_EXISTING);
+            Files.delete(partFile);
+        } else {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(mapFile);
+    }
+
+    public int receivedChunks() {
+        return receivedCount;
+    }
+
+    public int totalChunks() {
+        return totalChunks;
+    }
+
+    private void fillWindow() throws IOException {
+        int cursor = 0;
+        while (inFlight < Math.max(1, controller.window())) {
+            int first = nextWanted(cursor);
+            if (first >= totalChunks) {
+                return;
+            }
+            int count = 1;
+            while (count < RANGE_CHUNKS && first + count < totalChunks && inFlight + count < controller.window()
+                    && !received.get(first + count) && !requested.get(first + count)) {
+                count++;
+            }
+            requested.set(first, first + count);
+            outstanding.put(first, new Range(first, count, System.nanoTime()));
+            inFlight += count;
+            link.requestRange(first, count);
+            cursor = first + count;
+        }
+    }
+
+    private int nextWanted(int from) {
+        int index = from;
+        while (index < totalChunks && (received.get(index) || requested.get(index))) {
+            index = Math.max(received.nextClearBit(index), requested.nextClearBit(index));
+        }
+        return index;
+    }
+
+    private void store(FileChannel channel, Frame data) throws IOException {
+        int index = (int) data.seq();
+        if (index < 0 || index >= totalChunks || received.get(index)) {
+            return;
+        }
+        ByteBuffer payload = data.payload();
+        long offset = (long) index * chunkSize;
+        long end = offset + payload.remaining();
+        while (payload.hasRemaining()) {
+            channel.write(payload, end - payload.remaining());
+        }
+        received.set(index);
+        receivedCount++;
+        backoff = 1;
+        link.progress(receivedCount, totalChunks);
+
+        Range range = rangeOf(index);
+        if (range != null) {
+            inFlight--;
+            long sample = -1;
+            if (range.remaining == range.count) {
+                sample = System.nanoTime() - range.sentAt;
+                srtt = srtt == 0 ? sample : (7 * srtt + sample) / 8;
+            }
+            if (--range.remaining == 0) {
+                outstanding.remove(range.first);
+            }
+            controller.onAck(1, sample);
+        }
+
+        if (++unsaved >= SAVE_EVERY) {
+            saveMap();
+        }
+    }
+
+    private Range rangeOf(int index) {
+        Map.Entry<Integer, Range> entry = outstanding.floorEntry(index);
+        if (entry == null || index >= entry.getKey() + entry.getValue().count) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    // Ranges that went unanswered release their missing chunks to be requested again
+    private boolean expireRanges() {
+        long now = System.nanoTime();
+        long timeout = timeoutNanos();
+        boolean expired = false;
+        var iterator = outstanding.values().iterator();
+        while (iterator.hasNext()) {
+            Range range = iterator.next();
+            if (now - range.sentAt < timeout) {
+                continue;
+            }
+            for (int i = range.first; i < range.first + range.count; i++) {
+                if (!received.get(i)) {
+                    requested.clear(i);
+                    inFlight--;
+                }
+            }
+            iterator.remove();
+            expired = true;
+        }
+        if (expired) {
+            backoff = Math.min(backoff * 2, 64);
+            controller.onLoss(true);
+        }
+        return expired;
+    }
+
+    private long earliestDeadline() {
+        long earliest = System.nanoTime() + timeoutNanos();
+        for (Range range : outstanding.values()) {
+            earliest = Math.min(earliest, range.sentAt + timeoutNanos());
+        }
+        return earliest;
+    }
+
+    private long timeoutNanos() {
+        return backoff * (srtt == 0 ? INITIAL_TIMEOUT_NANOS : Math.max(MIN_TIMEOUT_NANOS, 4 * srtt));
+    }
+
+    // Map file: file size, chunk size and digest, so a stale map for a changed file is ignored, then the bitmap
+    private void loadMap() throws IOException {
+        if (!Files.exists(mapFile) || !Files.exists(partFile)) {
+            return;
+        }
+        ByteBuffer map = ByteBuffer.wrap(Files.readAllBytes(mapFile));
+        if (map.remaining() < 12 + FileDigests.LENGTH || map.getLong() != fileSize || map.getInt() != chunkSize) {
+            return;
+        }
+        byte[] savedDigest = new byte[FileDigests.LENGTH];
+        map.get(savedDigest);
+        if (Arrays.equals(savedDigest, digest)) {
+            received = BitSet.valueOf(map);
+            receivedCount = received.cardinality();
+        }
+    }
+
+    private void saveMap() throws IOException {
+        byte[] bits = received.toByteArray();
+        ByteBuffer map = ByteBuffer.allocate(12 + FileDigests.LENGTH + bits.length);
+        map.putLong(fileSize).putInt(chunkSize).put(digest).put(bits);
+        Path temp = mapFile.resolveSibling(mapFile.getFileName() + ".tmp");
+        Files.write(temp, map.array());
+        Files.move(temp, mapFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        unsaved = 0;
+    }
+
+    private static class Range {
+        final int first;
+        final int count;
+        final long sentAt;
+        int remaining;
+
+        Range(int first, int count, long sentAt) {
+            this.first = first;
+            this.count = count;
+            this.sentAt = sentAt;
+            this.remaining = count;
+        }
+    }
+}
@@ -5,23 +5,31 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+// Every network call goes through the ClientEngine and comes back as a future, so the
+// window never waits on the server; results are handed back to the event thread.
 public class Client extends JFrame {
 
     private static final int SERVER_PORT = 12345;
-    private DatagramSocket clientSocket;
-    private InetAddress serverAddress;
-    private String accountName;
+    private static final int SEARCH_RESULTS = 100;
+    private ClientEngine engine;
 
     public Client() {
         try {
-            clientSocket = new DatagramSocket();
             String serverIp = JOptionPane.showInputDialog(this, "Enter the server IP address:", "Server IP", JOptionPane.QUESTION_MESSAGE);
-            serverAddress = InetAddress.getByName(serverIp);
-            sendRequest("CONNECT");
-        } catch (SocketException | UnknownHostException e) {
+            engine = new ClientEngine(InetAddress.getByName(serverIp), SERVER_PORT);
+            onEdt(engine.connect(), (chunkSize, failure) -> {
+                if (failure != null) {
+                    showError(this, "Failed to connect to server: ", "Connection Error", failure);
+                }
+            });
+        } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Failed to connect to server: " + e.getMessage(), "Connection Error", JOptionPane.ERROR_MESSAGE);
         }
 
@@ -33,10 +41,10 @@ public class Client extends JFrame {
         panel.setLayout(new GridLayout(3, 1));
 
         JButton registerButton = new JButton("Register");
-        registerButton.addActionListener(e -> new RegisterFrame(clientSocket, serverAddress));
+        registerButton.addActionListener(e -> new RegisterFrame());
 
         JButton loginButton = new JButton("Login");
-        loginButton.addActionListener(e -> new LoginFrame(clientSocket, serverAddress));
+        loginButton.addActionListener(e -> new LoginFrame());
 
         panel.add(registerButton);
         panel.add(loginButton);
@@ -48,9 +56,8 @@ public class Client extends JFrame {
         addWindowListener(new java.awt.event.WindowAdapter() {
             @Override
             public void windowClosing(java.awt.event.WindowEvent windowEvent) {
-                if (clientSocket != null && !clientSocket.isClosed()) {
-                    sendRequest("DISCONNECT");
-                    clientSocket.close();
+                if (engine != null) {
+                    engine.close();
                 }
             }
         });
@@ -60,39 +67,34 @@ public class Client extends JFrame {
         new Client();
     }
 
-    private void sendRequest(String request) {
-        try {
-            byte[] sendData = request.getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, SERVER_PORT);
-            clientSocket.send(sendPacket);
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Failed to send request: " + e.getMessage(), "Request Error", JOptionPane.ERROR_MESSAGE);
-        }
+    // Runs the callback on the event thread once the future completes
+    private static <T> void onEdt(CompletableFuture<T> future, BiConsumer<T, Throwable> callback) {
+        future.whenComplete((result, failure) -> SwingUtilities.invokeLater(() -> callback.accept(result, failure)));
     }
 
-    private void sendRequest(String request, byte[] fileData) {
-        try {
-            byte[] requestData = request.getBytes();
-            byte[] sendData = new byte[requestData.length + fileData.length];
-            System.arraycopy(requestData, 0, sendData, 0, requestData.length);
-            System.arraycopy(fileData, 0, sendData, requestData.length, fileData.length);
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, SERVER_PORT);
-            clientSocket.send(sendPacket);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static void showError(Component parent, String message, String title, Throwable failure) {
+        JOptionPane.showMessageDialog(parent, message + ClientEngine.asIOException(failure).getMessage(), title, JOptionPane.ERROR_MESSAGE);
+    }
+
+    // Pages are fetched by the list model's own thread and block it, never the event thread
+    class ListingLoader {
+
+        private final String accountName;
+
+        ListingLoader(String accountName) {
+            this.accountName = accountName;
+        }
+
+        MailboxListModel.Loader view(MailboxIndex.Sort sort, String filter) {
+            return (cursor, limit, into) -> ClientEngine.await(engine.list(accountName, sort, filter, cursor, limit, into));
         }
     }
 
     class RegisterFrame extends JFrame {
 
-        private DatagramSocket clientSocket;
-        private InetAddress serverAddress;
         private JTextField accountField;
 
-        public RegisterFrame(DatagramSocket clientSocket, InetAddress serverAddress) {
-            this.clientSocket = clientSocket;
-            this.serverAddress = serverAddress;
-
+        public RegisterFrame() {
             setTitle("Register");
             setSize(300, 200);
             setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
@@ -102,7 +104,7 @@ public class Client extends JFrame {
 
             accountField = new JTextField(20);
             JButton createAccountButton = new JButton("Create Account");
-            createAccountButton.addActionListener(e -> sendRequest("CREATE_ACCOUNT:" + accountField.getText()));
+            createAccountButton.addActionListener(e -> createAccount(createAccountButton));
 
             panel.add(new JLabel("Enter account name:"));
             panel.add(accountField);
@@ -112,27 +114,25 @@ public class Client extends JFrame {
             setVisible(true);
         }
 
-        private void sendRequest(String request) {
-            try {
-                byte[] sendData = request.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, SERVER_PORT);
-                clientSocket.send(sendPacket);
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, "Failed to send request: " + e.getMessage(), "Request Error", JOptionPane.ERROR_MESSAGE);
-            }
+        private void createAccount(JButton button) {
+            button.setEnabled(false);
+            onEdt(engine.request(Opcode.CREATE_ACCOUNT, accountField.getText()), (reply, failure) -> {
+                button.setEnabled(true);
+                if (failure != null) {
+                    showError(this, "Failed to create account: ", "Register Error", failure);
+                } else {
+                    JOptionPane.showMessageDialog(this, reply.payloadText());
+                }
+            });
         }
     }
 
     class LoginFrame extends JFrame {
 
-        private DatagramSocket clientSocket;
-        private InetAddress serverAddress;
         private JTextField accountField;
+        private JButton loginButton;
 
-        public LoginFrame(DatagramSocket clientSocket, InetAddress serverAddress) {
-            this.clientSocket = clientSocket;
-            this.serverAddress = serverAddress;
-
+        public LoginFrame() {
             setTitle("Login");
             setSize(300, 200);
             setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
@@ -141,7 +141,7 @@ public class Client extends JFrame {
             panel.setLayout(new GridLayout(2, 1));
 
             accountField = new JTextField(20);
-            JButton loginButton = new JButton("Login");
+            loginButton = new JButton("Login");
             loginButton.addActionListener(e -> login());
 
             panel.add(new JLabel("Enter account name:"));
@@ -153,49 +153,42 @@ public class Client extends JFrame {
         }
 
         private void login() {
-            accountName = accountField.getText();
-            sendRequest("LOGIN:" + accountName);
-
-            // Receive file list
-            try {
-                byte[] receiveData = new byte[1024];
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                clientSocket.receive(receivePacket);
-                String fileList = new String(receivePacket.getData(), 0, receivePacket.getLength());
-                JOptionPane.showMessageDialog(this, "Files in account: " + fileList);
-                new MainFrame(clientSocket, serverAddress, accountName, fileList);
+            String account = accountField.getText();
+            loginButton.setEnabled(false);
+
+            // An empty page only checks the account and counts its files; the list itself loads as it is scrolled
+            onEdt(engine.list(account, MailboxIndex.Sort.NAME, "", 0, 0, new ArrayList<>()), (files, failure) -> {
+                loginButton.setEnabled(true);
+                if (failure != null) {
+                    showError(this, "Failed to receive file list: ", "Receive Error", failure);
+                    return;
+                }
+                JOptionPane.showMessageDialog(this, "Files in account: " + files);
+                new MainFrame(account, new ListingLoader(account));
                 dispose();
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, "Failed to receive file list: " + e.getMessage(), "Receive Error", JOptionPane.ERROR_MESSAGE);
-            }
-        }
-
-        private void sendRequest(String request) {
-            try {
-                byte[] sendData = request.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, SERVER_PORT);
-                clientSocket.send(sendPacket);
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, "Failed to send request: " + e.getMessage(), "Request Error", JOptionPane.ERROR_MESSAGE);
-            }
+            });
         }
     }
 
     class MainFrame extends JFrame {
 
-        private DatagramSocket clientSocket;
-        private InetAddress serverAddress;
         private String accountName;
         private JTextArea emailContent;
         private JTextField toField;
-
-        public MainFrame(DatagramSocket clientSocket, InetAddress serverAddress, String accountName, String fileList) {
-            this.clientSocket = clientSocket;
-            this.serverAddress = serverAddress;
+        private final ListingLoader listing;
+        private final JList<MailboxEntry> fileList = new JList<>();
+        private final JTextField filterField = new JTextField(12);
+        private final JTextField searchField = new JTextField(12);
+        private final JComboBox<MailboxIndex.Sort> sortBox = new JComboBox<>(MailboxIndex.Sort.values());
+        private final JPanel transfersPanel = new JPanel();
+        private MailboxListModel fileModel;
+
+        public MainFrame(String accountName, ListingLoader listing) {
             this.accountName = accountName;
+            this.listing = listing;
 
             setTitle("Mail Client - " + accountName);
-            setSize(400, 400);
+            setSize(400, 600);
             setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
             JPanel panel = new JPanel();
@@ -215,18 +208,33 @@ public class Client extends JFrame {
             panel.add(sendEmailButton);
             panel.add(sendFileButton);
 
-            add(panel, BorderLayout.CENTER);
+            transfersPanel.setLayout(new BoxLayout(transfersPanel, BoxLayout.Y_AXIS));
+            JPanel top = new JPanel(new BorderLayout());
+            top.add(panel, BorderLayout.CENTER);
+            top.add(transfersPanel, BorderLayout.SOUTH);
+            add(top, BorderLayout.CENTER);
 
             // Display file list
-            updateFileList(fileList);
+            add(createFileList(), BorderLayout.SOUTH);
+            updateFileList();
 
+            addWindowListener(new java.awt.event.WindowAdapter() {
+                @Override
+                public void windowClosing(java.awt.event.WindowEvent windowEvent) {
+                    engine.close();
+                }
+            });
             setVisible(true);
         }
 
         private void sendEmail() {
             String toAccount = toField.getText();
             String content = emailContent.getText();
-            sendRequest("SEND_EMAIL:" + accountName + ":" + toAccount + ":" + content);
+            try {
+                engine.send(Opcode.SEND_EMAIL, accountName, toAccount, content);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(this, "Failed to send request: " + e.getMessage(), "Request Error", JOptionPane.ERROR_MESSAGE);
+            }
         }
 
         private void sendEmailWithAttachment() {
@@ -239,86 +247,132 @@ public class Client extends JFrame {
             int returnValue = fileChooser.showOpenDialog(this);
             if (returnValue == JFileChooser.APPROVE_OPTION) {
                 File selectedFile = fileChooser.getSelectedFile();
-                try {
-                    byte[] fileData = Files.readAllBytes(selectedFile.toPath());
-                    String fileName = selectedFile.getName();
-                    int chunkSize = 1024; // Size of each chunk (max 1024 bytes)
-                    int totalChunks = (int) Math.ceil((double) fileData.length / chunkSize);
-
-                    for (int i = 0; i < totalChunks; i++) {
-                        int start = i * chunkSize;
-                        int length = Math.min(chunkSize, fileData.length - start);
-                        byte[] fileChunk = new byte[length];
-                        System.arraycopy(fileData, start, fileChunk, 0, length);
-
-                        // Create metadata for each chunk (includes fileName, chunk index, and total chunks)
-                        String request = String.format("SEND_EMAIL_WITH_ATTACHMENT:%s:%s:%s:%s:%d:%d",
-                                accountName, toAccount, content, fileName, i, totalChunks);
-
-                        System.out.println("Sending request: " + request);
-                        sendRequest(request, fileChunk);
+                String label = "Sending " + selectedFile.getName();
+                JProgressBar bar = addTransfer(label);
+                onEdt(engine.upload(accountName, toAccount, content, selectedFile.toPath(), progressOf(bar, label)), (done, failure) -> {
+                    removeTransfer(bar);
+                    if (failure != null) {
+                        showError(this, "Failed to send file: ", "Upload Error", failure);
+                    }
+                });
+            }
+        }
+
+        // Fixed cell sizes keep JList from measuring every row, so only the visible rows are ever fetched
+        private JPanel createFileList() {
+            fileList.setPrototypeCellValue(new MailboxEntry("email_from_someone@example.com.txt", 0, 0, 0));
+            fileList.setCellRenderer(new DefaultListCellRenderer() {
+                @Override
+                public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected, boolean focused) {
+                    super.getListCellRendererComponent(list, value, index, selected, focused);
+                    MailboxEntry entry = (MailboxEntry) value;
+                    setText(entry == null ? "Loading..." : entry.name() + "  "
+                            + MailStore.TIMESTAMP.format(Instant.ofEpochMilli(entry.timestamp())));
+                    return this;
+                }
+            });
+            fileList.addMouseListener(new java.awt.event.MouseAdapter() {
+                @Override
+                public void mouseClicked(java.awt.event.MouseEvent event) {
+                    MailboxEntry entry = fileList.getSelectedValue();
+                    if (event.getClickCount() == 2 && entry != null) {
+                        downloadFile(entry.name());
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
+            });
+            filterField.addActionListener(e -> updateFileList());
+            sortBox.addActionListener(e -> updateFileList());
+            searchField.addActionListener(e -> search(searchField.getText()));
+
+            JPanel controls = new JPanel();
+            controls.add(new JLabel("Filter:"));
+            controls.add(filterField);
+            controls.add(sortBox);
+            controls.add(new JLabel("Search:"));
+            controls.add(searchField);
+            JScrollPane scrollPane = new JScrollPane(fileList);
+            scrollPane.setPreferredSize(new Dimension(380, 200));
+            JPanel filePanel = new JPanel(new BorderLayout());
+            filePanel.add(controls, BorderLayout.NORTH);
+            filePanel.add(scrollPane, BorderLayout.CENTER);
+            return filePanel;
+        }
+
+        private void updateFileList() {
+            if (fileModel != null) {
+                fileModel.close();
             }
+            fileModel = new MailboxListModel(listing.view((MailboxIndex.Sort) sortBox.getSelectedItem(), filterField.getText()));
+            fileList.setModel(fileModel);
+            fileModel.refresh();
         }
 
-        private void updateFileList(String fileList) {
-            String[] files = fileList.split(",");
-            JPanel filePanel = new JPanel();
-            filePanel.setLayout(new GridLayout(files.length, 1));
-            for (String file : files) {
-                JButton fileButton = new JButton(file);
-                fileButton.addActionListener(e -> downloadFile(file));
-                filePanel.add(fileButton);
+        // The newest matches of words and "from:sender" terms, found by the server's search index
+        private void search(String query) {
+            if (query.isBlank()) {
+                return;
             }
-            add(filePanel, BorderLayout.SOUTH);
-            revalidate();
-            repaint();
+            List<SearchHit> hits = new ArrayList<>();
+            onEdt(engine.search(accountName, query, 0, 0, 0, SEARCH_RESULTS, hits), (total, failure) -> {
+                if (failure != null) {
+                    showError(this, "Failed to search: ", "Search Error", failure);
+                    return;
+                }
+                DefaultListModel<String> results = new DefaultListModel<>();
+                for (SearchHit hit : hits) {
+                    results.addElement(MailStore.TIMESTAMP.format(Instant.ofEpochMilli(hit.timestamp())) + "  "
+                            + hit.from() + ": " + hit.preview());
+                }
+                JScrollPane pane = new JScrollPane(new JList<>(results));
+                pane.setPreferredSize(new Dimension(500, 300));
+                JOptionPane.showMessageDialog(this, pane, total + " messages match \"" + query + "\"", JOptionPane.PLAIN_MESSAGE);
+            });
         }
 
         private void downloadFile(String fileName) {
-            sendRequest("DOWNLOAD_FILE:" + accountName + ":" + fileName);
-            try {
-                byte[] receiveData = new byte[1024];
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                clientSocket.receive(receivePacket);
-
-                try (FileOutputStream fos = new FileOutputStream(fileName)) {
-                    fos.write(receivePacket.getData(), 0, receivePacket.getLength());
+            String label = "Downloading " + fileName;
+            JProgressBar bar = addTransfer(label);
+            onEdt(engine.download(accountName, fileName, Paths.get(fileName), progressOf(bar, label)), (target, failure) -> {
+                removeTransfer(bar);
+                if (failure != null) {
+                    showError(this, "Failed to download file: ", "Download Error", failure);
+                } else {
                     JOptionPane.showMessageDialog(this, "File downloaded successfully!");
                 }
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, "Failed to download file: " + e.getMessage(), "Download Error", JOptionPane.ERROR_MESSAGE);
-            }
+            });
         }
 
-        private void sendRequest(String request) {
-            try {
-                byte[] sendData = request.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, SERVER_PORT);
-                clientSocket.send(sendPacket);
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, "Failed to send request: " + e.getMessage(), "Request Error", JOptionPane.ERROR_MESSAGE);
-            }
+        // One labelled bar per upload or download in progress, so several can run side by side
+        private JProgressBar addTransfer(String label) {
+            JProgressBar bar = new JProgressBar(0, 100);
+            bar.setString(label);
+            bar.setStringPainted(true);
+            transfersPanel.add(bar);
+            transfersPanel.revalidate();
+            return bar;
         }
 
-        private void sendRequest(String request, byte[] fileData) {
-            try {
-                byte[] requestData = request.getBytes(StandardCharsets.UTF_8);
-                byte[] sendData = new byte[requestData.length + fileData.length];
-                System.arraycopy(requestData, 0, sendData, 0, requestData.length);
-                System.arraycopy(fileData, 0, sendData, requestData.length, fileData.length);
+        private void removeTransfer(JProgressBar bar) {
+            transfersPanel.remove(bar);
+            transfersPanel.revalidate();
+            transfersPanel.repaint();
+        }
 
-                System.out.println("Sending data length: " + sendData.length);
-                System.out.println("Sending request: " + request);
+        // The bar's label also shows how many chunks the transfer may have in flight and, when paced, how fast it sends
+        private ClientEngine.Progress progressOf(JProgressBar bar, String label) {
+            return new ClientEngine.Progress() {
+                @Override
+                public void update(long done, long total) {
+                    SwingUtilities.invokeLater(() -> bar.setValue(total == 0 ? 100 : (int) (done * 100 / total)));
+                }
 
-                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, SERVER_PORT);
-                clientSocket.send(sendPacket);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+                @Override
+                public void congestion(int window, long pacingRate) {
+                    String status = label + " - window " + window
+                            + (pacingRate > 0 ? String.format(", %.1f MB/s", pacingRate / 1e6) : "");
+                    SwingUtilities.invokeLater(() -> bar.setString(status));
+                }
+            };
         }
     }
-}
\ No newline at end of file
+}
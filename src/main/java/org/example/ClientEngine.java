@@ -0,0 +1,459 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The client's side of the wire, kept off the Swing event thread. One receiver thread reads
+// every datagram and hands it, by the id in its frame, to whichever request, upload or
+// download is waiting for that id; replies to requests that already gave up are dropped.
+// Each request, upload and download runs on a virtual thread of its own and completes a
+// CompletableFuture, so any number of them can be in flight at once. Requests the server
+// can safely see twice are resent after a timeout a few times before they fail; uploads and
+// downloads report progress as their chunks are acknowledged or arrive.
+public class ClientEngine implements Closeable {
+
+    public interface Progress {
+        // Called from the transfer's thread, at most once per percent
+        void update(long doneBytes, long totalBytes);
+
+        // The transfer's congestion window in chunks and pacing rate in bytes per second, 0 when
+        // unpaced; called right after each update
+        default void congestion(int window, long pacingRate) {
+        }
+    }
+
+    public interface IoTask<T> {
+        T call() throws IOException;
+    }
+
+    private static final int MAX_DATAGRAM = PathMtu.MAX_DATAGRAM;
+    private static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+    private static final int REPLY_TIMEOUT_MS = 5000;
+    private static final int REQUEST_ATTEMPTS = 3;
+    private static final int PROBE_TIMEOUT_MS = 250;
+    private static final int PROBE_ATTEMPTS = 2;
+    // Well inside the server's default 60s session timeout
+    private static final long HEARTBEAT_INTERVAL_MS = 20000;
+    private static final String CONGESTION_CONTROL = System.getProperty("mail.congestion", "aimd");
+
+    private final DatagramSocket socket;
+    private final InetAddress server;
+    private final int port;
+    private final AtomicLong nextId = new AtomicLong(1);
+    // Requests, range requests and heartbeats all encode into this one buffer, taking turns; upload
+    // chunks and probes have buffers of their own
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_DATAGRAM);
+    private final ReentrantLock sending = new ReentrantLock();
+    private final Map<Long, BlockingQueue<Frame>> routes = new ConcurrentHashMap<>();
+    private final ExecutorService tasks = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mail-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Upload chunk size for this server, from the path MTU probe at connect
+    private volatile int chunkSize = 1024;
+
+    public ClientEngine(InetAddress server, int port) throws SocketException {
+        this.server = server;
+        this.port = port;
+        socket = new DatagramSocket();
+        socket.setReceiveBufferSize(SOCKET_BUFFER);
+        socket.setSendBufferSize(SOCKET_BUFFER);
+        Thread.ofPlatform().name("mail-client-receiver").daemon(true).start(this::receive);
+    }
+
+    // Announces the client, probes the path MTU and starts the heartbeat; completes with the upload chunk size
+    public CompletableFuture<Integer> connect() {
+        return async(() -> {
+            send(Opcode.CONNECT, nextId.getAndIncrement(), 0, null);
+            chunkSize = PathMtu.chunkSize(PathMtu.discover(server, port, this::probe));
+            heartbeat.scheduleAtFixedRate(this::sendHeartbeat, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            return chunkSize;
+        });
+    }
+
+    // For requests the server does not answer
+    public void send(Opcode opcode, String... fields) throws IOException {
+        send(opcode, nextId.getAndIncrement(), 0, null, fields);
+    }
+
+    // Completes with the REPLY, or exceptionally with the text of an ERROR or a SocketTimeoutException
+    public CompletableFuture<Frame> request(Opcode opcode, long seq, ByteBuffer payload, String... fields) {
+        return async(() -> {
+            try (Inbox inbox = new Inbox()) {
+                return inbox.request(opcode, seq, payload, fields);
+            }
+        });
+    }
+
+    public CompletableFuture<Frame> request(Opcode opcode, String... fields) {
+        return request(opcode, 0, null, fields);
+    }
+
+    // One LIST page into the list; completes with the number of entries that match the filter
+    public CompletableFuture<Integer> list(String account, MailboxIndex.Sort sort, String filter, int cursor, int limit, List<MailboxEntry> into) {
+        ByteBuffer params = ByteBuffer.allocate(11);
+        Frame.putVarint(params, limit);
+        params.put((byte) sort.ordinal());
+        return async(() -> {
+            try (Inbox inbox = new Inbox()) {
+                ByteBuffer page = inbox.request(Opcode.LIST, cursor, params.flip(), account, filter).payload();
+                int total = (int) Frame.getVarint(page);
+                for (long count = Frame.getVarint(page); count > 0; count--) {
+                    into.add(MailboxEntry.read(page));
+                }
+                return total;
+            }
+        });
+    }
+
+    // One SEARCH page into the list, newest first; since and until are epoch milliseconds, 0 for no bound.
+    // Completes with the number of messages that match.
+    public CompletableFuture<Integer> search(String account, String query, long since, long until, int cursor, int limit,
+                                             List<SearchHit> into) {
+        ByteBuffer params = ByteBuffer.allocate(30);
+        Frame.putVarint(params, limit);
+        Frame.putVarint(params, since);
+        Frame.putVarint(params, until);
+        return async(() -> {
+            try (Inbox inbox = new Inbox()) {
+                ByteBuffer page = inbox.request(Opcode.SEARCH, cursor, params.flip(), account, query).payload();
+                int total = (int) Frame.getVarint(page);
+                for (long count = Frame.getVarint(page); count > 0; count--) {
+                    into.add(SearchHit.read(page));
+                }
+                return total;
+            }
+        });
+    }
+
+    // Sender, recipient, content and file name go out once with ATTACH_BEGIN; chunks only carry the transfer id and index
+    public CompletableFuture<Void> upload(String from, String to, String content, Path file, Progress progress) {
+        return upload(from, to, content, file, file.getFileName().toString(), progress);
+    }
+
+    // Uploads the file under another name than its own
+    public CompletableFuture<Void> upload(String from, String to, String content, Path file, String fileName, Progress progress) {
+        return async(() -> {
+            try (Inbox inbox = new Inbox();
+                 FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                int chunkSize = this.chunkSize;
+                long fileSize = source.size();
+                int totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+                ByteBuffer sizes = ByteBuffer.allocate(30);
+                Frame.putVarint(sizes, fileSize);
+                Frame.putVarint(sizes, chunkSize);
+                // The modification time tells the server it is still the same file if this upload is resumed
+                Frame.putVarint(sizes, Math.max(1, Files.getLastModifiedTime(file).toMillis()));
+                Frame ready = inbox.request(Opcode.ATTACH_BEGIN, totalChunks, sizes.flip(), from, to, content, fileName);
+                int resumeAt = (int) Math.min(ready.seq(), totalChunks);
+
+                ByteBuffer chunk = ByteBuffer.allocate(Frame.MAX_HEADER + chunkSize);
+                CongestionController controller = CongestionController.create(CONGESTION_CONTROL, ReliableSender.MAX_WINDOW);
+                Reporter reporter = new Reporter(progress, fileSize, controller);
+                reporter.update((long) resumeAt * chunkSize);
+                new ReliableSender(new ReliableSender.Link() {
+                    @Override
+                    public void sendChunk(int index) throws IOException {
+                        long position = (long) index * chunkSize;
+                        int length = (int) Math.min(chunkSize, fileSize - position);
+                        chunk.clear();
+                        Frame.encode(chunk, Opcode.ATTACH_CHUNK, inbox.id, index);
+                        chunk.limit(chunk.position() + length);
+                        while (chunk.hasRemaining()) {
+                            if (source.read(chunk, position + length - chunk.remaining()) < 0) {
+                                throw new EOFException("File shrank while it was being sent");
+                            }
+                        }
+                        transmit(chunk);
+                    }
+
+                    @Override
+                    public Frame receiveAck(long timeoutMillis) throws IOException {
+                        return inbox.poll(timeoutMillis, Opcode.ACK, Opcode.NACK);
+                    }
+
+                    @Override
+                    public void progress(int ackedChunks, int totalChunks) {
+                        reporter.update((long) ackedChunks * chunkSize);
+                    }
+                }, totalChunks, chunkSize, controller, resumeAt).run();
+                reporter.update(fileSize);
+                return null;
+            }
+        });
+    }
+
+    // The reply describes the file; the data itself is pulled in ranges, deflated if the server stores it so
+    public CompletableFuture<Path> download(String account, String fileName, Path target, Progress progress) {
+        return async(() -> {
+            try (Inbox inbox = new Inbox()) {
+                Frame reply = inbox.request(Opcode.DOWNLOAD_FILE, 0, ByteBuffer.wrap(new byte[] {ChunkedDownload.ACCEPT_DEFLATE}),
+                        account, fileName);
+                ByteBuffer info = reply.payload();
+                long fileSize = Frame.getVarint(info);
+                int chunkSize = (int) Frame.getVarint(info);
+                byte[] digest = new byte[FileDigests.LENGTH];
+                info.get(digest);
+                int encoding = info.hasRemaining() ? info.get() : ChunkedDownload.IDENTITY;
+
+                ByteBuffer range = ByteBuffer.allocate(21);
+                CongestionController controller = CongestionController.create(CONGESTION_CONTROL, ReliableSender.MAX_WINDOW);
+                Reporter reporter = new Reporter(progress, fileSize, controller);
+                new ChunkedDownload(new ChunkedDownload.Link() {
+                    @Override
+                    public void requestRange(int firstChunk, int count) throws IOException {
+                        range.clear();
+                        Frame.putVarint(range, count);
+                        Frame.putVarint(range, chunkSize);
+                        range.put((byte) encoding);
+                        send(Opcode.DOWNLOAD_RANGE, inbox.id, firstChunk, range.flip(), account, fileName);
+                    }
+
+                    @Override
+                    public Frame receiveData(long timeoutMillis) throws IOException {
+                        return inbox.poll(timeoutMillis, Opcode.DOWNLOAD_DATA, Opcode.DOWNLOAD_DATA);
+                    }
+
+                    @Override
+                    public void progress(int receivedChunks, int totalChunks) {
+                        reporter.update((long) receivedChunks * chunkSize);
+                    }
+                }, target, fileSize, chunkSize, digest, encoding, controller).run();
+                reporter.update(fileSize);
+                return target;
+            }
+        });
+    }
+
+    // Runs blocking client work on a virtual thread
+    public <T> CompletableFuture<T> async(IoTask<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, tasks);
+    }
+
+    // Waits for a future from a thread that may block, unwrapping its IOException
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server");
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    // The failure behind a future's exception, for messages shown to the user
+    public static IOException asIOException(Throwable failure) {
+        while ((failure instanceof CompletionException || failure instanceof ExecutionException) && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        return failure instanceof IOException io ? io : new IOException(failure);
+    }
+
+    // Says goodbye to the server and stops every thread; transfers in progress fail
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+        try {
+            send(Opcode.DISCONNECT);
+        } catch (IOException e) {
+            // The server expires the session instead
+        }
+        socket.close();
+        tasks.shutdownNow();
+    }
+
+    // Sends a padded probe of exactly this size; the server echoes the size it received
+    private boolean probe(int datagramBytes) throws IOException {
+        try (Inbox inbox = new Inbox()) {
+            ByteBuffer probe = ByteBuffer.allocate(datagramBytes);
+            Frame.encode(probe, Opcode.MTU_PROBE, inbox.id, datagramBytes);
+            probe.position(datagramBytes);
+            for (int attempt = 0; attempt < PROBE_ATTEMPTS; attempt++) {
+                try {
+                    transmit(probe);
+                } catch (IOException e) {
+                    // EMSGSIZE: larger than the local interface allows
+                    return false;
+                }
+                Frame reply = inbox.poll(PROBE_TIMEOUT_MS, Opcode.MTU_PROBE, Opcode.MTU_PROBE);
+                if (reply != null) {
+                    return reply.seq() == datagramBytes;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Requests that change nothing, and ATTACH_BEGIN, which the server matches by id to the upload
+    // it already opened; a second CREATE_ACCOUNT would fail with "Account already exists!"
+    private static boolean isIdempotent(Opcode opcode) {
+        return switch (opcode) {
+            case LOGIN, LIST, SEARCH, DOWNLOAD_FILE, ATTACH_BEGIN -> true;
+            default -> false;
+        };
+    }
+
+    // Keeps the session alive while the user is idle; the echo goes to no one and is dropped
+    private void sendHeartbeat() {
+        try {
+            send(Opcode.HEARTBEAT);
+        } catch (IOException e) {
+            // The next request reports a broken connection
+        }
+    }
+
+    private void send(Opcode opcode, long id, long seq, ByteBuffer payload, String... fields) throws IOException {
+        sending.lock();
+        try {
+            ByteBuffer out = sendBuffer.clear();
+            Frame.encode(out, opcode, id, seq, fields);
+            if (payload != null) {
+                out.put(payload);
+            }
+            transmit(out);
+        } finally {
+            sending.unlock();
+        }
+    }
+
+    // DatagramSocket.send is thread-safe, so threads with a buffer of their own need no lock
+    private void transmit(ByteBuffer datagram) throws IOException {
+        socket.send(new DatagramPacket(datagram.array(), 0, datagram.position(), server, port));
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                ByteBuffer data = ByteBuffer.wrap(Arrays.copyOf(buffer, packet.getLength()));
+                if (!Frame.isFramed(data)) {
+                    continue;
+                }
+                Frame frame = new Frame().decode(data);
+                BlockingQueue<Frame> inbox = routes.get(frame.id());
+                if (inbox != null) {
+                    inbox.add(frame);
+                }
+            } catch (IOException e) {
+                if (socket.isClosed()) {
+                    return;
+                }
+                // A malformed datagram or an ICMP error from an earlier send; keep listening
+            }
+        }
+    }
+
+    // Frames addressed to one request id, registered for as long as the request, upload or download runs
+    private final class Inbox implements AutoCloseable {
+        final long id = nextId.getAndIncrement();
+        private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+
+        Inbox() {
+            routes.put(id, frames);
+        }
+
+        Frame request(Opcode opcode, long seq, ByteBuffer payload, String... fields) throws IOException {
+            // A lost reply does not mean the request was lost, so anything else goes out once and
+            // waits as long as all the attempts would have
+            int attempts = isIdempotent(opcode) ? REQUEST_ATTEMPTS : 1;
+            long timeout = REPLY_TIMEOUT_MS * REQUEST_ATTEMPTS / attempts;
+            for (int attempt = 1; ; attempt++) {
+                send(opcode, id, seq, payload == null ? null : payload.duplicate(), fields);
+                Frame reply = poll(timeout, Opcode.REPLY, Opcode.ERROR);
+                if (reply != null) {
+                    if (reply.opcode() == Opcode.ERROR) {
+                        throw new IOException(reply.payloadText());
+                    }
+                    return reply;
+                }
+                if (attempt == attempts) {
+                    throw new SocketTimeoutException("No reply to " + opcode + " in " + attempt * timeout / 1000 + " seconds");
+                }
+            }
+        }
+
+        // Next frame with one of the given opcodes, or null once the timeout passes
+        Frame poll(long timeoutMillis, Opcode first, Opcode second) throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                while (true) {
+                    Frame frame = frames.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (frame == null || frame.opcode() == first || frame.opcode() == second) {
+                        return frame;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Cancelled");
+            }
+        }
+
+        @Override
+        public void close() {
+            routes.remove(id);
+        }
+    }
+
+    // Forwards progress, and the state of the transfer's congestion controller, whenever it crosses another percent
+    private static final class Reporter {
+        private final Progress progress;
+        private final long total;
+        private final CongestionController controller;
+        private int percent = -1;
+
+        Reporter(Progress progress, long total, CongestionController controller) {
+            this.progress = progress;
+            this.total = total;
+            this.controller = controller;
+        }
+
+        void update(long done) {
+            done = Math.min(done, total);
+            int now = total == 0 ? 100 : (int) (done * 100 / total);
+            if (progress != null && now != percent) {
+                percent = now;
+                progress.update(done, total);
+                progress.congestion(controller.window(), controller.pacingRate());
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Cluster mode: several servers, each owning the accounts the ShardMap gives it. A client may
+// talk to any node. A request for an account owned elsewhere is wrapped in a FORWARD frame
+// with the client's address and sent to the owner, which handles it as if the client had sent
+// it and replies to the client directly. Uploads and downloads are forwarded by transfer id
+// once their first request has been. Requests that come from another node are always handled
+// locally, so nodes with different maps cannot bounce a request between them.
+//
+// When the node list changes, rebalance() moves every local mailbox that now belongs to
+// another node there, as one archive uploaded like an attachment.
+public class Cluster implements Closeable {
+
+    // FORWARD header, address length, an IPv6 address and the port
+    public static final int FORWARD_OVERHEAD = Frame.MAX_HEADER + 1 + 16 + 3;
+    private static final long REBALANCE_RETRY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    public interface Migrator {
+        // Moves the account to its owner; false leaves it here to be tried again
+        boolean migrate(String account, InetSocketAddress owner);
+    }
+
+    private final ShardMap map;
+    private final String name;
+    private final byte[] secret;
+    private final InetSocketAddress self;
+    private final Set<InetSocketAddress> nodes;
+    private final Map<InetSocketAddress, ClientEngine> engines = new ConcurrentHashMap<>();
+    // Not a monitor: connecting blocks on a virtual thread, which would pin its carrier
+    private final ReentrantLock connecting = new ReentrantLock();
+    private volatile boolean closed;
+    private Thread rebalancer;
+
+    public Cluster(ShardMap map, String name, String secret) {
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("Cluster mode needs mail.clusterSecret, the same on every node");
+        }
+        this.map = map;
+        this.name = name;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.self = ShardMap.address(name);
+        this.nodes = new HashSet<>(map.nodes());
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("This node, " + name + ", is not in the cluster");
+        }
+    }
+
+    // Null when the server runs on its own
+    public static Cluster of(ServerConfig config) {
+        return config.cluster.isEmpty() ? null : new Cluster(ShardMap.parse(config.cluster), config.node,
+                config.clusterSecret);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    // What this node's uploads to other nodes carry as their content
+    public String secret() {
+        return new String(secret, StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public boolean owns(String account) {
+        return map.owner(account).equals(self);
+    }
+
+    public InetSocketAddress owner(String account) {
+        return map.owner(account);
+    }
+
+    public boolean isNode(SocketAddress address) {
+        return nodes.contains(address);
+    }
+
+    // Requests from a node's own socket, or from the connection it passes uploads on with
+    public boolean isNode(Session session) {
+        return session.isPeer() || nodes.contains(session.address());
+    }
+
+    // The node that should handle this request, or null when it is this one
+    public InetSocketAddress route(Frame frame, Session session) {
+        if (frame.opcode() == null || isNode(session)) {
+            return null;
+        }
+        if (frame.opcode() == Opcode.ATTACH_BEGIN && isPeer(frame)) {
+            session.peer();
+            return null;
+        }
+        InetSocketAddress owner;
+        switch (frame.opcode()) {
+            case SEND_EMAIL:
+                owner = single(frame.field(1));
+                break;
+            case ATTACH_BEGIN:
+                owner = single(frame.field(1));
+                if (owner != null && !owner.equals(self)) {
+                    session.forwarded(frame.id(), owner);
+                }
+                break;
+            case ATTACH_CHUNK:
+                owner = frame.isLegacy() ? single(frame.field(1)) : session.forwardedTo(frame.id());
+                break;
+            case DOWNLOAD_FILE:
+                owner = map.owner(frame.field(0));
+                if (!owner.equals(self)) {
+                    session.forwarded(frame.id(), owner);
+                }
+                break;
+            case DOWNLOAD_RANGE:
+                owner = session.forwardedTo(frame.id());
+                break;
+            case CREATE_ACCOUNT:
+            case LOGIN:
+            case LIST:
+            case SEARCH:
+                owner = map.owner(frame.field(0));
+                break;
+            default:
+                owner = null;
+                break;
+        }
+        return self.equals(owner) ? null : owner;
+    }
+
+    // A node uploads from a ClientEngine on a port of its own, so neither its address nor the
+    // sender it names says it is a node; the cluster secret in the content field does
+    private boolean isPeer(Frame frame) {
+        return MessageDigest.isEqual(secret, frame.field(2).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Several recipients may live on several nodes, so this node splits them up itself
+    private InetSocketAddress single(String toAccount) {
+        if (toAccount.isEmpty() || toAccount.indexOf(',') >= 0 || toAccount.charAt(0) == MailingLists.PREFIX) {
+            return null;
+        }
+        return map.owner(toAccount);
+    }
+
+    // Recipients grouped by the node that owns them, in the order they were given
+    public Map<InetSocketAddress, List<String>> byOwner(List<String> accounts) {
+        Map<InetSocketAddress, List<String>> groups = new LinkedHashMap<>();
+        for (String account : accounts) {
+            groups.computeIfAbsent(map.owner(account), node -> new ArrayList<>()).add(account);
+        }
+        return groups;
+    }
+
+    public boolean isSelf(InetSocketAddress node) {
+        return self.equals(node);
+    }
+
+    // FORWARD: no fields; the payload is the client's address (length byte, bytes, varint port)
+    // followed by the datagram exactly as the client sent it
+    public static void encodeForward(ByteBuffer out, InetSocketAddress client, ByteBuffer datagram) {
+        Frame.encode(out, Opcode.FORWARD, 0, 0);
+        byte[] address = client.getAddress().getAddress();
+        out.put((byte) address.length);
+        out.put(address);
+        Frame.putVarint(out, client.getPort());
+        out.put(datagram.duplicate());
+    }
+
+    // The client a FORWARD frame is for; the datagram it carries starts where the buffer's position is left
+    public static InetSocketAddress decodeForward(Frame frame, ByteBuffer datagram) throws IOException {
+        ByteBuffer payload = frame.payload();
+        int length = payload.hasRemaining() ? payload.get() : 0;
+        if ((length != 4 && length != 16) || payload.remaining() < length) {
+            throw new ProtocolException("Malformed forwarded address");
+        }
+        byte[] address = new byte[length];
+        payload.get(address);
+        int port = (int) Frame.getVarint(payload);
+        datagram.position(datagram.limit() - payload.remaining());
+        return new InetSocketAddress(InetAddress.getByAddress(address), port);
+    }
+
+    // A connection to another node for moving mailboxes and attachments, opened on first use
+    public ClientEngine engine(InetSocketAddress node) throws IOException {
+        ClientEngine engine = engines.get(node);
+        if (engine != null) {
+            return engine;
+        }
+        connecting.lock();
+        try {
+            engine = engines.get(node);
+            if (engine == null) {
+                engine = new ClientEngine(node.getAddress(), node.getPort());
+                try {
+                    ClientEngine.await(engine.connect());
+                } catch (IOException e) {
+                    engine.close();
+                    throw e;
+                }
+                engines.put(node, engine);
+            }
+            return engine;
+        } finally {
+            connecting.unlock();
+        }
+    }
+
+    // Moves the accounts this node no longer owns on a "mail-rebalance" thread, trying the
+    // ones that failed again until all are gone or the cluster is closed
+    public void rebalance(Collection<String> accounts, Migrator migrator) {
+        List<String> moving = new ArrayList<>();
+        for (String account : accounts) {
+            if (!owns(account)) {
+                moving.add(account);
+            }
+        }
+        if (moving.isEmpty()) {
+            return;
+        }
+        rebalancer = Thread.ofPlatform().name("mail-rebalance").daemon(true).start(() -> {
+            while (!closed) {
+                moving.removeIf(account -> !closed && migrator.migrate(account, map.owner(account)));
+                if (moving.isEmpty()) {
+                    return;
+                }
+                try {
+                    Thread.sleep(REBALANCE_RETRY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (rebalancer != null) {
+            rebalancer.interrupt();
+            try {
+                rebalancer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (ClientEngine engine : engines.values()) {
+            engine.close();
+        }
+        engines.clear();
+    }
+}
@@ -0,0 +1,33 @@
+package org.example;
+
+// Decides how many chunks a ReliableSender may keep in flight and, optionally, how
+// fast it may put them on the wire. Chosen with -Dmail.congestion=aimd|paced.
+public interface CongestionController {
+
+    // Chunks allowed in flight
+    int window();
+
+    // Current pacing rate in bytes per second, 0 when sends are not paced
+    long pacingRate();
+
+    // How long to wait before a chunk of this size may be sent, 0 to send now
+    long sendDelayNanos(long now, int bytes);
+
+    void onSent(long now, int bytes);
+
+    // rttNanos is negative when the ack gave no usable sample
+    void onAck(int chunks, long rttNanos);
+
+    void onLoss(boolean timeout);
+
+    static CongestionController create(String mode, int maxWindow) {
+        switch (mode) {
+            case "aimd":
+                return new AimdController(maxWindow);
+            case "paced":
+                return new PacedController(new AimdController(maxWindow));
+            default:
+                throw new IllegalArgumentException("Unknown congestion control mode: " + mode);
+        }
+    }
+}
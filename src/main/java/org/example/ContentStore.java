@@ -0,0 +1,110 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Message bodies that go to more than one mailbox, stored once under
+// MailServer/.content/<first two hex digits>/<sha256> and referred to by their digest.
+// Identical content sent twice shares one file. Recently read bodies are cached, since a
+// newsletter is read by many of its recipients.
+public class ContentStore {
+
+    public static final String FOLDER = ".content";
+    private static final int CACHED_BODIES = 256;
+
+    private final Path dir;
+    private final AtomicLong nextTemp = new AtomicLong();
+    private final Map<String, String> bodies = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHED_BODIES;
+        }
+    };
+
+    public ContentStore(Path root) {
+        this.dir = root.resolve(FOLDER);
+    }
+
+    // Stores the body unless the same bytes are already stored; returns its digest
+    public String putBody(String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String digest = HexFormat.of().formatHex(FileDigests.newSha256().digest(bytes));
+        Path target = path(digest);
+        if (!Files.exists(target)) {
+            Path temp = temp();
+            Files.write(temp, bytes);
+            publish(temp, target);
+        }
+        return digest;
+    }
+
+    // Rewrites the body if its file is missing or does not hold these bytes, e.g. after a crash mid-write
+    public void restore(String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String digest = HexFormat.of().formatHex(FileDigests.newSha256().digest(bytes));
+        Path target = path(digest);
+        if (Files.exists(target) && Arrays.equals(Files.readAllBytes(target), bytes)) {
+            return;
+        }
+        Path temp = temp();
+        Files.write(temp, bytes);
+        Files.createDirectories(target.getParent());
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (bodies) {
+            bodies.remove(digest);
+        }
+    }
+
+    public void force(String digest) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(digest), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    public String body(String digest) throws IOException {
+        synchronized (bodies) {
+            String body = bodies.get(digest);
+            if (body != null) {
+                return body;
+            }
+        }
+        String body = Files.readString(path(digest), StandardCharsets.UTF_8);
+        synchronized (bodies) {
+            bodies.put(digest, body);
+        }
+        return body;
+    }
+
+    public Path path(String digest) {
+        if (digest.length() != 64 || !digest.chars().allMatch(HexFormat::isHexDigit)) {
+            throw new IllegalArgumentException("Not a content digest: " + digest);
+        }
+        return dir.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private Path temp() throws IOException {
+        Files.createDirectories(dir);
+        return dir.resolve(ProcessHandle.current().pid() + "-" + nextTemp.incrementAndGet() + ".tmp");
+    }
+
+    private static void publish(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Stored by another sender in the meantime; the bytes are the same
+            Files.deleteIfExists(source);
+        }
+    }
+}
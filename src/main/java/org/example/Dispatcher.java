@@ -0,0 +1,97 @@
+package org.example;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Hands requests from the receive thread to a fixed set of worker lanes.
+// Every request carries a routing key (usually the account it touches) and all
+// requests with the same key land on the same lane, so they run in arrival order.
+// A full lane blocks the receive thread, which pushes back onto the socket buffer.
+public class Dispatcher {
+
+    private final Lane[] lanes;
+    private final Thread[] threads;
+
+    // A task that throws is reported to the log and the lane goes on with the next one
+    public Dispatcher(int workers, int queueDepth, boolean virtualThreads, Consumer<String> log) {
+        lanes = new Lane[Math.max(1, workers)];
+        threads = new Thread[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(queueDepth, log);
+            Thread.Builder builder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon(true);
+            threads[i] = builder.name("mail-worker-" + i).start(lanes[i]);
+        }
+    }
+
+    public void submit(long key, Runnable task) throws InterruptedException {
+        lanes[laneFor(key)].queue.put(task);
+    }
+
+    public int laneFor(long key) {
+        // Spread the bits so sequential ids and similar names do not pile onto one lane
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) ((mixed >>> 33) % lanes.length);
+    }
+
+    public int lanes() {
+        return lanes.length;
+    }
+
+    public int queuedTasks() {
+        int total = 0;
+        for (Lane lane : lanes) {
+            total += lane.queue.size();
+        }
+        return total;
+    }
+
+    // Lanes stop once their queue is empty; nothing may be submitted after this
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.running = false;
+        }
+    }
+
+    // Waits for the lanes to finish what was queued before shutdown(); false if some were still busy at the timeout
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Thread thread : threads) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0 || !thread.join(Duration.ofNanos(left))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Lane implements Runnable {
+        private final BlockingQueue<Runnable> queue;
+        private final Consumer<String> log;
+        private volatile boolean running = true;
+
+        Lane(int queueDepth, Consumer<String> log) {
+            queue = new ArrayBlockingQueue<>(Math.max(1, queueDepth));
+            this.log = log;
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                try {
+                    Runnable task = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (task != null) {
+                        task.run();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException e) {
+                    log.accept(Thread.currentThread().getName() + " - Task failed: " + e);
+                }
+            }
+        }
+    }
+}
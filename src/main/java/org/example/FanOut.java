@@ -0,0 +1,286 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Delivers one message or attachment to many mailboxes. The content is stored once, in the
+// ContentStore or the BlobStore, before the job is queued; a "mail-fanout" thread then gives
+// every recipient a reference to it, a batch of recipients at a time. Jobs take turns batch by batch, so a
+// 100k-recipient newsletter does not hold up a message to three people, and the appends
+// share the store's group commit instead of paying for a write each.
+//
+// With a Journal, each job is journaled with its recipients when it is queued and again after
+// each batch, so after a crash or a shutdown that cut it short, resume() delivers the rest.
+public class FanOut implements Closeable {
+
+    public interface Listener {
+        void finished(String what, int delivered, int skipped, long nanos);
+    }
+
+    public static final int BATCH = 1024;
+    // How long close() goes on delivering what is already queued
+    private static final long DRAIN_MILLIS = 10_000;
+    // Queued by close(); the worker stops when it comes round with nothing else queued
+    private static final Job STOP = new Job(0, null, null, null, null, null, List.of(), 0);
+
+    private final Path root;
+    private final MailStore store;
+    private final MailboxIndex index;
+    private final SearchIndex search;
+    private final BlobStore blobs;
+    private final Listener listener;
+    private final Consumer<String> log;
+    private final Journal journal;
+    private final AtomicLong nextNumber = new AtomicLong();
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final LongAdder delivered = new LongAdder();
+    private final Thread worker;
+    // Set once close() stops waiting; the worker then stops after the batch in progress
+    private volatile boolean abandoned;
+
+    private static final class Job {
+        final long number;
+        final String from;
+        final String body;
+        final String digest;
+        final BlobStore.Blob blob;
+        final String fileName;
+        final List<String> recipients;
+        final long timestamp;
+        final long started = System.nanoTime();
+        final CompletableFuture<Integer> done = new CompletableFuture<>();
+        int next;
+        int delivered;
+        // Set on a resumed job until the batch that was in progress when it stopped is done again
+        boolean resumed;
+
+        Job(long number, String from, String body, String digest, BlobStore.Blob blob, String fileName, List<String> recipients,
+            long timestamp) {
+            this.number = number;
+            this.from = from;
+            this.body = body;
+            this.digest = digest;
+            this.blob = blob;
+            this.fileName = fileName;
+            this.recipients = recipients;
+            this.timestamp = timestamp;
+        }
+
+        String describe() {
+            return blob == null ? "Email from " + from : "File " + fileName;
+        }
+    }
+
+    public FanOut(Path root, MailStore store, MailboxIndex index, SearchIndex search, BlobStore blobs, Listener listener,
+                  Journal journal, Consumer<String> log) {
+        this.root = root;
+        this.store = store;
+        this.index = index;
+        this.search = search;
+        this.blobs = blobs;
+        this.listener = listener;
+        this.log = log;
+        this.journal = journal;
+        worker = Thread.ofPlatform().name("mail-fanout").daemon(true).start(this::run);
+    }
+
+    // Completes with the number of mailboxes the message reached
+    public CompletableFuture<Integer> message(String from, List<String> recipients, String body, long timestamp) throws IOException {
+        Job job = new Job(nextNumber.incrementAndGet(), from, body, store.putBody(body), null, null, recipients, timestamp);
+        if (journal != null) {
+            journal.acknowledge(journal.fanOut(new Journal.FanOutJob(job.number, from, body, null, job.digest, recipients,
+                    timestamp, 0)));
+        }
+        return submit(job);
+    }
+
+    // Takes over the reference that BlobStore.put returned; each recipient gets a reference of its own
+    public CompletableFuture<Integer> file(BlobStore.Blob blob, String fileName, List<String> recipients) throws IOException {
+        Job job = new Job(nextNumber.incrementAndGet(), null, null, null, blob, fileName, recipients, 0);
+        if (journal != null) {
+            journal.acknowledge(journal.fanOut(new Journal.FanOutJob(job.number, null, null, fileName, blob.digest(),
+                    recipients, 0, 0)));
+        }
+        return submit(job);
+    }
+
+    // Queues what the journal says the previous run left undelivered; a file job still holds the
+    // caller's reference to its blob. Call once the mailbox index is loaded. Returns the recipients
+    // still to be delivered to.
+    public long resume(Collection<Journal.FanOutJob> jobs) throws IOException {
+        long remaining = 0;
+        for (Journal.FanOutJob saved : jobs) {
+            nextNumber.accumulateAndGet(saved.number(), Math::max);
+            BlobStore.Blob blob = saved.isFile() ? blobs.get(saved.digest()) : null;
+            if (saved.isFile() && blob == null) {
+                log.accept("File " + saved.fileName() + " is gone, so its delivery to "
+                        + (saved.recipients().size() - saved.delivered()) + " recipients cannot resume");
+                journal.delivered(saved.number(), saved.recipients().size());
+                continue;
+            }
+            Job job = new Job(saved.number(), saved.from(), saved.body(), saved.isFile() ? null : saved.digest(), blob,
+                    saved.fileName(), saved.recipients(), saved.timestamp());
+            job.next = saved.delivered();
+            job.resumed = true;
+            remaining += saved.recipients().size() - saved.delivered();
+            submit(job);
+        }
+        return remaining;
+    }
+
+    // Recipients still waiting for delivery
+    public long pending() {
+        return pending.get();
+    }
+
+    public long delivered() {
+        return delivered.sum();
+    }
+
+    // Delivers what is queued, for up to DRAIN_MILLIS. Deliveries still queued after that are left
+    // to the journal for the next start, or without one dropped and reported, the attachments among
+    // them giving back the caller's reference.
+    @Override
+    public void close() {
+        queue.add(STOP);
+        try {
+            worker.join(DRAIN_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        abandoned = true;
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long dropped = 0;
+        for (Job job : queue) {
+            if (job == STOP) {
+                continue;
+            }
+            dropped += job.recipients.size() - job.next;
+            if (job.blob != null && journal == null) {
+                adjust(job, -1);
+            }
+            job.done.complete(job.delivered);
+        }
+        queue.clear();
+        pending.set(0);
+        if (dropped > 0) {
+            log.accept(journal != null ? "Shut down with " + dropped + " queued deliveries left for the next start"
+                    : "Shut down before " + dropped + " queued deliveries were made");
+        }
+    }
+
+    private CompletableFuture<Integer> submit(Job job) {
+        pending.addAndGet(job.recipients.size());
+        queue.add(job);
+        return job.done;
+    }
+
+    private void run() {
+        while (!abandoned) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == STOP) {
+                if (queue.isEmpty()) {
+                    return;
+                }
+                queue.add(STOP);
+                continue;
+            }
+            int end = Math.min(job.recipients.size(), job.next + BATCH);
+            // A batch's references are counted before they are written and the surplus given
+            // back after, so a crash can leak a blob but never delete one still referred to
+            int reserved = job.blob == null ? 0 : reserve(job, end);
+            int before = job.delivered;
+            if (job.blob == null || reserved > 0) {
+                for (int i = job.next; i < end; i++) {
+                    if (deliver(job, job.recipients.get(i))) {
+                        job.delivered++;
+                    }
+                }
+            }
+            if (job.blob != null) {
+                adjust(job, job.delivered - before - reserved);
+            }
+            pending.addAndGet(job.next - end);
+            delivered.add(end - job.next);
+            job.next = end;
+            job.resumed = false;
+            if (journal != null) {
+                // After the batch's own records, so replay never finds the progress without the messages
+                journal.delivered(job.number, end);
+            }
+            if (end < job.recipients.size()) {
+                queue.add(job);
+            } else {
+                if (job.blob != null) {
+                    adjust(job, -1);
+                }
+                listener.finished(job.describe(), job.delivered, job.recipients.size() - job.delivered, System.nanoTime() - job.started);
+                job.done.complete(job.delivered);
+            }
+        }
+    }
+
+    private boolean deliver(Job job, String account) {
+        if (!index.exists(account)) {
+            return false;
+        }
+        try {
+            if (job.blob == null) {
+                // Stopping mid-batch leaves some of it delivered; the digest stands in for the body on disk
+                if (job.resumed && store.contains(account, job.from, job.digest, job.timestamp)) {
+                    return true;
+                }
+                store.appendReference(account, job.from, job.digest, job.timestamp);
+                index.messageAppended(account, job.from, job.timestamp);
+                search.added(account, job.from, job.body, job.timestamp);
+            } else {
+                Path reference = blobs.attach(root.resolve(account), job.fileName, job.blob);
+                index.fileAdded(account, job.fileName, Files.getLastModifiedTime(reference).toMillis(), job.blob.size());
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.accept("Failed to deliver " + job.describe() + " to " + account + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private int reserve(Job job, int end) {
+        int existing = 0;
+        for (int i = job.next; i < end; i++) {
+            if (index.exists(job.recipients.get(i))) {
+                existing++;
+            }
+        }
+        return adjust(job, existing) ? existing : 0;
+    }
+
+    private boolean adjust(Job job, int references) {
+        try {
+            blobs.retain(job.blob, references);
+            return true;
+        } catch (IOException e) {
+            log.accept("Failed to count references to " + job.describe() + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.example;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Binary wire frame:
+//
+//   magic/version  1 byte   top five bits 11111, low three bits the version
+//   opcode         1 byte
+//   id             varint   request id, echoed in replies, or transfer id
+//   seq            varint   chunk index, offset or cursor, 0 when unused
+//   field count    1 byte
+//   fields         varint length + UTF-8 bytes, repeated
+//   payload        the rest of the datagram
+//
+// 0xF8-0xFF never start a UTF-8 sequence, so a frame can't be mistaken for one of
+// the old colon-delimited text commands; those are still accepted through LegacyCommand.
+// Decoding only records offsets into the packet buffer and a Frame is reused per packet.
+public final class Frame {
+
+    public static final int MAGIC = 0xF8;
+    public static final int VERSION = 1;
+    public static final int MAX_FIELDS = 8;
+    public static final int MAX_HEADER = 1 + 1 + 10 + 10 + 1;
+    private static final int FIELD_SCRATCH = 256;
+
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldLength = new int[MAX_FIELDS];
+    private ByteBuffer buffer;
+    private Opcode opcode;
+    private long id;
+    private long seq;
+    private boolean legacy;
+    private int fieldCount;
+    private int payloadStart;
+    private int payloadEnd;
+    private int cursor;
+    // Fields in a direct buffer are copied out through this on their way to a String
+    private byte[] scratch;
+
+    public static boolean isFramed(ByteBuffer buffer) {
+        return buffer.hasRemaining() && (buffer.get(buffer.position()) & MAGIC) == MAGIC;
+    }
+
+    // Decodes the readable bytes of the buffer without moving its position
+    public Frame decode(ByteBuffer buffer) throws ProtocolException {
+        reset(buffer);
+        if (!isFramed(buffer)) {
+            LegacyCommand.decode(buffer, this);
+            return this;
+        }
+        cursor = buffer.position();
+        int version = buffer.get(cursor++) & 0x07;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported frame version " + version);
+        }
+        opcode = Opcode.of(readByte());
+        id = readVarint();
+        seq = readVarint();
+        int count = readByte();
+        if (count > MAX_FIELDS) {
+            throw new ProtocolException("Too many fields: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            int length = (int) readVarint();
+            if (length < 0 || length > buffer.limit() - cursor) {
+                throw new ProtocolException("Field " + i + " overruns the frame");
+            }
+            addField(cursor, length);
+            cursor += length;
+        }
+        payload(cursor, buffer.limit());
+        return this;
+    }
+
+    void reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        opcode = null;
+        id = 0;
+        seq = 0;
+        legacy = false;
+        fieldCount = 0;
+        payloadStart = buffer.limit();
+        payloadEnd = buffer.limit();
+    }
+
+    void legacy(Opcode opcode) {
+        this.opcode = opcode;
+        this.legacy = true;
+    }
+
+    void addField(int start, int length) throws ProtocolException {
+        if (fieldCount == MAX_FIELDS) {
+            throw new ProtocolException("Too many fields");
+        }
+        fieldStart[fieldCount] = start;
+        fieldLength[fieldCount] = length;
+        fieldCount++;
+    }
+
+    void payload(int start, int end) {
+        payloadStart = start;
+        payloadEnd = end;
+    }
+
+    private int readByte() throws ProtocolException {
+        if (cursor >= buffer.limit()) {
+            throw new ProtocolException("Truncated frame header");
+        }
+        return buffer.get(cursor++) & 0xFF;
+    }
+
+    private long readVarint() throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    public Opcode opcode() {
+        return opcode;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public long seq() {
+        return seq;
+    }
+
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public String field(int index) {
+        if (index >= fieldCount) {
+            return "";
+        }
+        int start = fieldStart[index];
+        int length = fieldLength[index];
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        // Unlike Charset.decode, which slices the buffer and decodes into a CharBuffer, this leaves
+        // the String as the only allocation for the account names and short fields most requests carry
+        if (scratch == null) {
+            scratch = new byte[FIELD_SCRATCH];
+        }
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(start, bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Same value for the same field bytes whichever way the frame was encoded; used for routing
+    public int fieldHash(int index) {
+        if (index >= fieldCount) {
+            return 0;
+        }
+        int hash = 1;
+        for (int i = fieldStart[index], end = i + fieldLength[index]; i < end; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        return hash;
+    }
+
+    public int payloadLength() {
+        return payloadEnd - payloadStart;
+    }
+
+    public ByteBuffer payload() {
+        return buffer.slice(payloadStart, payloadEnd - payloadStart);
+    }
+
+    public void copyPayload(byte[] target) {
+        buffer.get(payloadStart, target, 0, Math.min(target.length, payloadLength()));
+    }
+
+    public String payloadText() {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + payloadStart, payloadLength(), StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(payload()).toString();
+    }
+
+    // Writes a header whose fields follow; the caller then puts the payload
+    public static void encode(ByteBuffer out, Opcode opcode, long id, long seq, CharSequence... fields) {
+        header(out, opcode, id, seq, fields.length);
+        for (CharSequence field : fields) {
+            putVarint(out, utf8Length(field));
+            putUtf8(out, field);
+        }
+    }
+
+    // A header without fields, which most replies are; no empty varargs array per call
+    public static void encode(ByteBuffer out, Opcode opcode, long id, long seq) {
+        header(out, opcode, id, seq, 0);
+    }
+
+    private static void header(ByteBuffer out, Opcode opcode, long id, long seq, int fieldCount) {
+        out.put((byte) (MAGIC | VERSION));
+        out.put((byte) opcode.code);
+        putVarint(out, id);
+        putVarint(out, seq);
+        out.put((byte) fieldCount);
+    }
+
+    // Relative read, for varints carried in a payload
+    public static long getVarint(ByteBuffer in) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64 && in.hasRemaining(); shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    public static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    public static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public static void putUtf8(ByteBuffer out, CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                // Lone surrogates are written as U+FFFD so the length always matches utf8Length
+                if (Character.isSurrogate(c)) {
+                    c = '\uFFFD';
+                }
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
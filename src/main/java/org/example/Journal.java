@@ -0,0 +1,630 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Write-ahead journal for what the server has accepted but may not have on disk yet: messages
+// appended to mailboxes, fan-out jobs and how far they and each upload have got. Records
+// from every thread collect in one buffer that a "mail-journal" thread writes and fsyncs once
+// per interval, so one fsync covers every mailbox and upload that changed in the interval
+// instead of one per dirty mailbox. A writer that must not answer before its record is on disk
+// waits for that fsync, and everyone waiting at the same time shares it. Records are
+//
+//   magic      int    'JRNL'
+//   type       byte   'M' message, 'B' upload began, 'P' upload progress, 'E' upload ended,
+//                     'F' fan-out job, 'D' fan-out recipients delivered
+//   size       int    of the payload
+//   crc32c     int    over type and payload
+//   payload           strings are an int length and UTF-8 bytes
+//
+// and a record that is cut short or fails its checksum was being written when the server died:
+// replay stops there and the tail is truncated. Files are named after their number. Once the
+// current file passes checkpointBytes, a checkpoint starts the next file with the uploads and
+// fan-out jobs still in progress, lets the stores force what the old file covered to disk and deletes it, so a
+// restart only replays what came after the last checkpoint.
+public class Journal implements Closeable {
+
+    public static final String FOLDER = ".journal";
+    private static final int MAGIC = 0x4A524E4C;
+    private static final int HEADER = 13;
+    private static final int BUFFER = 64 * 1024;
+    private static final byte MESSAGE = 'M';
+    private static final byte BEGAN = 'B';
+    private static final byte PROGRESS = 'P';
+    private static final byte ENDED = 'E';
+    private static final byte FAN_OUT = 'F';
+    private static final byte DELIVERED = 'D';
+
+    public interface Step {
+        void run() throws IOException;
+    }
+
+    public record Message(String from, String body, short flags, long timestamp) {
+    }
+
+    // An upload as far as it is known to be on disk: chunks below committed are in the part file
+    public record Upload(long number, String from, String toAccount, String fileName, int totalChunks, int chunkSize,
+                         long fileSize, long version, int committed) {
+
+        Upload withCommitted(int chunks) {
+            return new Upload(number, from, toAccount, fileName, totalChunks, chunkSize, fileSize, version, chunks);
+        }
+    }
+
+    // A message or attachment for many recipients; recipients below delivered have it. A message
+    // carries its body and the digest it is stored under, a file its name and the digest of its blob.
+    public record FanOutJob(long number, String from, String body, String fileName, String digest, List<String> recipients,
+                            long timestamp, int delivered) {
+
+        public boolean isFile() {
+            return fileName != null;
+        }
+
+        FanOutJob withDelivered(int recipients) {
+            return new FanOutJob(number, from, body, fileName, digest, this.recipients, timestamp, recipients);
+        }
+    }
+
+    // What the journal held at start, in the order it was written
+    public record Recovered(Map<String, List<Message>> messages, List<String> contents, Collection<Upload> uploads,
+                            Collection<FanOutJob> fanOuts, int records, long bytes, long tornBytes) {
+    }
+
+    private final Path dir;
+    private final boolean sync;
+    private final long checkpointBytes;
+    private final boolean always;
+    private final List<Step> commitSteps = new CopyOnWriteArrayList<>();
+    private final List<Step> checkpointSteps = new CopyOnWriteArrayList<>();
+    // Files from before this start, replayed once by recover()
+    private final List<Path> previous = new ArrayList<>();
+    // Until the first checkpoint after recover(), the previous files are all that holds some records
+    private volatile boolean replayPending;
+    // Guards the buffer, the positions appended so far and the uploads and fan-out jobs in progress
+    private final ReentrantLock appending = new ReentrantLock();
+    // Guards the file: writing, forcing and switching to the next one
+    private final ReentrantLock writing = new ReentrantLock();
+    private final ReentrantLock checkpointing = new ReentrantLock();
+    private final Map<Long, Upload> uploads = new LinkedHashMap<>();
+    private final Map<Long, FanOutJob> fanOuts = new LinkedHashMap<>();
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER);
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER);
+    private long appended;
+    private volatile long durable;
+    private FileChannel channel;
+    private long number;
+    private volatile long fileBytes;
+    private volatile long commits;
+    private volatile long checkpoints;
+    private volatile boolean closed;
+    private final Thread committer;
+
+    // fsync=none still journals, it just never forces the file
+    public Journal(Path root, MailStore.FsyncPolicy policy, long intervalMillis, long checkpointBytes,
+                   Consumer<String> log) throws IOException {
+        this.dir = root.resolve(FOLDER);
+        this.sync = policy != MailStore.FsyncPolicy.NONE;
+        this.always = policy == MailStore.FsyncPolicy.ALWAYS;
+        this.checkpointBytes = checkpointBytes;
+        Files.createDirectories(dir);
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(dir, "*.wal")) {
+            for (Path file : found) {
+                String name = file.getFileName().toString();
+                files.put(Long.parseLong(name.substring(0, name.length() - 4)), file);
+            }
+        }
+        previous.addAll(files.values());
+        replayPending = !previous.isEmpty();
+        number = files.isEmpty() ? 1 : files.lastKey() + 1;
+        channel = open(number);
+        committer = Thread.ofPlatform().name("mail-journal").daemon(true).start(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    for (Step step : commitSteps) {
+                        step.run();
+                    }
+                    commit();
+                    if (fileBytes >= checkpointBytes && !replayPending) {
+                        checkpoint();
+                    }
+                } catch (IOException e) {
+                    log.accept("Failed to commit the journal: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // Runs before each group commit, so what it journals goes out with the same fsync
+    public void beforeCommit(Step step) {
+        commitSteps.add(step);
+    }
+
+    // Runs at each checkpoint before the old file is deleted; it must force to disk everything journaled so far
+    public void beforeCheckpoint(Step step) {
+        checkpointSteps.add(step);
+    }
+
+    // Reads what the previous run left; the uploads and fan-out jobs in it stay in progress until
+    // ended() or delivered() finishes them.
+    // The caller applies the rest to the stores and then checkpoints, which deletes the old files.
+    public Recovered recover() throws IOException {
+        Map<String, List<Message>> messages = new LinkedHashMap<>();
+        List<String> contents = new ArrayList<>();
+        Map<Long, Upload> found = new LinkedHashMap<>();
+        Map<Long, FanOutJob> jobs = new LinkedHashMap<>();
+        int records = 0;
+        long bytes = 0;
+        long torn = 0;
+        for (Path file : previous) {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                // Checkpoints keep a file far below 2 GB, so it is read whole
+                ByteBuffer data = ByteBuffer.allocate((int) size);
+                while (data.hasRemaining()) {
+                    if (in.read(data, data.position()) < 0) {
+                        throw new IOException("Unexpected end of journal " + file.getFileName());
+                    }
+                }
+                data.flip();
+                while (data.remaining() >= HEADER) {
+                    int start = data.position();
+                    int magic = data.getInt();
+                    byte type = data.get();
+                    int length = data.getInt();
+                    int crc = data.getInt();
+                    if (magic != MAGIC || length < 0 || length > data.remaining()) {
+                        data.position(start);
+                        break;
+                    }
+                    ByteBuffer payload = data.slice(data.position(), length);
+                    CRC32C check = new CRC32C();
+                    check.update(type);
+                    check.update(payload.duplicate());
+                    if ((int) check.getValue() != crc) {
+                        data.position(start);
+                        break;
+                    }
+                    data.position(data.position() + length);
+                    read(type, payload, messages, found, jobs);
+                    records++;
+                }
+                bytes += data.position();
+                if (data.position() < size) {
+                    // Rolled back: the record being written when the server stopped, and anything after it
+                    torn += size - data.position();
+                    in.truncate(data.position());
+                }
+            }
+        }
+        appending.lock();
+        try {
+            uploads.putAll(found);
+            fanOuts.putAll(jobs);
+        } finally {
+            appending.unlock();
+        }
+        // Fan-out bodies may be missing from the content store even when every recipient has the message
+        for (FanOutJob job : jobs.values()) {
+            if (!job.isFile()) {
+                contents.add(job.body());
+            }
+        }
+        return new Recovered(messages, contents, new ArrayList<>(found.values()), new ArrayList<>(jobs.values()),
+                records, bytes, torn);
+    }
+
+    private static void read(byte type, ByteBuffer in, Map<String, List<Message>> messages, Map<Long, Upload> uploads,
+                             Map<Long, FanOutJob> jobs) throws IOException {
+        switch (type) {
+            case MESSAGE -> {
+                String account = getString(in);
+                String from = getString(in);
+                String body = getString(in);
+                short flags = in.getShort();
+                long timestamp = in.getLong();
+                messages.computeIfAbsent(account, key -> new ArrayList<>()).add(new Message(from, body, flags, timestamp));
+            }
+            case BEGAN -> {
+                long number = in.getLong();
+                Upload upload = new Upload(number, getString(in), getString(in), getString(in), in.getInt(), in.getInt(),
+                        in.getLong(), in.getLong(), in.getInt());
+                uploads.put(number, upload);
+            }
+            case PROGRESS -> {
+                long number = in.getLong();
+                int chunks = in.getInt();
+                uploads.computeIfPresent(number, (key, upload) -> upload.withCommitted(Math.max(chunks, upload.committed())));
+            }
+            case ENDED -> uploads.remove(in.getLong());
+            case FAN_OUT -> {
+                FanOutJob job = decode(in);
+                jobs.put(job.number(), job);
+            }
+            case DELIVERED -> delivered(jobs, in.getLong(), in.getInt());
+            default -> throw new IOException("Unknown journal record " + type);
+        }
+    }
+
+    // Each returns the position the journal must be durable up to for the record to be safe
+    public long message(String account, String from, String body, short flags, long timestamp) {
+        byte[][] strings = {utf8(account), utf8(from), utf8(body)};
+        ByteBuffer payload = ByteBuffer.allocate(size(strings) + 2 + 8);
+        putStrings(payload, strings).putShort(flags).putLong(timestamp);
+        return append(MESSAGE, payload.flip(), null);
+    }
+
+    public long began(Upload upload) {
+        return append(BEGAN, encode(upload), upload);
+    }
+
+    public long fanOut(FanOutJob job) {
+        ByteBuffer payload = encode(job);
+        appending.lock();
+        try {
+            fanOuts.put(job.number(), job);
+            return append(FAN_OUT, payload, null);
+        } finally {
+            appending.unlock();
+        }
+    }
+
+    // The job's recipients below delivered have it now; once that is all of them the job is done
+    public long delivered(long number, int delivered) {
+        ByteBuffer payload = ByteBuffer.allocate(12).putLong(number).putInt(delivered);
+        appending.lock();
+        try {
+            delivered(fanOuts, number, delivered);
+            return append(DELIVERED, payload.flip(), null);
+        } finally {
+            appending.unlock();
+        }
+    }
+
+    private static void delivered(Map<Long, FanOutJob> jobs, long number, int delivered) {
+        FanOutJob job = jobs.get(number);
+        if (job != null) {
+            if (delivered >= job.recipients().size()) {
+                jobs.remove(number);
+            } else {
+                jobs.put(number, job.withDelivered(Math.max(delivered, job.delivered())));
+            }
+        }
+    }
+
+    public long progress(long number, int chunks) {
+        ByteBuffer payload = ByteBuffer.allocate(12).putLong(number).putInt(chunks);
+        return append(PROGRESS, payload.flip(), null);
+    }
+
+    public long ended(long number) {
+        ByteBuffer payload = ByteBuffer.allocate(8).putLong(number);
+        return append(ENDED, payload.flip(), null);
+    }
+
+    private static ByteBuffer encode(Upload upload) {
+        byte[][] strings = {utf8(upload.from()), utf8(upload.toAccount()), utf8(upload.fileName())};
+        ByteBuffer payload = ByteBuffer.allocate(8 + size(strings) + 4 + 4 + 8 + 8 + 4);
+        payload.putLong(upload.number());
+        putStrings(payload, strings).putInt(upload.totalChunks()).putInt(upload.chunkSize())
+                .putLong(upload.fileSize()).putLong(upload.version()).putInt(upload.committed());
+        return payload.flip();
+    }
+
+    private static ByteBuffer encode(FanOutJob job) {
+        boolean file = job.isFile();
+        byte[][] strings = {utf8(file ? "" : job.from()), utf8(file ? job.fileName() : job.body()), utf8(job.digest())};
+        byte[][] recipients = new byte[job.recipients().size()][];
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = utf8(job.recipients().get(i));
+        }
+        ByteBuffer payload = ByteBuffer.allocate(8 + 1 + size(strings) + 8 + 4 + 4 + size(recipients));
+        payload.putLong(job.number()).put((byte) (file ? 1 : 0));
+        putStrings(payload, strings).putLong(job.timestamp()).putInt(job.delivered()).putInt(recipients.length);
+        return putStrings(payload, recipients).flip();
+    }
+
+    private static FanOutJob decode(ByteBuffer in) throws IOException {
+        long number = in.getLong();
+        boolean file = in.get() != 0;
+        String from = getString(in);
+        String text = getString(in);
+        String digest = getString(in);
+        long timestamp = in.getLong();
+        int delivered = in.getInt();
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / 4) {
+            throw new IOException("Fan-out job with " + count + " recipients");
+        }
+        List<String> recipients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            recipients.add(getString(in));
+        }
+        return file ? new FanOutJob(number, null, null, text, digest, recipients, timestamp, delivered)
+                : new FanOutJob(number, from, text, null, digest, recipients, timestamp, delivered);
+    }
+
+    private long append(byte type, ByteBuffer payload, Upload began) {
+        appending.lock();
+        try {
+            if (type == BEGAN) {
+                uploads.put(began.number(), began);
+            } else if (type == PROGRESS) {
+                uploads.computeIfPresent(payload.getLong(0), (key, upload) -> upload.withCommitted(payload.getInt(8)));
+            } else if (type == ENDED) {
+                uploads.remove(payload.getLong(0));
+            }
+            int size = HEADER + payload.remaining();
+            if (size > pending.remaining()) {
+                pending = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + size)).put(pending.flip());
+            }
+            put(pending, type, payload);
+            appended += size;
+            return appended;
+        } finally {
+            appending.unlock();
+        }
+    }
+
+    private static void put(ByteBuffer out, byte type, ByteBuffer payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(type);
+        crc.update(payload.duplicate());
+        out.putInt(MAGIC).put(type).putInt(payload.remaining()).putInt((int) crc.getValue()).put(payload);
+    }
+
+    // Returns once the journal is on disk up to the position; waiters that arrive during an fsync share the next one
+    public void await(long position) throws IOException {
+        if (durable < position) {
+            commit(position);
+        }
+    }
+
+    // await() under fsync=always, where nothing is acknowledged before it is on disk; otherwise
+    // the record goes out with the next group commit
+    public void acknowledge(long position) throws IOException {
+        if (always) {
+            await(position);
+        }
+    }
+
+    // Writes out and forces everything appended so far
+    public void commit() throws IOException {
+        commit(Long.MAX_VALUE);
+    }
+
+    private void commit(long position) throws IOException {
+        writing.lock();
+        try {
+            if (durable >= position) {
+                return;
+            }
+            ByteBuffer out;
+            long upTo;
+            appending.lock();
+            try {
+                out = pending.flip();
+                pending = spare;
+                upTo = appended;
+            } finally {
+                appending.unlock();
+            }
+            drain(out);
+            if (sync) {
+                channel.force(false);
+            }
+            durable = upTo;
+            commits++;
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    private void write(ByteBuffer out) throws IOException {
+        while (out.hasRemaining()) {
+            fileBytes += channel.write(out, fileBytes);
+        }
+    }
+
+    // Writes out the buffer taken from pending and keeps it as the spare. When the write fails,
+    // what it did not get to goes back in front of the records appended since, so the next commit
+    // writes it, and durable never passes a record that is not in the file.
+    private void drain(ByteBuffer out) throws IOException {
+        try {
+            write(out);
+        } catch (IOException | RuntimeException e) {
+            appending.lock();
+            try {
+                ByteBuffer since = pending.flip();
+                out.compact();
+                if (out.remaining() < since.remaining()) {
+                    out = ByteBuffer.allocate(out.position() + since.remaining()).put(out.flip());
+                }
+                pending = out.put(since);
+                spare = since.clear();
+            } finally {
+                appending.unlock();
+            }
+            throw e;
+        }
+        spare = out.clear();
+    }
+
+    // Starts the next file with the uploads and fan-out jobs in progress, has every store force what the old files
+    // covered, then deletes them. Records appended meanwhile land in the next file.
+    public void checkpoint() throws IOException {
+        checkpointing.lock();
+        try {
+            for (Step step : commitSteps) {
+                step.run();
+            }
+            long next;
+            writing.lock();
+            try {
+                ByteBuffer out;
+                long upTo;
+                List<Upload> inProgress;
+                List<FanOutJob> undelivered;
+                appending.lock();
+                try {
+                    out = pending.flip();
+                    pending = spare;
+                    upTo = appended;
+                    inProgress = new ArrayList<>(uploads.values());
+                    undelivered = new ArrayList<>(fanOuts.values());
+                } finally {
+                    appending.unlock();
+                }
+                drain(out);
+                if (sync) {
+                    channel.force(false);
+                }
+                ByteBuffer snapshot = ByteBuffer.allocate(BUFFER);
+                for (Upload upload : inProgress) {
+                    snapshot = snapshot(snapshot, BEGAN, encode(upload));
+                }
+                for (FanOutJob job : undelivered) {
+                    snapshot = snapshot(snapshot, FAN_OUT, encode(job));
+                }
+                snapshot.flip();
+                // The next file only takes over once its snapshot is in it; until then the old one stays current
+                Path nextFile = file(number + 1);
+                FileChannel nextChannel = open(number + 1);
+                try {
+                    while (snapshot.hasRemaining()) {
+                        nextChannel.write(snapshot, snapshot.position());
+                    }
+                    if (sync) {
+                        nextChannel.force(false);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    nextChannel.close();
+                    Files.deleteIfExists(nextFile);
+                    throw e;
+                }
+                channel.close();
+                channel = nextChannel;
+                number++;
+                fileBytes = snapshot.limit();
+                durable = upTo;
+                next = number;
+            } finally {
+                writing.unlock();
+            }
+            for (Step step : checkpointSteps) {
+                step.run();
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.wal")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (Long.parseLong(name.substring(0, name.length() - 4)) < next) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            previous.clear();
+            replayPending = false;
+            checkpoints++;
+        } finally {
+            checkpointing.unlock();
+        }
+    }
+
+    // Grows the buffer when the record does not fit; returns the buffer to go on with
+    private static ByteBuffer snapshot(ByteBuffer out, byte type, ByteBuffer payload) {
+        int size = HEADER + payload.remaining();
+        if (out.remaining() < size) {
+            out = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + size)).put(out.flip());
+        }
+        put(out, type, payload);
+        return out;
+    }
+
+    // Bytes in the current file, which a checkpoint brings back to what is still in progress
+    public long bytes() {
+        return fileBytes;
+    }
+
+    public long commits() {
+        return commits;
+    }
+
+    public long checkpoints() {
+        return checkpoints;
+    }
+
+    // Commits what is buffered; the files stay for the next start to replay unless a checkpoint came first
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        committer.interrupt();
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+        channel.close();
+    }
+
+    private Path file(long fileNumber) {
+        return dir.resolve(String.format("%010d.wal", fileNumber));
+    }
+
+    // Tests override it to make writes fail
+    FileChannel open(long fileNumber) throws IOException {
+        return FileChannel.open(file(fileNumber), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int size(byte[][] strings) {
+        int size = 0;
+        for (byte[] string : strings) {
+            size += 4 + string.length;
+        }
+        return size;
+    }
+
+    private static ByteBuffer putStrings(ByteBuffer out, byte[][] strings) {
+        for (byte[] string : strings) {
+            out.putInt(string.length).put(string);
+        }
+        return out;
+    }
+
+    private static String getString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Journal string of " + length + " bytes");
+        }
+        String text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return text;
+    }
+}
@@ -0,0 +1,97 @@
+package org.example;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Compatibility shim for the old colon-delimited text commands. Fields are located
+// by scanning for ':' in the raw bytes, which is safe for multibyte UTF-8, and the
+// last field of each command keeps any colons it contains.
+final class LegacyCommand {
+
+    private static final Command[] COMMANDS = {
+            new Command("CONNECT", Opcode.CONNECT, 0),
+            new Command("DISCONNECT", Opcode.DISCONNECT, 0),
+            new Command("CREATE_ACCOUNT", Opcode.CREATE_ACCOUNT, 1),
+            new Command("LOGIN", Opcode.LOGIN, 1),
+            new Command("SEND_EMAIL", Opcode.SEND_EMAIL, 3),
+            new Command("DOWNLOAD_FILE", Opcode.DOWNLOAD_FILE, 2),
+            // from:to:content:file:index:total followed directly by the chunk bytes
+            new Command("SEND_EMAIL_WITH_ATTACHMENT", Opcode.ATTACH_CHUNK, 6),
+    };
+
+    private LegacyCommand() {
+    }
+
+    static void decode(ByteBuffer buffer, Frame frame) throws ProtocolException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int nameEnd = indexOf(buffer, start, limit);
+        Command command = lookup(buffer, start, nameEnd);
+        frame.legacy(command != null ? command.opcode : null);
+        if (command == null || command.fields == 0) {
+            return;
+        }
+
+        int cursor = Math.min(nameEnd + 1, limit);
+        for (int i = 0; i < command.fields - 1; i++) {
+            int end = indexOf(buffer, cursor, limit);
+            frame.addField(cursor, end - cursor);
+            cursor = Math.min(end + 1, limit);
+        }
+
+        if (command.opcode == Opcode.ATTACH_CHUNK) {
+            // The chunk count runs straight into the binary chunk data
+            int end = cursor;
+            while (end < limit && Character.isDigit(buffer.get(end))) {
+                end++;
+            }
+            frame.addField(cursor, end - cursor);
+            frame.payload(end, limit);
+        } else {
+            frame.addField(cursor, limit - cursor);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == ':') {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    private static Command lookup(ByteBuffer buffer, int start, int end) {
+        for (Command command : COMMANDS) {
+            if (command.matches(buffer, start, end)) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private static class Command {
+        final byte[] name;
+        final Opcode opcode;
+        final int fields;
+
+        Command(String name, Opcode opcode, int fields) {
+            this.name = name.getBytes(StandardCharsets.US_ASCII);
+            this.opcode = opcode;
+            this.fields = fields;
+        }
+
+        boolean matches(ByteBuffer buffer, int start, int end) {
+            if (end - start != name.length) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (buffer.get(start + i) != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.example;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.awt.*;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+// The server's log view. Each batch becomes a single append on the EDT, and only the
+// last maxLines lines are kept so a long-running server does not grow the text area forever.
+// As an observer it keeps the address and the connected-client count in the title.
+public class LogWindow extends JFrame implements AsyncLog.Sink, ServerObserver {
+
+    private final JTextArea logArea = new JTextArea();
+    private final String title;
+    private final int maxLines;
+    private String address = "";
+
+    public LogWindow(String title, int maxLines) {
+        this.title = title;
+        this.maxLines = maxLines;
+        setTitle(title);
+        setSize(600, 500);
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+        logArea.setEditable(false);
+        JScrollPane scrollPane = new JScrollPane(logArea);
+        add(scrollPane, BorderLayout.CENTER);
+
+        setVisible(true);
+    }
+
+    @Override
+    public void write(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        SwingUtilities.invokeLater(() -> append(text.toString()));
+    }
+
+    @Override
+    public void started(InetSocketAddress address, long startupMillis) {
+        SwingUtilities.invokeLater(() -> {
+            this.address = address.getAddress().getHostAddress() + ":" + address.getPort();
+            setTitle(title + " - " + this.address);
+        });
+    }
+
+    @Override
+    public void clientsChanged(int connectedClients) {
+        SwingUtilities.invokeLater(() -> setTitle(title + " - " + address + " - " + connectedClients + " clients"));
+    }
+
+    private void append(String text) {
+        logArea.append(text);
+        int excess = logArea.getLineCount() - 1 - maxLines;
+        if (excess > 0) {
+            try {
+                logArea.replaceRange("", 0, logArea.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                logArea.setText("");
+            }
+        }
+    }
+}
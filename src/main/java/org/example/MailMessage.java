@@ -0,0 +1,39 @@
+package org.example;
+
+// One stored message and where it lives in its mailbox's segments
+public final class MailMessage {
+
+    private final String from;
+    private final String body;
+    private final long timestamp;
+    private final long segment;
+    private final long offset;
+
+    public MailMessage(String from, String body, long timestamp, long segment, long offset) {
+        this.from = from;
+        this.body = body;
+        this.timestamp = timestamp;
+        this.segment = segment;
+        this.offset = offset;
+    }
+
+    public String from() {
+        return from;
+    }
+
+    public String body() {
+        return body;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public long segment() {
+        return segment;
+    }
+
+    public long offset() {
+        return offset;
+    }
+}
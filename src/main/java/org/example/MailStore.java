@@ -0,0 +1,337 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+// Log-structured message store: one append-only Mailbox per account under
+// MailServer/<account>/.mailbox. Appends are group committed; with the default
+// BATCH policy a background thread writes and fsyncs every dirty mailbox once per
+// interval, so concurrent senders share one write and one fsync. Sealed segments
+// are merged by a periodic compaction pass and idle mailboxes release their file handle.
+// At most MAX_OPEN_MAILBOXES stay open; beyond that the longest-open one is closed, so a
+// fan-out to 100k accounts does not hold 100k file handles and write buffers.
+// With a Journal, every append is also journaled and the journal's single fsync per interval
+// takes the place of one per dirty mailbox; mailboxes are only forced at journal checkpoints,
+// and replay() puts back whatever a crash kept from reaching them.
+public class MailStore implements Closeable {
+
+    public enum FsyncPolicy { NONE, BATCH, ALWAYS }
+
+    public static final String MAILBOX_FOLDER = ".mailbox";
+    public static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final String RENDER_FOLDER = "rendered";
+    private static final int COMPACT_MIN_SEGMENTS = 4;
+    private static final long IDLE_CLOSE_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final int MAX_OPEN_MAILBOXES = 4096;
+    private static final long RECENT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int SECOND_CHANCES = 8;
+
+    private final Path root;
+    private final FsyncPolicy policy;
+    private final long segmentBytes;
+    private final ContentStore content;
+    private final Journal journal;
+    // Where failures on the background thread are reported
+    private final Consumer<String> log;
+    // Fan-out bodies stored since the last checkpoint, forced to disk by the next one
+    private final Set<String> unforcedBodies = ConcurrentHashMap.newKeySet();
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    // Accounts in the order their mailboxes were opened, for closing the oldest
+    private final Queue<String> opened = new ConcurrentLinkedQueue<>();
+    // Where each rendered file's mailbox ended when it was rendered
+    private final Map<Path, Long> renderedPositions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mail-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // For tools that run without a server: no journal, and failures go to standard error
+    public MailStore(Path root, FsyncPolicy policy, long fsyncIntervalMillis, long segmentBytes) {
+        this(root, policy, fsyncIntervalMillis, segmentBytes, null, System.err::println);
+    }
+
+    public MailStore(Path root, FsyncPolicy policy, long fsyncIntervalMillis, long segmentBytes, Journal journal,
+                     Consumer<String> log) {
+        this.root = root;
+        this.policy = policy;
+        this.segmentBytes = segmentBytes;
+        this.content = new ContentStore(root);
+        this.journal = journal;
+        this.log = log;
+        if (journal != null) {
+            journal.beforeCheckpoint(this::checkpoint);
+        }
+        background.scheduleWithFixedDelay(this::commit, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        background.scheduleWithFixedDelay(this::compactAll, 10, 10, TimeUnit.MINUTES);
+    }
+
+    public void append(String account, String from, String body, long timestamp) throws IOException {
+        append(account, from, body, timestamp, (short) 0);
+    }
+
+    // Appends a reference to a body already in the content store
+    public void appendReference(String account, String from, String digest, long timestamp) throws IOException {
+        append(account, from, digest, timestamp, Mailbox.FLAG_REFERENCE);
+    }
+
+    private void append(String account, String from, String body, long timestamp, short flags) throws IOException {
+        while (!mailbox(account).append(from, body, timestamp, flags, policy == FsyncPolicy.ALWAYS && journal == null)) {
+            // raced with the idle sweep closing it; the next lookup opens a fresh one
+        }
+        if (journal != null) {
+            // Journaled after the mailbox has it, so a checkpoint's flush covers every record in the old file
+            long position = journal.message(account, from, body, flags, timestamp);
+            if (policy == FsyncPolicy.ALWAYS) {
+                journal.await(position);
+            }
+        }
+    }
+
+    // Stores a body for fan-out once and returns its digest for appendReference. The fan-out job
+    // that journals the body lets replay() put it back until a checkpoint has forced it.
+    public String putBody(String body) throws IOException {
+        String digest = content.putBody(body);
+        if (journal != null) {
+            unforcedBodies.add(digest);
+        }
+        return digest;
+    }
+
+    // Whether the account's mailbox already holds the message; only messages stamped at or after it are read
+    public boolean contains(String account, String from, String body, long timestamp) throws IOException {
+        return mailbox(account).keysSince(timestamp).containsKey(Mailbox.key(from, body, timestamp));
+    }
+
+    // Puts back what the journal holds and the mailboxes lost to a crash: fan-out bodies that are
+    // missing or torn, and messages a mailbox does not have as many copies of as the journal. Accounts
+    // removed since, e.g. moved to another cluster node, stay removed. Returns the messages appended.
+    public int replay(Journal.Recovered recovered) throws IOException {
+        for (String body : recovered.contents()) {
+            content.restore(body);
+        }
+        int replayed = 0;
+        for (Map.Entry<String, List<Journal.Message>> entry : recovered.messages().entrySet()) {
+            String account = entry.getKey();
+            if (!Files.isDirectory(root.resolve(account))) {
+                continue;
+            }
+            long since = Long.MAX_VALUE;
+            for (Journal.Message message : entry.getValue()) {
+                since = Math.min(since, message.timestamp());
+            }
+            Map<Long, Integer> present = mailbox(account).keysSince(since);
+            for (Journal.Message message : entry.getValue()) {
+                long key = Mailbox.key(message.from(), message.body(), message.timestamp());
+                int copies = present.getOrDefault(key, 0);
+                if (copies > 0) {
+                    present.put(key, copies - 1);
+                    continue;
+                }
+                while (!mailbox(account).append(message.from(), message.body(), message.timestamp(), message.flags(), false)) {
+                    // raced with the idle sweep closing it
+                }
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    public ContentStore content() {
+        return content;
+    }
+
+    public List<MailMessage> read(String account) throws IOException {
+        if (!Files.isDirectory(mailboxDir(account))) {
+            return new ArrayList<>();
+        }
+        return mailbox(account).read();
+    }
+
+    // The sender and timestamp of each message, without reading or decoding the bodies
+    public void headers(String account, ObjLongConsumer<String> consumer) throws IOException {
+        if (Files.isDirectory(mailboxDir(account))) {
+            mailbox(account).headers(consumer);
+        }
+    }
+
+    // Distinct senders, shown to clients as the old "email_from_<sender>.txt" names
+    public TreeSet<String> senders(String account) throws IOException {
+        TreeSet<String> senders = new TreeSet<>();
+        headers(account, (from, timestamp) -> senders.add(from));
+        return senders;
+    }
+
+    // Writes the messages from one sender in the old text layout so they can be downloaded
+    // like a file; the copy is only regenerated when the mailbox has changed
+    public Path render(String account, String sender) throws IOException {
+        Path target = renderedFile(account, sender);
+        Mailbox mailbox = mailbox(account);
+        long position = mailbox.position();
+        if (Files.exists(target) && renderedPositions.getOrDefault(target, -1L) == position) {
+            return target;
+        }
+        StringBuilder text = new StringBuilder();
+        for (MailMessage message : mailbox.read()) {
+            if (message.from().equals(sender)) {
+                text.append(TIMESTAMP.format(Instant.ofEpochMilli(message.timestamp()))).append(" - ")
+                        .append(message.body()).append("\n");
+            }
+        }
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, text.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        renderedPositions.put(target, position);
+        return target;
+    }
+
+    // Where render() puts the copy for this sender, whether or not it exists yet
+    public Path renderedFile(String account, String sender) {
+        return mailboxDir(account).resolve(RENDER_FOLDER).resolve("email_from_" + sender + ".txt");
+    }
+
+    // Closes the account's mailbox so its folder can be removed; a later append opens a new one
+    public void release(String account) throws IOException {
+        Mailbox mailbox = mailboxes.remove(account);
+        if (mailbox != null) {
+            mailbox.close(policy != FsyncPolicy.NONE);
+        }
+    }
+
+    public Path mailboxDir(String account) {
+        return root.resolve(account).resolve(MAILBOX_FOLDER);
+    }
+
+    private Mailbox mailbox(String account) throws IOException {
+        Mailbox mailbox = mailboxes.get(account);
+        if (mailbox != null) {
+            return mailbox;
+        }
+        boolean[] created = new boolean[1];
+        try {
+            mailbox = mailboxes.computeIfAbsent(account, name -> {
+                try {
+                    created[0] = true;
+                    return new Mailbox(mailboxDir(name), segmentBytes, content);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (created[0]) {
+            opened.add(account);
+            if (mailboxes.size() > MAX_OPEN_MAILBOXES) {
+                closeOldest();
+            }
+        }
+        return mailbox;
+    }
+
+    // Mailboxes used within the last second get another turn, but only a few are passed over per
+    // call, so opening a mailbox stays cheap when every open one is busy
+    private void closeOldest() {
+        for (int turns = SECOND_CHANCES; mailboxes.size() > MAX_OPEN_MAILBOXES; turns--) {
+            String account = opened.poll();
+            if (account == null) {
+                return;
+            }
+            Mailbox mailbox = mailboxes.get(account);
+            if (mailbox == null) {
+                continue;
+            }
+            if (turns > 0 && mailbox.idleNanos() < RECENT_NANOS) {
+                opened.add(account);
+                continue;
+            }
+            try {
+                mailbox.close(policy != FsyncPolicy.NONE);
+            } catch (IOException e) {
+                log.accept("Failed to close mailbox " + account + ": " + e.getMessage());
+            }
+            mailboxes.remove(account, mailbox);
+        }
+    }
+
+    // Group commit: one write and at most one fsync per dirty mailbox per interval
+    private void commit() {
+        for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+            Mailbox mailbox = entry.getValue();
+            try {
+                mailbox.flush(journal == null && policy != FsyncPolicy.NONE);
+                if (mailbox.idleNanos() > IDLE_CLOSE_NANOS) {
+                    // Close before unmapping so a concurrent reopen never shares the tail segment with this instance
+                    mailbox.close(policy != FsyncPolicy.NONE);
+                    mailboxes.remove(entry.getKey(), mailbox);
+                }
+            } catch (IOException e) {
+                log.accept("Failed to commit mailbox " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void compactAll() {
+        for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+            try {
+                if (entry.getValue().sealedSegments() >= COMPACT_MIN_SEGMENTS) {
+                    entry.getValue().compact();
+                }
+            } catch (IOException e) {
+                log.accept("Failed to compact mailbox " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void flush() throws IOException {
+        for (Mailbox mailbox : mailboxes.values()) {
+            mailbox.flush(policy != FsyncPolicy.NONE);
+        }
+    }
+
+    // Forces everything the journal holds so far into the mailboxes and the content store.
+    // Mailboxes that were closed meanwhile were forced as they closed.
+    private void checkpoint() throws IOException {
+        flush();
+        if (policy == FsyncPolicy.NONE) {
+            unforcedBodies.clear();
+            return;
+        }
+        for (String digest : unforcedBodies) {
+            content.force(digest);
+            unforcedBodies.remove(digest);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        for (Mailbox mailbox : mailboxes.values()) {
+            mailbox.close(true);
+        }
+        mailboxes.clear();
+    }
+}
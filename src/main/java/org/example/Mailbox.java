@@ -0,0 +1,402 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32C;
+
+// The append-only segment log behind one account. Records are
+//
+//   magic      int    'MAIL'
+//   flags      short
+//   from size  short
+//   body size  int
+//   timestamp  long   epoch millis
+//   crc32c     int    over from and body
+//   from, body        UTF-8
+//
+// A record flagged as a reference holds the digest of a body kept once in the ContentStore
+// instead of the body itself; reads resolve it. Appends collect in a write buffer, which
+// starts small and grows with use, that MailStore flushes in groups. Segments are
+// named after their number; a compacted segment is named "<first>-<last>.seg" after
+// the range it replaced, so a crash halfway through compaction never loses or doubles messages.
+class Mailbox {
+
+    static final int MAGIC = 0x4D41494C;
+    static final int HEADER = 24;
+    static final short FLAG_DELETED = 1;
+    static final short FLAG_REFERENCE = 2;
+    private static final int WRITE_BUFFER = 64 * 1024;
+    private static final int INITIAL_WRITE_BUFFER = 1024;
+    private static final int SCAN_BLOCK = 64 * 1024;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final ContentStore content;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_WRITE_BUFFER);
+    private FileChannel active;
+    private long activeSize;
+    private boolean unsynced;
+    private boolean closed;
+    private long lastAccess = System.nanoTime();
+
+    Mailbox(Path dir, long segmentBytes, ContentStore content) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.content = content;
+        // createDirectories tries mkdir first, which costs more than a stat when the mailbox is reopened
+        if (!Files.isDirectory(dir)) {
+            Files.createDirectories(dir);
+        }
+        loadSegments();
+    }
+
+    // Returns false if the mailbox was closed for being idle; the caller then reopens it
+    synchronized boolean append(String from, String body, long timestamp, short flags, boolean sync) throws IOException {
+        if (closed) {
+            return false;
+        }
+        byte[] fromBytes = from.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        if (fromBytes.length > Short.MAX_VALUE) {
+            throw new IOException("Sender name too long");
+        }
+        int size = HEADER + fromBytes.length + bodyBytes.length;
+        if (size > pending.remaining()) {
+            if (pending.capacity() < WRITE_BUFFER) {
+                // Mailboxes that only ever get the odd message keep a small buffer
+                int capacity = Math.min(WRITE_BUFFER, Math.max(pending.capacity() * 2, Integer.highestOneBit(pending.position() + size) << 1));
+                pending = ByteBuffer.allocate(capacity).put(pending.flip());
+            }
+            if (size > pending.remaining()) {
+                flush(false);
+            }
+        }
+        ByteBuffer record = size > pending.capacity() ? ByteBuffer.allocate(size) : pending;
+        CRC32C crc = new CRC32C();
+        crc.update(fromBytes);
+        crc.update(bodyBytes);
+        record.putInt(MAGIC).putShort(flags).putShort((short) fromBytes.length).putInt(bodyBytes.length)
+                .putLong(timestamp).putInt((int) crc.getValue()).put(fromBytes).put(bodyBytes);
+        if (record != pending) {
+            write(record.flip());
+        }
+        lastAccess = System.nanoTime();
+        if (sync) {
+            flush(true);
+        }
+        return true;
+    }
+
+    // Writes buffered records out and, if asked, forces them to disk
+    synchronized void flush(boolean sync) throws IOException {
+        if (pending.position() > 0) {
+            write(pending.flip());
+            pending.clear();
+        }
+        if (sync && unsynced) {
+            active.force(false);
+            unsynced = false;
+        }
+    }
+
+    private void write(ByteBuffer records) throws IOException {
+        if (active == null || (activeSize > 0 && activeSize + records.remaining() > segmentBytes)) {
+            roll();
+        }
+        while (records.hasRemaining()) {
+            activeSize += active.write(records, activeSize);
+        }
+        unsynced = true;
+    }
+
+    private void roll() throws IOException {
+        long number = segments.isEmpty() ? 1 : segments.lastEntry().getValue().last + 1;
+        if (active != null) {
+            active.force(false);
+            active.close();
+        }
+        Path file = dir.resolve(String.format("%010d.seg", number));
+        active = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSize = 0;
+        segments.put(number, new Segment(file, number, number));
+    }
+
+    synchronized List<MailMessage> read() throws IOException {
+        flush(false);
+        lastAccess = System.nanoTime();
+        List<MailMessage> messages = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            scan(segment.file, segment.first, content, messages::add);
+        }
+        return messages;
+    }
+
+    // The sender and timestamp of every message, for listings. Bodies are skipped, not read, so
+    // their checksums go unchecked; a record torn by a crash was cut off when the mailbox opened.
+    synchronized void headers(ObjLongConsumer<String> consumer) throws IOException {
+        flush(false);
+        lastAccess = System.nanoTime();
+        for (Segment segment : segments.values()) {
+            scanRecords(segment.file, false, (offset, header, from, body) -> {
+                if ((header.getShort(4) & FLAG_DELETED) == 0) {
+                    consumer.accept(new String(from, StandardCharsets.UTF_8), header.getLong(12));
+                }
+            });
+        }
+    }
+
+    // How many times each message stamped at or after since is on disk, by key(). Segments are
+    // read newest first and only until one holds nothing that recent.
+    synchronized Map<Long, Integer> keysSince(long since) throws IOException {
+        flush(false);
+        Map<Long, Integer> keys = new HashMap<>();
+        for (Segment segment : segments.descendingMap().values()) {
+            boolean[] recent = new boolean[1];
+            scanRecords(segment.file, true, (offset, header, from, body) -> {
+                long timestamp = header.getLong(12);
+                if (timestamp >= since) {
+                    recent[0] = true;
+                    keys.merge(key(timestamp, header.getInt(20)), 1, Integer::sum);
+                }
+            });
+            if (!recent[0]) {
+                break;
+            }
+        }
+        return keys;
+    }
+
+    // Identifies a message by its timestamp and the checksum of its sender and body
+    static long key(long timestamp, int crc) {
+        return timestamp * 0x9E3779B97F4A7C15L ^ (crc & 0xFFFFFFFFL);
+    }
+
+    static long key(String from, String body, long timestamp) {
+        CRC32C crc = new CRC32C();
+        crc.update(from.getBytes(StandardCharsets.UTF_8));
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return key(timestamp, (int) crc.getValue());
+    }
+
+    // The end of the log: the last segment's number above the bytes written to it, buffered ones
+    // included. Appends only move it forward, and a reopened mailbox carries on from where the
+    // closed one stopped, so it tells whether anything was appended since it was last read.
+    synchronized long position() {
+        long number = segments.isEmpty() ? 0 : segments.lastEntry().getValue().last;
+        return number << 40 | (activeSize + pending.position());
+    }
+
+    synchronized long idleNanos() {
+        return System.nanoTime() - lastAccess;
+    }
+
+    synchronized int sealedSegments() {
+        return Math.max(0, segments.size() - 1);
+    }
+
+    // Merges every sealed segment into one, dropping deleted and corrupt records
+    synchronized void compact() throws IOException {
+        flush(true);
+        List<Segment> sealed = new ArrayList<>(segments.values());
+        sealed.remove(sealed.size() - 1);
+        if (sealed.size() < 2) {
+            return;
+        }
+        long first = sealed.get(0).first;
+        long last = sealed.get(sealed.size() - 1).last;
+        Path target = dir.resolve(String.format("%010d-%010d.seg", first, last));
+        Path temp = dir.resolve(target.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Segment segment : sealed) {
+                scanRecords(segment.file, true, (offset, header, from, body) -> {
+                    if ((header.getShort(4) & FLAG_DELETED) == 0) {
+                        ByteBuffer record = ByteBuffer.allocate(HEADER + from.length + body.length);
+                        record.put(header.rewind()).put(from).put(body).flip();
+                        while (record.hasRemaining()) {
+                            out.write(record);
+                        }
+                    }
+                });
+            }
+            out.force(false);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        for (Segment segment : sealed) {
+            Files.deleteIfExists(segment.file);
+            segments.remove(segment.first);
+        }
+        segments.put(first, new Segment(target, first, last));
+    }
+
+    synchronized void close(boolean sync) throws IOException {
+        flush(sync);
+        closed = true;
+        if (active != null) {
+            active.close();
+            active = null;
+        }
+        unsynced = false;
+    }
+
+    private void loadSegments() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String[] range = name.substring(0, name.length() - 4).split("-");
+                long first = Long.parseLong(range[0]);
+                long last = range.length > 1 ? Long.parseLong(range[1]) : first;
+                found.add(new Segment(file, first, last));
+            }
+        }
+        // A compacted segment supersedes the segments inside its range left behind by an interrupted compaction
+        for (Segment segment : found) {
+            boolean covered = found.stream().anyMatch(other -> other != segment && other.first <= segment.first
+                    && other.last >= segment.last && other.last - other.first > segment.last - segment.first);
+            if (covered) {
+                Files.deleteIfExists(segment.file);
+            } else {
+                segments.put(segment.first, segment);
+            }
+        }
+        if (!segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            active = FileChannel.open(last.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Drop a torn record left at the tail by a crash mid-write
+            activeSize = scan(active, last.first, null, null);
+            active.truncate(activeSize);
+        }
+    }
+
+    // Reads every intact record and returns the offset where the intact data ends; a null consumer only measures
+    private static long scan(Path file, long segment, ContentStore content, Consumer<MailMessage> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return scan(channel, segment, content, consumer);
+        }
+    }
+
+    private static long scan(FileChannel channel, long segment, ContentStore content, Consumer<MailMessage> consumer) throws IOException {
+        long[] end = new long[1];
+        scanRecords(channel, true, (offset, header, from, body) -> {
+            end[0] = offset + HEADER + from.length + body.length;
+            short flags = header.getShort(4);
+            if (consumer != null && (flags & FLAG_DELETED) == 0) {
+                String text = new String(body, StandardCharsets.UTF_8);
+                if ((flags & FLAG_REFERENCE) != 0) {
+                    text = content.body(text);
+                }
+                consumer.accept(new MailMessage(new String(from, StandardCharsets.UTF_8), text, header.getLong(12), segment, offset));
+            }
+        });
+        return end[0];
+    }
+
+    private interface RecordVisitor {
+        // body is null when the scan skips bodies
+        void visit(long offset, ByteBuffer header, byte[] from, byte[] body) throws IOException;
+    }
+
+    // Reads the segment in blocks rather than three reads per record; only a record bigger than
+    // a block is read on its own. Without bodies only headers and senders are read, and a body
+    // beyond the current block is jumped over.
+    private static void scanRecords(Path file, boolean bodies, RecordVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            scanRecords(channel, bodies, visitor);
+        }
+    }
+
+    private static void scanRecords(FileChannel channel, boolean bodies, RecordVisitor visitor) throws IOException {
+        long size = channel.size();
+        ByteBuffer block = ByteBuffer.allocate((int) Math.min(SCAN_BLOCK, size));
+        long blockStart = 0;
+        block.limit(0);
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (offset + HEADER <= size) {
+            if (offset + HEADER > blockStart + block.limit()) {
+                blockStart = offset;
+                block.clear().limit((int) Math.min(block.capacity(), size - offset));
+                readFully(channel, block, offset);
+            }
+            int at = (int) (offset - blockStart);
+            header.clear();
+            header.put(0, block, at, HEADER);
+            if (header.getInt(0) != MAGIC) {
+                return;
+            }
+            int fromLength = header.getShort(6);
+            int bodyLength = header.getInt(8);
+            if (fromLength < 0 || bodyLength < 0 || offset + HEADER + fromLength + bodyLength > size) {
+                return;
+            }
+            byte[] from = new byte[fromLength];
+            long end = offset + HEADER + fromLength + bodyLength;
+            if (!bodies) {
+                if (at + HEADER + fromLength <= block.limit()) {
+                    block.get(at + HEADER, from);
+                } else {
+                    readFully(channel, ByteBuffer.wrap(from), offset + HEADER);
+                }
+                visitor.visit(offset, header, from, null);
+                offset = end;
+                continue;
+            }
+            byte[] body = new byte[bodyLength];
+            if (end <= blockStart + block.limit()) {
+                block.get(at + HEADER, from).get(at + HEADER + fromLength, body);
+            } else if (end - offset <= block.capacity()) {
+                blockStart = offset;
+                block.clear().limit((int) Math.min(block.capacity(), size - offset));
+                readFully(channel, block, offset);
+                block.get(HEADER, from).get(HEADER + fromLength, body);
+            } else {
+                readFully(channel, ByteBuffer.wrap(from), offset + HEADER);
+                readFully(channel, ByteBuffer.wrap(body), offset + HEADER + fromLength);
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(from);
+            crc.update(body);
+            if ((int) crc.getValue() != header.getInt(20)) {
+                return;
+            }
+            visitor.visit(offset, header, from, body);
+            offset = end;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    private static class Segment {
+        final Path file;
+        final long first;
+        final long last;
+
+        Segment(Path file, long first, long last) {
+            this.file = file;
+            this.first = first;
+            this.last = last;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.example;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// One line of a mailbox listing: a stored attachment or file, or the messages from one sender
+public final class MailboxEntry {
+
+    private final String name;
+    private final long timestamp;
+    private final long size;
+    private final int messages;
+
+    public MailboxEntry(String name, long timestamp, long size, int messages) {
+        this.name = name;
+        this.timestamp = timestamp;
+        this.size = size;
+        this.messages = messages;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    // Modification time for files, newest message for senders
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // 0 for plain files
+    public int messages() {
+        return messages;
+    }
+
+    // Wire form inside a LIST reply: length-prefixed UTF-8 name, then timestamp, size and message count as varints
+    public int encodedLength() {
+        int nameLength = Frame.utf8Length(name);
+        return Frame.varintLength(nameLength) + nameLength + Frame.varintLength(timestamp)
+                + Frame.varintLength(size) + Frame.varintLength(messages);
+    }
+
+    public void write(ByteBuffer out) {
+        Frame.putVarint(out, Frame.utf8Length(name));
+        Frame.putUtf8(out, name);
+        Frame.putVarint(out, timestamp);
+        Frame.putVarint(out, size);
+        Frame.putVarint(out, messages);
+    }
+
+    public static MailboxEntry read(ByteBuffer in) throws ProtocolException {
+        long nameLength = Frame.getVarint(in);
+        if (nameLength > in.remaining()) {
+            throw new ProtocolException("Entry name overruns the frame");
+        }
+        byte[] name = new byte[(int) nameLength];
+        in.get(name);
+        return new MailboxEntry(new String(name, StandardCharsets.UTF_8), Frame.getVarint(in), Frame.getVarint(in),
+                (int) Frame.getVarint(in));
+    }
+}
@@ -0,0 +1,314 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps the set of accounts in memory from startup and an LRU of mailbox listings,
+// bounded by the total number of entries held. createAccount, sendEmail and
+// assembleFile update it as they go, so LOGIN is answered without touching the disk
+// unless the listing was evicted.
+public class MailboxIndex {
+
+    public enum Sort {
+        NAME(Comparator.comparing(MailboxEntry::name)),
+        // Newest first, ties by name so pages stay stable
+        DATE(Comparator.comparingLong(MailboxEntry::timestamp).reversed().thenComparing(MailboxEntry::name));
+
+        private final Comparator<MailboxEntry> order;
+
+        Sort(Comparator<MailboxEntry> order) {
+            this.order = order;
+        }
+
+        public static Sort of(int code) {
+            return code == DATE.ordinal() ? DATE : NAME;
+        }
+    }
+
+    private static final String SENDER_PREFIX = "email_from_";
+    private static final String SENDER_SUFFIX = ".txt";
+
+    private final Path root;
+    private final MailStore store;
+    private final int maxEntries;
+    private final Set<String> accounts = ConcurrentHashMap.newKeySet();
+    private final LinkedHashMap<String, Listing> cache = new LinkedHashMap<>(256, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // Bumped under the cache lock by every change, so a listing read from disk while an
+    // upload lands on another lane is not cached without that file
+    private final long[] changes = new long[64];
+    private int cachedEntries;
+
+    public MailboxIndex(Path root, MailStore store, int maxEntries) {
+        this.root = root;
+        this.store = store;
+        this.maxEntries = maxEntries;
+    }
+
+    public void load() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                String name = dir.getFileName().toString();
+                if (!name.startsWith(".")) {
+                    accounts.add(name);
+                }
+            }
+        }
+    }
+
+    public boolean exists(String account) {
+        return accounts.contains(account);
+    }
+
+    public int accounts() {
+        return accounts.size();
+    }
+
+    public void accountCreated(String account) {
+        accounts.add(account);
+    }
+
+    // After the account's folder has gone, e.g. moved to the cluster node that owns it
+    public void accountRemoved(String account) {
+        accounts.remove(account);
+        synchronized (cache) {
+            changes[stripe(account)]++;
+            Listing listing = cache.remove(account);
+            if (listing != null) {
+                cachedEntries -= listing.size();
+            }
+        }
+    }
+
+    public List<String> accountNames() {
+        return new ArrayList<>(accounts);
+    }
+
+    public void messageAppended(String account, String from, long timestamp) {
+        Listing listing = changed(account);
+        if (listing != null) {
+            grow(listing.addMessage(from, timestamp));
+        }
+    }
+
+    public void fileAdded(String account, String fileName, long timestamp, long size) {
+        Listing listing = changed(account);
+        if (listing != null) {
+            grow(listing.addFile(fileName, timestamp, size));
+        }
+    }
+
+    // Listing sorted by name
+    public List<MailboxEntry> listing(String account) throws IOException {
+        return listing(account, Sort.NAME, "");
+    }
+
+    // Entries whose name contains the filter, ignoring case, in the given order. The list is
+    // a shared snapshot kept until the mailbox changes, so paging through it is cheap.
+    public List<MailboxEntry> listing(String account, Sort sort, String filter) throws IOException {
+        return entries(account).view(sort, filter);
+    }
+
+    private Listing entries(String account) throws IOException {
+        Listing listing = cached(account);
+        if (listing != null) {
+            hits.increment();
+            return listing;
+        }
+        misses.increment();
+        int stripe = stripe(account);
+        long before;
+        synchronized (cache) {
+            before = changes[stripe];
+        }
+        listing = load(account);
+        synchronized (cache) {
+            if (changes[stripe] == before) {
+                Listing previous = cache.put(account, listing);
+                cachedEntries += listing.size() - (previous != null ? previous.size() : 0);
+                evict();
+            }
+        }
+        return listing;
+    }
+
+    public boolean hasSender(String account, String sender) throws IOException {
+        for (MailboxEntry entry : listing(account)) {
+            if (entry.messages() > 0 && entry.name().equals(SENDER_PREFIX + sender + SENDER_SUFFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int cachedEntries() {
+        synchronized (cache) {
+            return cachedEntries;
+        }
+    }
+
+    private Listing cached(String account) {
+        synchronized (cache) {
+            return cache.get(account);
+        }
+    }
+
+    private Listing changed(String account) {
+        synchronized (cache) {
+            changes[stripe(account)]++;
+            return cache.get(account);
+        }
+    }
+
+    private int stripe(String account) {
+        return account.hashCode() & (changes.length - 1);
+    }
+
+    private void grow(int added) {
+        if (added > 0) {
+            synchronized (cache) {
+                cachedEntries += added;
+                evict();
+            }
+        }
+    }
+
+    // Drops least recently used listings until the entry budget fits; the newest always stays
+    private void evict() {
+        var iterator = cache.entrySet().iterator();
+        while (cachedEntries > maxEntries && cache.size() > 1 && iterator.hasNext()) {
+            cachedEntries -= iterator.next().getValue().size();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    private Listing load(String account) throws IOException {
+        Listing listing = new Listing();
+        Path dir = root.resolve(account);
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (!name.startsWith(".")) {
+                        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                        listing.addFile(name, attributes.lastModifiedTime().toMillis(), attributes.size());
+                    }
+                }
+            }
+            Path references = dir.resolve(BlobStore.REFERENCE_FOLDER);
+            if (Files.isDirectory(references)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(references)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        if (!name.startsWith(".")) {
+                            listing.addFile(name, Files.getLastModifiedTime(file).toMillis(), BlobStore.referencedSize(file));
+                        }
+                    }
+                }
+            }
+        }
+        store.headers(account, listing::addMessage);
+        return listing;
+    }
+
+    private static class Listing {
+        private final Map<String, MailboxEntry> entries = new TreeMap<>();
+        private final Map<Sort, List<MailboxEntry>> sorted = new EnumMap<>(Sort.class);
+        private Sort lastSort;
+        private String lastFilter;
+        private List<MailboxEntry> lastView;
+
+        synchronized int addFile(String name, long timestamp, long size) {
+            MailboxEntry previous = entries.get(name);
+            // A sender's stored mail takes the name over from a leftover text file
+            int messages = previous != null ? previous.messages() : 0;
+            entries.put(name, new MailboxEntry(name, Math.max(timestamp, previous != null ? previous.timestamp() : 0), size, messages));
+            changed();
+            return previous == null ? 1 : 0;
+        }
+
+        synchronized int addMessage(String from, long timestamp) {
+            String name = SENDER_PREFIX + from + SENDER_SUFFIX;
+            MailboxEntry previous = entries.get(name);
+            changed();
+            if (previous == null) {
+                entries.put(name, new MailboxEntry(name, timestamp, 0, 1));
+                return 1;
+            }
+            entries.put(name, new MailboxEntry(name, Math.max(timestamp, previous.timestamp()), previous.size(),
+                    previous.messages() + 1));
+            return 0;
+        }
+
+        synchronized List<MailboxEntry> view(Sort sort, String filter) {
+            if (sort == lastSort && filter.equals(lastFilter)) {
+                return lastView;
+            }
+            List<MailboxEntry> all = sorted.get(sort);
+            if (all == null) {
+                List<MailboxEntry> copy = new ArrayList<>(entries.values());
+                if (sort != Sort.NAME) {
+                    copy.sort(sort.order);
+                }
+                all = List.copyOf(copy);
+                sorted.put(sort, all);
+            }
+            List<MailboxEntry> view = all;
+            if (!filter.isEmpty()) {
+                String needle = filter.toLowerCase();
+                List<MailboxEntry> matches = new ArrayList<>();
+                for (MailboxEntry entry : all) {
+                    if (entry.name().toLowerCase().contains(needle)) {
+                        matches.add(entry);
+                    }
+                }
+                view = List.copyOf(matches);
+            }
+            lastSort = sort;
+            lastFilter = filter;
+            lastView = view;
+            return view;
+        }
+
+        private void changed() {
+            sorted.clear();
+            lastView = null;
+            lastSort = null;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.example;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// List model over a remote mailbox listing. Rows are fetched a page at a time on a
+// background thread the first time the list asks for them, and only a bounded number
+// of pages is kept, so opening a mailbox with 100k entries costs one small request.
+// Rows that are still loading read as null. Everything except the fetch runs on the EDT.
+public class MailboxListModel extends AbstractListModel<MailboxEntry> {
+
+    public static final int PAGE_ROWS = 64;
+    private static final int CACHED_PAGES = 256;
+
+    public interface Loader {
+        // Adds the entries from the cursor on, at most limit of them, and returns the current number of matches
+        int fetch(int cursor, int limit, List<MailboxEntry> into) throws IOException;
+    }
+
+    private final Loader loader;
+    private final ExecutorService fetcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mailbox-list");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<Integer, MailboxEntry[]> pages = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, MailboxEntry[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    private final Set<Integer> pending = new HashSet<>();
+    private int size;
+
+    public MailboxListModel(Loader loader) {
+        this.loader = loader;
+    }
+
+    // Fetches the first page, which also tells the list how many rows there are
+    public void refresh() {
+        request(0);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public MailboxEntry getElementAt(int index) {
+        int page = index / PAGE_ROWS;
+        int row = index % PAGE_ROWS;
+        MailboxEntry[] rows = pages.get(page);
+        if (rows == null || row >= rows.length) {
+            // Missing, or cut short by a failed fetch
+            request(page);
+            return null;
+        }
+        return rows[row];
+    }
+
+    public void close() {
+        fetcher.shutdownNow();
+    }
+
+    private void request(int page) {
+        if (pending.add(page)) {
+            fetcher.execute(() -> load(page, page * PAGE_ROWS, PAGE_ROWS));
+        }
+    }
+
+    // A page can span several replies when names are long; keep asking until it is full or the listing ends
+    private void load(int page, int first, int limit) {
+        List<MailboxEntry> entries = new ArrayList<>(limit);
+        int total = -1;
+        try {
+            while (entries.size() < limit) {
+                int before = entries.size();
+                total = loader.fetch(first + before, limit - before, entries);
+                if (entries.size() == before || first + entries.size() >= total) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Leave the rows empty; they are asked for again the next time they are painted
+        }
+        int matches = total;
+        SwingUtilities.invokeLater(() -> loaded(page, first, entries, matches));
+    }
+
+    private void loaded(int page, int first, List<MailboxEntry> entries, int total) {
+        pending.remove(page);
+        if (entries.isEmpty() && total < 0) {
+            return;
+        }
+        pages.put(page, entries.toArray(new MailboxEntry[0]));
+        if (total >= 0 && total != size) {
+            // The first reply sets the row count; a later change means the mailbox changed and other pages may have shifted
+            int previous = size;
+            size = total;
+            pages.keySet().removeIf(cached -> cached != page);
+            if (total > previous) {
+                fireIntervalAdded(this, previous, total - 1);
+            } else {
+                fireIntervalRemoved(this, total, previous - 1);
+            }
+            fireContentsChanged(this, 0, Math.max(0, total - 1));
+        } else if (!entries.isEmpty()) {
+            fireContentsChanged(this, first, first + entries.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Moves the old per-sender text mailboxes into the segment store.
+// Run it while the server is stopped:
+//
+//   java -cp Mail.jar org.example.MailboxMigration [MailServer/]
+//
+// Each "dd/MM/yyyy HH:mm:ss - text" line starts a message; lines without a timestamp
+// belong to the message before them, since bodies may contain newlines. Migrated
+// files are moved to <account>/.mailbox/migrated so the tool can be rerun safely.
+public class MailboxMigration {
+
+    private static final Pattern LINE = Pattern.compile("^(\\d{2}/\\d{2}/\\d{4} \\d{2}:\\d{2}:\\d{2}) - (.*)$");
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
+
+    public static void main(String[] args) throws IOException {
+        Path root = Paths.get(args.length > 0 ? args[0] : "MailServer/");
+        int files = 0;
+        long messages = 0;
+        try (MailStore store = new MailStore(root, MailStore.FsyncPolicy.BATCH, 100, 64L * 1024 * 1024);
+             DirectoryStream<Path> accounts = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path account : accounts) {
+                String accountName = account.getFileName().toString();
+                if (accountName.startsWith(".")) {
+                    continue;
+                }
+                try (DirectoryStream<Path> mailFiles = Files.newDirectoryStream(account, "email_from_*.txt")) {
+                    for (Path mailFile : mailFiles) {
+                        messages += migrate(store, accountName, mailFile);
+                        files++;
+                    }
+                }
+            }
+        }
+        System.out.println("Migrated " + messages + " messages from " + files + " files under " + root.toAbsolutePath());
+    }
+
+    private static long migrate(MailStore store, String account, Path mailFile) throws IOException {
+        String name = mailFile.getFileName().toString();
+        String sender = name.substring("email_from_".length(), name.length() - ".txt".length());
+        long fallbackTime = Files.getLastModifiedTime(mailFile).toMillis();
+        List<String> lines = Files.readAllLines(mailFile, StandardCharsets.UTF_8);
+
+        long count = 0;
+        long timestamp = fallbackTime;
+        StringBuilder body = null;
+        for (String line : lines) {
+            Matcher matcher = LINE.matcher(line);
+            if (matcher.matches()) {
+                if (body != null) {
+                    store.append(account, sender, body.toString(), timestamp);
+                    count++;
+                }
+                timestamp = parse(matcher.group(1), fallbackTime);
+                body = new StringBuilder(matcher.group(2));
+            } else if (body != null) {
+                body.append('\n').append(line);
+            } else {
+                body = new StringBuilder(line);
+            }
+        }
+        if (body != null) {
+            store.append(account, sender, body.toString(), timestamp);
+            count++;
+        }
+        store.flush();
+
+        Path migrated = store.mailboxDir(account).resolve("migrated");
+        Files.createDirectories(migrated);
+        Files.move(mailFile, migrated.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+        return count;
+    }
+
+    private static long parse(String timestamp, long fallback) {
+        try {
+            return LocalDateTime.parse(timestamp, FORMAT).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return fallback;
+        }
+    }
+}
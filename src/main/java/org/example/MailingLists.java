@@ -0,0 +1,58 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Mailing lists kept by the operator as MailServer/.lists/<name>.list, one account per
+// line, '#' for comments. A list is read again only when its file changes.
+public class MailingLists {
+
+    public static final String FOLDER = ".lists";
+    public static final char PREFIX = '@';
+
+    private final Path dir;
+    private final Map<String, Members> cache = new ConcurrentHashMap<>();
+
+    private record Members(long modified, List<String> accounts) {
+    }
+
+    public MailingLists(Path root) {
+        this.dir = root.resolve(FOLDER);
+    }
+
+    // The accounts on the list, or null if there is no such list
+    public List<String> members(String name) throws IOException {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            return null;
+        }
+        Path file = dir.resolve(name + ".list");
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (NoSuchFileException e) {
+            cache.remove(name);
+            return null;
+        }
+        Members members = cache.get(name);
+        if (members == null || members.modified != modified) {
+            List<String> accounts = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String account = line.strip();
+                if (!account.isEmpty() && account.charAt(0) != '#') {
+                    accounts.add(account);
+                }
+            }
+            members = new Members(modified, Collections.unmodifiableList(accounts));
+            cache.put(name, members);
+        }
+        return members.accounts;
+    }
+}
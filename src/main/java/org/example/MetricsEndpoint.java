@@ -0,0 +1,71 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Publishes ServerMetrics as JSON on http://127.0.0.1:<port>/metrics and as an MXBean.
+// The HTTP server only listens on the loopback interface; nothing here is meant to be public.
+public class MetricsEndpoint implements Closeable {
+
+    private final HttpServer http;
+    private final ObjectName name;
+
+    public MetricsEndpoint(ServerMetrics metrics, int httpPort, boolean jmx, String instance) throws IOException {
+        if (httpPort >= 0) {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            http.createContext("/metrics", exchange -> respond(exchange, metrics.getJson()));
+            http.start();
+        } else {
+            http = null;
+        }
+        ObjectName registered = null;
+        if (jmx) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                registered = new ObjectName("org.example:type=MailServer,name=" + instance);
+                server.registerMBean(metrics, registered);
+            } catch (JMException e) {
+                throw new IOException("Failed to register the metrics MXBean: " + e.getMessage(), e);
+            }
+        }
+        name = registered;
+    }
+
+    public InetSocketAddress httpAddress() {
+        return http != null ? http.getAddress() : null;
+    }
+
+    @Override
+    public void close() {
+        if (http != null) {
+            http.stop(0);
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                // already gone
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+// Non-blocking DatagramChannel driven by a Selector. Datagrams are read straight
+// into pooled direct buffers and drained in a burst on every wake-up, so no buffer
+// is allocated per packet. The receive path is not allocation-free, though, and that
+// is accepted: DatagramChannel.receive returns a new InetSocketAddress and InetAddress
+// for every datagram's source, with no variant that fills in an existing one, and
+// handlers still build Strings from Frame.field and the log lines some requests write.
+// LoopbackThroughputBenchmark -prof gc puts an empty LIST at about 700 bytes all told,
+// the benchmark's own client included.
+public class NioTransport implements Transport {
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final PacketPool pool;
+
+    public NioTransport(SocketAddress bindAddress, int poolSize, int bufferSize, int socketBuffer) throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBuffer);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBuffer);
+        channel.bind(bindAddress);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        pool = new PacketPool(poolSize, bufferSize);
+    }
+
+    @Override
+    public void receive(PacketHandler handler) throws IOException {
+        try {
+            while (channel.isOpen()) {
+                selector.select();
+                selector.selectedKeys().clear();
+                drain(handler);
+            }
+        } catch (ClosedSelectorException e) {
+            // closed from another thread
+        }
+    }
+
+    private void drain(PacketHandler handler) throws IOException {
+        while (true) {
+            Packet packet;
+            try {
+                packet = pool.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+            }
+            SocketAddress source = channel.receive(packet.data());
+            if (source == null) {
+                packet.release();
+                return;
+            }
+            packet.data().flip();
+            packet.source(source);
+            handler.onPacket(packet);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer data, SocketAddress target) throws IOException {
+        // A non-blocking send returns 0 when the socket buffer is full; spin until the kernel takes it
+        int length = data.remaining();
+        while (channel.send(data, target) == 0 && length > 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    public PacketPool pool() {
+        return pool;
+    }
+
+    @Override
+    public InetSocketAddress localAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        channel.close();
+    }
+}
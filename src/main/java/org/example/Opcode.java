@@ -0,0 +1,41 @@
+package org.example;
+
+public enum Opcode {
+    CONNECT(1),
+    DISCONNECT(2),
+    CREATE_ACCOUNT(3),
+    LOGIN(4),
+    SEND_EMAIL(5),
+    ATTACH_BEGIN(6),
+    ATTACH_CHUNK(7),
+    DOWNLOAD_FILE(8),
+    REPLY(9),
+    ERROR(10),
+    ACK(11),
+    NACK(12),
+    DOWNLOAD_RANGE(13),
+    DOWNLOAD_DATA(14),
+    LIST(15),
+    HEARTBEAT(16),
+    MTU_PROBE(17),
+    SEARCH(18),
+    FORWARD(19);
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+        }
+    }
+
+    public final int code;
+
+    Opcode(int code) {
+        this.code = code;
+    }
+
+    public static Opcode of(int code) {
+        return BY_CODE[code & 0xFF];
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+// Wraps an AIMD window with token-bucket pacing: chunks are released at roughly
+// 1.25 windows per round trip with a small burst allowance, instead of a full
+// window back to back. That keeps bursts from overrunning the receiver's socket
+// buffer when many uploaders share it.
+public class PacedController implements CongestionController {
+
+    private static final double PACING_GAIN = 1.25;
+    private static final int BURST_CHUNKS = 4;
+
+    private final AimdController window;
+    private double tokens;
+    private long lastRefill;
+    private int chunkBytes;
+
+    public PacedController(AimdController window) {
+        this.window = window;
+    }
+
+    @Override
+    public int window() {
+        return window.window();
+    }
+
+    @Override
+    public long pacingRate() {
+        long rtt = window.smoothedRtt();
+        if (rtt <= 0 || chunkBytes == 0) {
+            return 0;
+        }
+        return (long) (PACING_GAIN * window.window() * chunkBytes * 1_000_000_000L / rtt);
+    }
+
+    @Override
+    public long sendDelayNanos(long now, int bytes) {
+        long rate = pacingRate();
+        if (rate == 0) {
+            return 0;
+        }
+        refill(now, rate, bytes);
+        if (tokens >= bytes) {
+            return 0;
+        }
+        return (long) ((bytes - tokens) * 1_000_000_000L / rate);
+    }
+
+    private void refill(long now, long rate, int bytes) {
+        if (lastRefill != 0) {
+            tokens = Math.min(tokens + (now - lastRefill) * rate / 1e9, (double) BURST_CHUNKS * bytes);
+        }
+        lastRefill = now;
+    }
+
+    @Override
+    public void onSent(long now, int bytes) {
+        chunkBytes = bytes;
+        if (lastRefill != 0) {
+            tokens -= bytes;
+        }
+    }
+
+    @Override
+    public void onAck(int chunks, long rttNanos) {
+        window.onAck(chunks, rttNanos);
+    }
+
+    @Override
+    public void onLoss(boolean timeout) {
+        window.onLoss(timeout);
+    }
+}
@@ -0,0 +1,78 @@
+package org.example;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+// A received datagram. Pooled packets go back to their pool on release(),
+// so the buffer must not be touched afterwards. A packet is also the task a worker
+// runs for it, so handing it to a worker allocates nothing.
+public class Packet implements Runnable {
+
+    private final ByteBuffer data;
+    private final PacketPool pool;
+    private SocketAddress source;
+    private Frame frame;
+    private Consumer<Packet> handler;
+    private Session session;
+    private long received;
+
+    Packet(ByteBuffer data, PacketPool pool) {
+        this.data = data;
+        this.pool = pool;
+    }
+
+    public ByteBuffer data() {
+        return data;
+    }
+
+    public int length() {
+        return data.remaining();
+    }
+
+    // The decode target is kept with the packet so pooled packets reuse it
+    public Frame frame() {
+        if (frame == null) {
+            frame = new Frame();
+        }
+        return frame;
+    }
+
+    public SocketAddress source() {
+        return source;
+    }
+
+    void source(SocketAddress source) {
+        this.source = source;
+    }
+
+    // What run() hands the packet to, along with the session it belongs to and when it arrived
+    public Packet dispatch(Consumer<Packet> handler, Session session, long received) {
+        this.handler = handler;
+        this.session = session;
+        this.received = received;
+        return this;
+    }
+
+    public Session session() {
+        return session;
+    }
+
+    public long received() {
+        return received;
+    }
+
+    @Override
+    public void run() {
+        handler.accept(this);
+    }
+
+    public void release() {
+        if (pool != null) {
+            source = null;
+            session = null;
+            data.clear();
+            pool.release(this);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bounded set of packets backed by direct buffers, or heap buffers for DatagramSocket, which
+// reads into arrays. Buffers are big enough for any datagram, so they are only allocated when
+// a burst needs more than are free; once the bound is reached acquire() blocks, which
+// throttles the receive thread instead of allocating.
+public class PacketPool {
+
+    private final BlockingQueue<Packet> free;
+    private final int size;
+    private final int bufferSize;
+    private final boolean direct;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    public PacketPool(int size, int bufferSize) {
+        this(size, bufferSize, true);
+    }
+
+    public PacketPool(int size, int bufferSize, boolean direct) {
+        this.size = size;
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        free = new ArrayBlockingQueue<>(size);
+    }
+
+    public Packet acquire() throws InterruptedException {
+        Packet packet = free.poll();
+        if (packet != null) {
+            return packet;
+        }
+        while (true) {
+            int count = allocated.get();
+            if (count >= size) {
+                return free.take();
+            }
+            if (allocated.compareAndSet(count, count + 1)) {
+                return new Packet(direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize), this);
+            }
+        }
+    }
+
+    void release(Packet packet) {
+        free.offer(packet);
+    }
+
+    public int available() {
+        return size - allocated.get() + free.size();
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+}
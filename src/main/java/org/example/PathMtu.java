@@ -0,0 +1,64 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+
+// Picks the largest datagram that reaches the server in one piece. Java cannot set the
+// don't-fragment bit, so a probe bigger than the path would still arrive as IP fragments;
+// the candidates are therefore capped by the MTU of the local interface that routes to the
+// server (65536 on loopback, 1500 on most Ethernet, 9000 with jumbo frames), and the probes
+// only confirm that the size also gets through end to end.
+public final class PathMtu {
+
+    public static final int MAX_DATAGRAM = 65507;
+    private static final int IPV4_OVERHEAD = 20 + 8;
+    private static final int IPV6_OVERHEAD = 40 + 8;
+    // Jumbo frames, Ethernet, Ethernet behind a tunnel, and the IPv6 minimum
+    private static final int[] LINK_MTUS = {9000, 1500, 1428, 1280};
+
+    public interface Link {
+        // Sends a datagram of exactly this many bytes and reports whether the server saw it
+        boolean probe(int datagramBytes) throws IOException;
+    }
+
+    private PathMtu() {
+    }
+
+    public static int discover(InetAddress server, int port, Link link) throws IOException {
+        int overhead = server instanceof Inet6Address ? IPV6_OVERHEAD : IPV4_OVERHEAD;
+        int limit = Math.min(MAX_DATAGRAM, interfaceMtu(server, port) - overhead);
+        if (link.probe(limit)) {
+            return limit;
+        }
+        for (int mtu : LINK_MTUS) {
+            int size = mtu - overhead;
+            if (size < limit && link.probe(size)) {
+                return size;
+            }
+        }
+        return LINK_MTUS[LINK_MTUS.length - 1] - IPV6_OVERHEAD;
+    }
+
+    // Chunk payload that fits a datagram of the given size behind the largest frame header
+    public static int chunkSize(int datagramBytes) {
+        return datagramBytes - Frame.MAX_HEADER;
+    }
+
+    private static int interfaceMtu(InetAddress server, int port) {
+        // Connecting a datagram socket sends nothing; it only asks the kernel for a route
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(new InetSocketAddress(server, port));
+            NetworkInterface nic = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+            if (nic != null && nic.getMTU() > 0) {
+                return nic.getMTU();
+            }
+        } catch (IOException e) {
+            // fall through to the Ethernet default
+        }
+        return 1500;
+    }
+}
@@ -0,0 +1,70 @@
+package org.example;
+
+import java.util.Arrays;
+
+// Sorted document ids in a plain int array, so posting lists neither box ids nor
+// allocate a node per entry. Postings are ascending; search results are kept newest first.
+final class PostingList {
+
+    private int[] ids;
+    private int size;
+
+    PostingList() {
+        this(4);
+    }
+
+    PostingList(int capacity) {
+        ids = new int[Math.max(1, capacity)];
+    }
+
+    PostingList(int[] ids, int size) {
+        this.ids = ids;
+        this.size = size;
+    }
+
+    // Ids must arrive in order; a repeat of the last id is ignored
+    void add(int id) {
+        if (size > 0 && ids[size - 1] == id) {
+            return;
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        ids[size++] = id;
+    }
+
+    int get(int index) {
+        return ids[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Ids in both lists. Each id of the shorter list is looked for by galloping through the
+    // longer one, so a rare term against a common one costs little more than the rare list.
+    PostingList intersect(PostingList other) {
+        PostingList small = size <= other.size ? this : other;
+        PostingList large = small == this ? other : this;
+        PostingList result = new PostingList(small.size);
+        int from = 0;
+        for (int i = 0; i < small.size && from < large.size; i++) {
+            int id = small.ids[i];
+            int step = 1;
+            int high = from;
+            while (high < large.size && large.ids[high] < id) {
+                from = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            int found = Arrays.binarySearch(large.ids, from, Math.min(high + 1, large.size), id);
+            if (found >= 0) {
+                result.add(id);
+                from = found + 1;
+            } else {
+                from = -found - 1;
+            }
+        }
+        return result;
+    }
+}
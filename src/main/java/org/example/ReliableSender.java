@@ -0,0 +1,246 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.locks.LockSupport;
+
+// Sliding-window sender for attachment chunks over UDP.
+//
+// The receiver answers chunks with ACK frames: seq is the cumulative ack (first
+// missing index) and the payload is a bitmap of which chunks after it have arrived.
+// A NACK has the same shape and is sent as soon as the receiver sees a gap, which
+// triggers a fast retransmit of the holes. Anything still unacknowledged after the
+// retransmission timeout is resent; the timeout follows RFC 6298 using RTT samples
+// from chunks that were only sent once (Karn's rule). How many chunks may be in
+// flight, and how fast they go out, is left to a CongestionController.
+public class ReliableSender {
+
+    public static final int MAX_WINDOW = 256;
+    private static final long MIN_RTO_NANOS = 20_000_000L;
+    private static final long MAX_RTO_NANOS = 5_000_000_000L;
+    private static final long INITIAL_RTO_NANOS = 250_000_000L;
+    private static final int MAX_RETRIES = 12;
+    private static final int DUPLICATE_ACK_THRESHOLD = 3;
+
+    public interface Link {
+        void sendChunk(int index) throws IOException;
+
+        // The next ACK or NACK for this transfer, or null if none arrived in time
+        Frame receiveAck(long timeoutMillis) throws IOException;
+
+        // Called whenever more chunks have been acknowledged
+        default void progress(int ackedChunks, int totalChunks) {
+        }
+    }
+
+    private final Link link;
+    private final int totalChunks;
+    private final int chunkBytes;
+    private final CongestionController controller;
+    private final BitSet acked;
+    private final long[] sentAt = new long[MAX_WINDOW];
+    private final int[] retries = new int[MAX_WINDOW];
+    private int base;
+    private int next;
+    private int highestAcked = -1;
+    private int ackedCount;
+    private int duplicateAcks;
+    private long srtt;
+    private long rttvar;
+    private long rto = INITIAL_RTO_NANOS;
+    private long retransmissions;
+
+    public ReliableSender(Link link, int totalChunks, int chunkBytes, CongestionController controller) {
+        this(link, totalChunks, chunkBytes, controller, 0);
+    }
+
+    // Starts at firstChunk when the receiver already has every chunk before it, as when resuming an upload
+    public ReliableSender(Link link, int totalChunks, int chunkBytes, CongestionController controller, int firstChunk) {
+        this.link = link;
+        this.totalChunks = totalChunks;
+        this.chunkBytes = chunkBytes;
+        this.controller = controller;
+        this.acked = new BitSet(totalChunks);
+        acked.set(0, firstChunk);
+        base = firstChunk;
+        next = firstChunk;
+        highestAcked = firstChunk - 1;
+        ackedCount = firstChunk;
+    }
+
+    public void run() throws IOException {
+        while (base < totalChunks) {
+            long now = System.nanoTime();
+            long pacingDelay = 0;
+            while (next < totalChunks && next - base < window()) {
+                pacingDelay = controller.sendDelayNanos(now, chunkBytes);
+                if (pacingDelay > 0) {
+                    break;
+                }
+                transmit(next++, now);
+                now = System.nanoTime();
+            }
+
+            long waitNanos = earliestDeadline() - now;
+            if (pacingDelay > 0 && pacingDelay < waitNanos) {
+                if (pacingDelay < 1_000_000L) {
+                    // Socket timeouts only have millisecond resolution; sub-millisecond gaps are parked out
+                    LockSupport.parkNanos(pacingDelay);
+                    continue;
+                }
+                waitNanos = pacingDelay;
+            }
+            Frame ack = link.receiveAck(Math.max(1, waitNanos / 1_000_000L));
+            if (ack != null) {
+                onAck(ack);
+            }
+            retransmitExpired();
+        }
+    }
+
+    private int window() {
+        return Math.max(1, Math.min(controller.window(), MAX_WINDOW));
+    }
+
+    private void transmit(int index, long now) throws IOException {
+        int slot = index % MAX_WINDOW;
+        retries[slot] = 0;
+        sentAt[slot] = now;
+        controller.onSent(now, chunkBytes);
+        link.sendChunk(index);
+    }
+
+    private void retransmit(int index) throws IOException {
+        int slot = index % MAX_WINDOW;
+        if (++retries[slot] > MAX_RETRIES) {
+            throw new SocketTimeoutException("Chunk " + index + " was not acknowledged after " + MAX_RETRIES + " retries");
+        }
+        retransmissions++;
+        sentAt[slot] = System.nanoTime();
+        controller.onSent(sentAt[slot], chunkBytes);
+        link.sendChunk(index);
+    }
+
+    private void onAck(Frame ack) throws IOException {
+        long now = System.nanoTime();
+        int cumulative = (int) Math.min(ack.seq(), totalChunks);
+        int previousBase = base;
+        int previouslyAcked = ackedCount;
+        long sample = -1;
+
+        for (int i = base; i < cumulative; i++) {
+            sample = markAcked(i, now, sample);
+        }
+        ByteBuffer bitmap = ack.payload();
+        for (int bit = 0; bit < bitmap.remaining() * 8; bit++) {
+            int index = cumulative + 1 + bit;
+            if (index >= next) {
+                break;
+            }
+            if ((bitmap.get(bit >> 3) & (1 << (bit & 7))) != 0) {
+                sample = markAcked(index, now, sample);
+            }
+        }
+        while (base < totalChunks && acked.get(base)) {
+            base++;
+        }
+        if (sample >= 0) {
+            updateRto(sample);
+        }
+        if (ackedCount > previouslyAcked) {
+            controller.onAck(ackedCount - previouslyAcked, sample);
+            link.progress(ackedCount, totalChunks);
+        }
+
+        if (ack.opcode() == Opcode.NACK) {
+            fastRetransmit(now);
+        } else if (base == previousBase && base < next) {
+            if (++duplicateAcks >= DUPLICATE_ACK_THRESHOLD) {
+                fastRetransmit(now);
+                duplicateAcks = 0;
+            }
+        } else {
+            duplicateAcks = 0;
+        }
+    }
+
+    private long markAcked(int index, long now, long sample) {
+        if (index >= next || acked.get(index)) {
+            return sample;
+        }
+        acked.set(index);
+        ackedCount++;
+        highestAcked = Math.max(highestAcked, index);
+        int slot = index % MAX_WINDOW;
+        // Only chunks sent exactly once give an unambiguous RTT sample
+        if (retries[slot] == 0) {
+            sample = now - sentAt[slot];
+        }
+        return sample;
+    }
+
+    // Resend every hole below the highest acknowledged chunk that has not been resent within the last RTT
+    private void fastRetransmit(long now) throws IOException {
+        long guard = srtt > 0 ? srtt : MIN_RTO_NANOS;
+        boolean resent = false;
+        for (int i = base; i < highestAcked; i++) {
+            if (!acked.get(i) && now - sentAt[i % MAX_WINDOW] >= guard) {
+                retransmit(i);
+                resent = true;
+            }
+        }
+        if (resent) {
+            controller.onLoss(false);
+        }
+    }
+
+    private void retransmitExpired() throws IOException {
+        long now = System.nanoTime();
+        boolean expired = false;
+        for (int i = base; i < next; i++) {
+            if (!acked.get(i) && now - sentAt[i % MAX_WINDOW] >= rto) {
+                retransmit(i);
+                expired = true;
+            }
+        }
+        if (expired) {
+            rto = Math.min(rto * 2, MAX_RTO_NANOS);
+            controller.onLoss(true);
+        }
+    }
+
+    private long earliestDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (int i = base; i < next; i++) {
+            if (!acked.get(i)) {
+                earliest = Math.min(earliest, sentAt[i % MAX_WINDOW] + rto);
+            }
+        }
+        return earliest == Long.MAX_VALUE ? System.nanoTime() + rto : earliest;
+    }
+
+    private void updateRto(long sample) {
+        if (srtt == 0) {
+            srtt = sample;
+            rttvar = sample / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+            srtt = (7 * srtt + sample) / 8;
+        }
+        rto = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, srtt + Math.max(1_000_000L, 4 * rttvar)));
+    }
+
+    public long smoothedRttNanos() {
+        return srtt;
+    }
+
+    public long retransmissions() {
+        return retransmissions;
+    }
+
+    public CongestionController controller() {
+        return controller;
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Appends each batch with one write and one flush. Once the file passes maxBytes it becomes
+// server.log.1, the older ones shift up, and anything beyond keepFiles is deleted.
+public class RollingLogFile implements AsyncLog.Sink {
+
+    private final Path file;
+    private final long maxBytes;
+    private final int keepFiles;
+    private BufferedWriter writer;
+    private long size;
+
+    public RollingLogFile(Path file, long maxBytes, int keepFiles) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.keepFiles = keepFiles;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        open();
+    }
+
+    @Override
+    public void write(List<String> lines) throws IOException {
+        for (String line : lines) {
+            writer.write(line);
+            writer.write('\n');
+            size += line.length() + 1;
+        }
+        writer.flush();
+        if (size >= maxBytes) {
+            roll();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private void open() throws IOException {
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        size = Files.size(file);
+    }
+
+    private void roll() throws IOException {
+        writer.close();
+        Files.deleteIfExists(rolled(keepFiles));
+        for (int i = keepFiles - 1; i >= 1; i--) {
+            if (Files.exists(rolled(i))) {
+                Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (keepFiles > 0) {
+            Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rolled(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+}
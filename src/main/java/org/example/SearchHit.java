@@ -0,0 +1,63 @@
+package org.example;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// One message found by SEARCH: its sender, when it arrived and the start of its body
+public final class SearchHit {
+
+    private final String from;
+    private final long timestamp;
+    private final String preview;
+
+    public SearchHit(String from, long timestamp, String preview) {
+        this.from = from;
+        this.timestamp = timestamp;
+        this.preview = preview;
+    }
+
+    public String from() {
+        return from;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public String preview() {
+        return preview;
+    }
+
+    // Wire form inside a SEARCH reply: length-prefixed UTF-8 sender, timestamp as a varint, length-prefixed UTF-8 preview
+    public int encodedLength() {
+        int fromLength = Frame.utf8Length(from);
+        int previewLength = Frame.utf8Length(preview);
+        return Frame.varintLength(fromLength) + fromLength + Frame.varintLength(timestamp)
+                + Frame.varintLength(previewLength) + previewLength;
+    }
+
+    public void write(ByteBuffer out) {
+        Frame.putVarint(out, Frame.utf8Length(from));
+        Frame.putUtf8(out, from);
+        Frame.putVarint(out, timestamp);
+        Frame.putVarint(out, Frame.utf8Length(preview));
+        Frame.putUtf8(out, preview);
+    }
+
+    public static SearchHit read(ByteBuffer in) throws ProtocolException {
+        String from = readUtf8(in);
+        long timestamp = Frame.getVarint(in);
+        return new SearchHit(from, timestamp, readUtf8(in));
+    }
+
+    private static String readUtf8(ByteBuffer in) throws ProtocolException {
+        long length = Frame.getVarint(in);
+        if (length > in.remaining()) {
+            throw new ProtocolException("Search hit overruns the frame");
+        }
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,568 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Inverted index over every account's messages, kept under MailServer/<account>/.search. Each
+// message is a document numbered in the order it was appended; its terms are the lower-cased
+// words of the body and "from:<sender>". New documents go into an in-memory segment that is
+// written out as a memory-mapped SearchSegment every FLUSH_DOCS documents or once the account
+// has been idle for a while, and small segments are merged in the background, so an account
+// has a logarithmic number of them. A query intersects posting lists and checks timestamps in
+// the segments; it never reads the mailbox.
+//
+// "<account>/.search/clean" marks an index that covers the whole mailbox. It is removed while
+// documents are only in memory, and recover() re-indexes the tail of any mailbox without it or
+// with a segment a crash cut short, which is only the case after a crash or for mailboxes from
+// before the index existed. Segments are not forced to disk, so evicting the index of an account
+// that got a single message costs one small write rather than an fsync.
+public class SearchIndex implements Closeable {
+
+    public static final String FOLDER = ".search";
+    public static final int MAX_TERM_LENGTH = 64;
+    static final int FLUSH_DOCS = 8192;
+    private static final String CLEAN = "clean";
+    private static final String SENDER_PREFIX = "from:";
+    private static final int MAX_SENDER_TERM = 256;
+    private static final int PREVIEW_CHARS = 96;
+    private static final int MAX_SEGMENT_DOCS = 1 << 22;
+    private static final int MAX_OPEN_ACCOUNTS = 1024;
+    private static final long IDLE_FLUSH_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long IDLE_CLOSE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    // One page of results, newest first
+    public record Page(int total, List<SearchHit> hits) {
+    }
+
+    private final Path root;
+    private final MailStore store;
+    private final Consumer<String> log;
+    private final Map<String, AccountIndex> open = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mail-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SearchIndex(Path root, MailStore store, Consumer<String> log) {
+        this.root = root;
+        this.store = store;
+        this.log = log;
+        background.scheduleWithFixedDelay(this::sweep, 10, 10, TimeUnit.SECONDS);
+    }
+
+    // Indexes the messages that every mailbox without a clean index has beyond it; returns how many mailboxes that was
+    public int recover() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        int recovered = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                String account = dir.getFileName().toString();
+                if (account.startsWith(".") || !Files.isDirectory(store.mailboxDir(account)) || intact(dir.resolve(FOLDER))) {
+                    continue;
+                }
+                AccountIndex index = open(account);
+                List<MailMessage> messages = store.read(account);
+                int from;
+                synchronized (index) {
+                    from = index.docCount;
+                }
+                for (int i = from; i < messages.size(); i++) {
+                    MailMessage message = messages.get(i);
+                    synchronized (index) {
+                        index.add(message.from(), message.body(), message.timestamp());
+                    }
+                    // Merging as segments fill keeps a large mailbox to a logarithmic number of them
+                    merge(index);
+                }
+                synchronized (index) {
+                    index.close();
+                }
+                open.remove(account, index);
+                recovered++;
+            }
+        }
+        return recovered;
+    }
+
+    // Called once the message is in the account's mailbox
+    public void added(String account, String from, String body, long timestamp) throws IOException {
+        while (true) {
+            AccountIndex index = open(account);
+            synchronized (index) {
+                if (!index.closed) {
+                    index.add(from, body, timestamp);
+                    if (index.mergeWanted()) {
+                        background.execute(() -> merge(index));
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    // Messages matching every term of the query, received between since and until (0 for no bound)
+    public Page search(String account, String query, long since, long until, int first, int max) throws IOException {
+        List<byte[]> terms = queryTerms(query);
+        while (true) {
+            AccountIndex index = open(account);
+            synchronized (index) {
+                if (!index.closed) {
+                    return index.search(terms, query + '\0' + since + '\0' + until, since, until == 0 ? Long.MAX_VALUE : until, first, max);
+                }
+            }
+        }
+    }
+
+    // Writes out and closes the account's index so its folder can be removed
+    public void release(String account) throws IOException {
+        AccountIndex index = open.remove(account);
+        if (index != null) {
+            synchronized (index) {
+                index.close();
+            }
+        }
+    }
+
+    public int openAccounts() {
+        return open.size();
+    }
+
+    // Writes every in-memory segment out and marks the indexes clean
+    @Override
+    public void close() throws IOException {
+        background.shutdownNow();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (AccountIndex index : open.values()) {
+            synchronized (index) {
+                index.close();
+            }
+        }
+        open.clear();
+    }
+
+    // Lower-cased runs of letters and digits; longer runs than MAX_TERM_LENGTH are cut
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.append(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    static String senderTerm(String from) {
+        String sender = from.toLowerCase(Locale.ROOT);
+        return SENDER_PREFIX + (sender.length() > MAX_SENDER_TERM ? sender.substring(0, MAX_SENDER_TERM) : sender);
+    }
+
+    // Words are tokenised like bodies; "from:<sender>" matches the sender exactly
+    private static List<byte[]> queryTerms(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.regionMatches(true, 0, SENDER_PREFIX, 0, SENDER_PREFIX.length()) && word.length() > SENDER_PREFIX.length()) {
+                terms.add(senderTerm(word.substring(SENDER_PREFIX.length())));
+            } else if (!word.isEmpty()) {
+                terms.addAll(terms(word));
+            }
+        }
+        List<byte[]> bytes = new ArrayList<>();
+        for (String term : terms) {
+            bytes.add(term.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes;
+    }
+
+    private static boolean intact(Path dir) throws IOException {
+        if (!Files.exists(dir.resolve(CLEAN))) {
+            return false;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.idx")) {
+            for (Path file : files) {
+                if (!SearchSegment.intact(file)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Past MAX_OPEN_ACCOUNTS the least recently used index is written out and closed first,
+    // so a fan-out to many accounts does not keep all of their in-memory segments
+    private AccountIndex open(String account) throws IOException {
+        AccountIndex index = open.get(account);
+        if (index != null) {
+            index.lastUsed = System.nanoTime();
+            return index;
+        }
+        synchronized (open) {
+            index = open.get(account);
+            if (index == null) {
+                if (open.size() >= MAX_OPEN_ACCOUNTS) {
+                    evictOne();
+                }
+                index = new AccountIndex(root.resolve(account).resolve(FOLDER));
+                open.put(account, index);
+            }
+            return index;
+        }
+    }
+
+    private void evictOne() throws IOException {
+        Map.Entry<String, AccountIndex> eldest = null;
+        for (Map.Entry<String, AccountIndex> entry : open.entrySet()) {
+            if (!entry.getValue().merging && (eldest == null || entry.getValue().lastUsed < eldest.getValue().lastUsed)) {
+                eldest = entry;
+            }
+        }
+        if (eldest != null) {
+            synchronized (eldest.getValue()) {
+                eldest.getValue().close();
+            }
+            open.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    // Flushes indexes that went quiet, and closes those idle for longer or beyond MAX_OPEN_ACCOUNTS
+    private void sweep() {
+        long now = System.nanoTime();
+        List<Map.Entry<String, AccountIndex>> entries = new ArrayList<>(open.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed));
+        int excess = entries.size() - MAX_OPEN_ACCOUNTS;
+        for (Map.Entry<String, AccountIndex> entry : entries) {
+            AccountIndex index = entry.getValue();
+            try {
+                synchronized (index) {
+                    long idle = now - index.lastUsed;
+                    if (!index.merging && (excess-- > 0 || idle > IDLE_CLOSE_NANOS)) {
+                        index.close();
+                        open.remove(entry.getKey(), index);
+                    } else if (index.liveCount > 0 && idle > IDLE_FLUSH_NANOS) {
+                        index.flush();
+                    }
+                }
+                if (index.mergeWanted()) {
+                    merge(index);
+                }
+            } catch (IOException e) {
+                log.accept("Failed to flush the search index of " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Merges the newest two segments while the newer is at least half the size of the older.
+    // The merged file is written without holding the account, which keeps indexing and searching.
+    private void merge(AccountIndex index) {
+        while (true) {
+            SearchSegment older;
+            SearchSegment newer;
+            synchronized (index) {
+                if (index.merging || !index.mergeWanted()) {
+                    return;
+                }
+                index.merging = true;
+                older = index.segments.get(index.segments.size() - 2);
+                newer = index.segments.get(index.segments.size() - 1);
+            }
+            SearchSegment merged = null;
+            try {
+                merged = SearchSegment.open(SearchSegment.write(index.dir, older.docBase,
+                        SearchSegment.concat(older, newer), SearchSegment.merge(older, newer)));
+            } catch (IOException e) {
+                log.accept("Failed to merge search segments in " + index.dir + ": " + e.getMessage());
+            }
+            synchronized (index) {
+                index.merging = false;
+                if (merged == null) {
+                    return;
+                }
+                int at = index.segments.indexOf(older);
+                index.segments.remove(newer);
+                index.segments.set(at, merged);
+            }
+            try {
+                Files.deleteIfExists(older.file);
+                Files.deleteIfExists(newer.file);
+            } catch (IOException e) {
+                // The merged segment covers both, so the next load deletes them
+            }
+        }
+    }
+
+    // Guarded by its own monitor
+    private static final class AccountIndex {
+        final Path dir;
+        final List<SearchSegment> segments = new ArrayList<>();
+        int docCount;
+        boolean closed;
+        boolean merging;
+        volatile long lastUsed = System.nanoTime();
+        private Map<String, PostingList> liveTerms = new HashMap<>();
+        private long[] liveTimestamps = new long[16];
+        private byte[][] liveFrom = new byte[16][];
+        private byte[][] livePreview = new byte[16][];
+        private int liveCount;
+        private String lastQuery;
+        private int lastDocCount;
+        private PostingList lastResult;
+
+        AccountIndex(Path dir) throws IOException {
+            this.dir = dir;
+            if (Files.isDirectory(dir)) {
+                load();
+            }
+        }
+
+        void add(String from, String body, long timestamp) throws IOException {
+            if (liveCount == 0) {
+                Files.createDirectories(dir);
+                Files.deleteIfExists(dir.resolve(CLEAN));
+            }
+            if (liveCount == liveTimestamps.length) {
+                liveTimestamps = Arrays.copyOf(liveTimestamps, liveCount * 2);
+                liveFrom = Arrays.copyOf(liveFrom, liveCount * 2);
+                livePreview = Arrays.copyOf(livePreview, liveCount * 2);
+            }
+            int doc = liveCount++;
+            liveTimestamps[doc] = timestamp;
+            liveFrom[doc] = from.getBytes(StandardCharsets.UTF_8);
+            String preview = body.strip();
+            livePreview[doc] = (preview.length() > PREVIEW_CHARS ? preview.substring(0, PREVIEW_CHARS) : preview)
+                    .getBytes(StandardCharsets.UTF_8);
+            liveTerms.computeIfAbsent(senderTerm(from), term -> new PostingList()).add(doc);
+            for (String term : terms(body)) {
+                liveTerms.computeIfAbsent(term, key -> new PostingList()).add(doc);
+            }
+            docCount++;
+            lastUsed = System.nanoTime();
+            if (liveCount >= FLUSH_DOCS) {
+                flush();
+            }
+        }
+
+        Page search(List<byte[]> terms, String key, long since, long until, int first, int max) throws IOException {
+            lastUsed = System.nanoTime();
+            if (!key.equals(lastQuery) || lastDocCount != docCount) {
+                lastResult = match(terms, since, until);
+                lastQuery = key;
+                lastDocCount = docCount;
+            }
+            List<SearchHit> hits = new ArrayList<>();
+            for (int i = first; i < Math.min(lastResult.size(), first + max); i++) {
+                hits.add(hit(lastResult.get(i)));
+            }
+            return new Page(lastResult.size(), hits);
+        }
+
+        // Matching document numbers, newest first
+        private PostingList match(List<byte[]> terms, long since, long until) throws IOException {
+            PostingList result = new PostingList();
+            int liveBase = docCount - liveCount;
+            PostingList live = null;
+            boolean none = false;
+            for (byte[] term : terms) {
+                PostingList postings = liveTerms.get(new String(term, StandardCharsets.UTF_8));
+                if (postings == null) {
+                    none = true;
+                    break;
+                }
+                live = live == null ? postings : live.intersect(postings);
+            }
+            if (!none) {
+                for (int i = (live == null ? liveCount : live.size()) - 1; i >= 0; i--) {
+                    int doc = live == null ? i : live.get(i);
+                    if (liveTimestamps[doc] >= since && liveTimestamps[doc] <= until) {
+                        result.add(liveBase + doc);
+                    }
+                }
+            }
+            for (int s = segments.size() - 1; s >= 0; s--) {
+                SearchSegment segment = segments.get(s);
+                if (segment.newest < since || segment.oldest > until) {
+                    continue;
+                }
+                PostingList matches = null;
+                none = false;
+                for (byte[] term : terms) {
+                    PostingList postings = segment.postings(term);
+                    if (postings == null) {
+                        none = true;
+                        break;
+                    }
+                    matches = matches == null ? postings : matches.intersect(postings);
+                }
+                if (none) {
+                    continue;
+                }
+                for (int i = (matches == null ? segment.docCount : matches.size()) - 1; i >= 0; i--) {
+                    int doc = matches == null ? i : matches.get(i);
+                    long timestamp = segment.timestamp(doc);
+                    if (timestamp >= since && timestamp <= until) {
+                        result.add(segment.docBase + doc);
+                    }
+                }
+            }
+            return result;
+        }
+
+        private SearchHit hit(int doc) throws IOException {
+            int liveBase = docCount - liveCount;
+            if (doc >= liveBase) {
+                int local = doc - liveBase;
+                return new SearchHit(new String(liveFrom[local], StandardCharsets.UTF_8), liveTimestamps[local],
+                        new String(livePreview[local], StandardCharsets.UTF_8));
+            }
+            int low = 0;
+            int high = segments.size() - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (segments.get(middle).docBase <= doc) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            SearchSegment segment = segments.get(low);
+            return segment.hit(doc - segment.docBase);
+        }
+
+        boolean mergeWanted() {
+            int count = segments.size();
+            if (closed || count < 2) {
+                return false;
+            }
+            SearchSegment older = segments.get(count - 2);
+            SearchSegment newer = segments.get(count - 1);
+            return newer.docCount * 2 >= older.docCount && older.docCount + newer.docCount <= MAX_SEGMENT_DOCS;
+        }
+
+        void flush() throws IOException {
+            if (liveCount == 0) {
+                return;
+            }
+            Files.createDirectories(dir);
+            List<Map.Entry<byte[], PostingList>> sorted = new ArrayList<>(liveTerms.size());
+            for (Map.Entry<String, PostingList> entry : liveTerms.entrySet()) {
+                sorted.add(Map.entry(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue()));
+            }
+            sorted.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+            int count = liveCount;
+            Path file = SearchSegment.write(dir, docCount - liveCount, new SearchSegment.Docs() {
+                @Override
+                public int count() {
+                    return count;
+                }
+
+                @Override
+                public long timestamp(int doc) {
+                    return liveTimestamps[doc];
+                }
+
+                @Override
+                public int infoLength(int doc) {
+                    return SearchSegment.infoLength(liveFrom[doc], livePreview[doc]);
+                }
+
+                @Override
+                public void writeInfo(int doc, ByteBuffer out) {
+                    SearchSegment.writeInfo(out, liveFrom[doc], livePreview[doc]);
+                }
+            }, new SearchSegment.Terms() {
+                private int next = -1;
+
+                @Override
+                public boolean next() {
+                    return ++next < sorted.size();
+                }
+
+                @Override
+                public byte[] term() {
+                    return sorted.get(next).getKey();
+                }
+
+                @Override
+                public PostingList postings() {
+                    return sorted.get(next).getValue();
+                }
+            });
+            segments.add(SearchSegment.open(file));
+            liveTerms = new HashMap<>();
+            liveTimestamps = new long[16];
+            liveFrom = new byte[16][];
+            livePreview = new byte[16][];
+            liveCount = 0;
+            Files.createFile(dir.resolve(CLEAN));
+        }
+
+        void close() throws IOException {
+            if (!closed) {
+                flush();
+                closed = true;
+            }
+        }
+
+        // Segments chain from document 0; one covered by a larger segment is left over from an
+        // interrupted merge, and anything after a gap cannot be trusted
+        private void load() throws IOException {
+            List<long[]> found = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".tmp")) {
+                        Files.deleteIfExists(file);
+                    } else if (name.endsWith(".idx")) {
+                        String[] range = name.substring(0, name.length() - 4).split("-");
+                        found.add(new long[] {Long.parseLong(range[0]), Long.parseLong(range[1])});
+                    }
+                }
+            }
+            found.sort(Comparator.<long[]>comparingLong(range -> range[0]).thenComparingLong(range -> -range[1]));
+            for (long[] range : found) {
+                Path file = SearchSegment.fileName(dir, (int) range[0], (int) range[1]);
+                if (range[0] == docCount && SearchSegment.intact(file)) {
+                    SearchSegment segment = SearchSegment.open(file);
+                    segments.add(segment);
+                    docCount += segment.docCount;
+                } else {
+                    if (range[0] >= docCount) {
+                        Files.deleteIfExists(dir.resolve(CLEAN));
+                    }
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// An immutable, memory-mapped part of one account's search index, holding documents
+// docBase .. docBase + docCount - 1. The file is
+//
+//   header    magic 'SRCH', doc base, doc count, term count, then the offsets of the
+//             postings, dictionary, strings and info sections, the file length, and the
+//             oldest and newest timestamp as longs
+//   docs      per document: timestamp long, position of its info in the info section long
+//   postings  per term: document ids relative to the base as delta-coded varints
+//   dict      per term, in unsigned UTF-8 byte order: position of its postings long,
+//             posting count int, position and length of its UTF-8 bytes in strings int int
+//   strings   the terms
+//   info      per document: sender and preview as length-prefixed UTF-8
+//
+// A lookup binary searches the dictionary in the mapping; only the postings of the terms
+// asked for are decoded onto the heap. Files are named "<docBase>-<docCount>.idx" and are
+// never changed once written; merges write a new file that covers the old ones. They are not
+// forced to disk: SearchIndex checks them with intact() after a crash and re-indexes instead.
+final class SearchSegment {
+
+    interface Docs {
+        int count();
+
+        long timestamp(int doc);
+
+        // Encoded sender and preview, which must be infoLength bytes
+        void writeInfo(int doc, ByteBuffer out) throws IOException;
+
+        int infoLength(int doc);
+    }
+
+    // Terms in unsigned UTF-8 byte order
+    interface Terms {
+        boolean next() throws IOException;
+
+        byte[] term();
+
+        PostingList postings() throws IOException;
+    }
+
+    static final int MAGIC = 0x53524348;
+    private static final int HEADER = 72;
+    private static final int DOC_ENTRY = 16;
+    private static final int DICT_ENTRY = 20;
+    private static final int WRITE_BUFFER = 64 * 1024;
+
+    final Path file;
+    final int docBase;
+    final int docCount;
+    final long oldest;
+    final long newest;
+    private final int termCount;
+    private final MappedByteBuffer map;
+    private final int postingsOffset;
+    private final int dictOffset;
+    private final int stringsOffset;
+    private final int infoOffset;
+
+    private SearchSegment(Path file, MappedByteBuffer map) throws IOException {
+        this.file = file;
+        this.map = map;
+        if (map.capacity() < HEADER || map.getInt(0) != MAGIC || map.getLong(48) != map.capacity()) {
+            throw new IOException("Not a whole search segment: " + file);
+        }
+        docBase = map.getInt(4);
+        docCount = map.getInt(8);
+        termCount = map.getInt(12);
+        postingsOffset = (int) map.getLong(16);
+        dictOffset = (int) map.getLong(24);
+        stringsOffset = (int) map.getLong(32);
+        infoOffset = (int) map.getLong(40);
+        oldest = map.getLong(56);
+        newest = map.getLong(64);
+    }
+
+    static SearchSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Search segment too large: " + file);
+            }
+            return new SearchSegment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Whether the file holds a whole segment rather than one cut short by a crash
+    static boolean intact(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // Keep reading
+            }
+            return !header.hasRemaining() && header.getInt(0) == MAGIC && header.getLong(48) == channel.size();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static Path fileName(Path dir, int docBase, int docCount) {
+        return dir.resolve(docBase + "-" + docCount + ".idx");
+    }
+
+    long timestamp(int doc) {
+        return map.getLong(HEADER + doc * DOC_ENTRY);
+    }
+
+    SearchHit hit(int doc) throws ProtocolException {
+        ByteBuffer info = map.duplicate().position(infoOffset + infoPosition(doc));
+        String from = readUtf8(info);
+        String preview = readUtf8(info);
+        return new SearchHit(from, timestamp(doc), preview);
+    }
+
+    // Null when no document in this segment has the term
+    PostingList postings(byte[] term) throws ProtocolException {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = compareTerm(middle, term);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return postingsAt(middle);
+            }
+        }
+        return null;
+    }
+
+    int termCount() {
+        return termCount;
+    }
+
+    byte[] term(int index) {
+        int entry = dictOffset + index * DICT_ENTRY;
+        byte[] term = new byte[map.getInt(entry + 16)];
+        map.get(stringsOffset + map.getInt(entry + 12), term);
+        return term;
+    }
+
+    PostingList postingsAt(int index) throws ProtocolException {
+        int entry = dictOffset + index * DICT_ENTRY;
+        int count = map.getInt(entry + 8);
+        ByteBuffer in = map.duplicate().position(postingsOffset + (int) map.getLong(entry));
+        int[] ids = new int[count];
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            id += (int) Frame.getVarint(in);
+            ids[i] = id;
+        }
+        return new PostingList(ids, count);
+    }
+
+    private int infoPosition(int doc) {
+        return (int) map.getLong(HEADER + doc * DOC_ENTRY + 8);
+    }
+
+    private int infoLength(int doc) {
+        int end = doc + 1 < docCount ? infoPosition(doc + 1) : map.capacity() - infoOffset;
+        return end - infoPosition(doc);
+    }
+
+    private int compareTerm(int index, byte[] term) {
+        int entry = dictOffset + index * DICT_ENTRY;
+        int position = stringsOffset + map.getInt(entry + 12);
+        int length = map.getInt(entry + 16);
+        for (int i = 0; i < Math.min(length, term.length); i++) {
+            int order = Integer.compare(map.get(position + i) & 0xFF, term[i] & 0xFF);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return Integer.compare(length, term.length);
+    }
+
+    private static String readUtf8(ByteBuffer in) throws ProtocolException {
+        int length = (int) Frame.getVarint(in);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Sender and preview as they are stored in the info section
+    static int infoLength(byte[] from, byte[] preview) {
+        return Frame.varintLength(from.length) + from.length + Frame.varintLength(preview.length) + preview.length;
+    }
+
+    static void writeInfo(ByteBuffer out, byte[] from, byte[] preview) {
+        Frame.putVarint(out, from.length);
+        out.put(from);
+        Frame.putVarint(out, preview.length);
+        out.put(preview);
+    }
+
+    // Writes the segment to a temporary file and moves it into place, so a reader never sees half a segment
+    static Path write(Path dir, int docBase, Docs docs, Terms terms) throws IOException {
+        Path target = fileName(dir, docBase, docs.count());
+        Path temp = dir.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel, HEADER);
+            long infoPosition = 0;
+            long oldest = Long.MAX_VALUE;
+            long newest = Long.MIN_VALUE;
+            for (int doc = 0; doc < docs.count(); doc++) {
+                long timestamp = docs.timestamp(doc);
+                out.ensure(DOC_ENTRY).putLong(timestamp).putLong(infoPosition);
+                infoPosition += docs.infoLength(doc);
+                oldest = Math.min(oldest, timestamp);
+                newest = Math.max(newest, timestamp);
+            }
+
+            long postingsOffset = out.position();
+            List<byte[]> termList = new ArrayList<>();
+            long[] postingPositions = new long[1024];
+            int[] postingCounts = new int[1024];
+            while (terms.next()) {
+                int index = termList.size();
+                if (index == postingPositions.length) {
+                    postingPositions = Arrays.copyOf(postingPositions, index * 2);
+                    postingCounts = Arrays.copyOf(postingCounts, index * 2);
+                }
+                PostingList postings = terms.postings();
+                termList.add(terms.term());
+                postingPositions[index] = out.position() - postingsOffset;
+                postingCounts[index] = postings.size();
+                int previous = 0;
+                for (int i = 0; i < postings.size(); i++) {
+                    Frame.putVarint(out.ensure(10), postings.get(i) - previous);
+                    previous = postings.get(i);
+                }
+            }
+
+            long dictOffset = out.position();
+            int stringPosition = 0;
+            for (int i = 0; i < termList.size(); i++) {
+                out.ensure(DICT_ENTRY).putLong(postingPositions[i]).putInt(postingCounts[i])
+                        .putInt(stringPosition).putInt(termList.get(i).length);
+                stringPosition += termList.get(i).length;
+            }
+            long stringsOffset = out.position();
+            for (byte[] term : termList) {
+                out.ensure(term.length).put(term);
+            }
+            long infoOffset = out.position();
+            for (int doc = 0; doc < docs.count(); doc++) {
+                docs.writeInfo(doc, out.ensure(docs.infoLength(doc)));
+            }
+            out.flush();
+            long length = out.position();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(docBase).putInt(docs.count())
+                    .putInt(termList.size()).putLong(postingsOffset).putLong(dictOffset).putLong(stringsOffset)
+                    .putLong(infoOffset).putLong(length).putLong(oldest).putLong(newest).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    // Documents of two adjacent segments, the second renumbered to follow the first
+    static Docs concat(SearchSegment first, SearchSegment second) {
+        return new Docs() {
+            @Override
+            public int count() {
+                return first.docCount + second.docCount;
+            }
+
+            @Override
+            public long timestamp(int doc) {
+                return doc < first.docCount ? first.timestamp(doc) : second.timestamp(doc - first.docCount);
+            }
+
+            @Override
+            public int infoLength(int doc) {
+                return doc < first.docCount ? first.infoLength(doc) : second.infoLength(doc - first.docCount);
+            }
+
+            @Override
+            public void writeInfo(int doc, ByteBuffer out) {
+                SearchSegment segment = doc < first.docCount ? first : second;
+                int local = doc < first.docCount ? doc : doc - first.docCount;
+                out.put(out.position(), segment.map, segment.infoOffset + segment.infoPosition(local), segment.infoLength(local));
+                out.position(out.position() + segment.infoLength(local));
+            }
+        };
+    }
+
+    // The union of both dictionaries; a term in both gets the first's postings followed by the second's
+    static Terms merge(SearchSegment first, SearchSegment second) {
+        return new Terms() {
+            private int i;
+            private int j;
+            private byte[] term;
+            private int fromFirst = -1;
+            private int fromSecond = -1;
+
+            @Override
+            public boolean next() {
+                if (i >= first.termCount && j >= second.termCount) {
+                    return false;
+                }
+                byte[] a = i < first.termCount ? first.term(i) : null;
+                byte[] b = j < second.termCount ? second.term(j) : null;
+                int order = a == null ? 1 : b == null ? -1 : Arrays.compareUnsigned(a, b);
+                fromFirst = order <= 0 ? i++ : -1;
+                fromSecond = order >= 0 ? j++ : -1;
+                term = order <= 0 ? a : b;
+                return true;
+            }
+
+            @Override
+            public byte[] term() {
+                return term;
+            }
+
+            @Override
+            public PostingList postings() throws IOException {
+                PostingList merged = fromFirst >= 0 ? first.postingsAt(fromFirst) : new PostingList();
+                if (fromSecond >= 0) {
+                    PostingList tail = second.postingsAt(fromSecond);
+                    for (int k = 0; k < tail.size(); k++) {
+                        merged.add(first.docCount + tail.get(k));
+                    }
+                }
+                return merged;
+            }
+        };
+    }
+
+    // Stages writes in a buffer and hands them to the channel in large blocks
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER);
+        private long flushed;
+
+        Output(FileChannel channel, long start) {
+            this.channel = channel;
+            this.flushed = start;
+        }
+
+        long position() {
+            return flushed + buffer.position();
+        }
+
+        // The buffer, with room for at least the given number of bytes; no single entry comes near its size
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+                if (buffer.capacity() < bytes) {
+                    throw new IOException("Search index entry of " + bytes + " bytes is too large");
+                }
+            }
+            return buffer;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer, flushed);
+            }
+            buffer.clear();
+        }
+    }
+}
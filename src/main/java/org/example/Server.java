@@ -1,257 +1,1136 @@
 // src/main/java/org/example/Server.java
 package org.example;
 
-import javax.swing.*;
-import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.text.SimpleDateFormat;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
-public class Server extends JFrame {
+// The mail engine: transport, dispatch, storage and transfers, with no UI of its own.
+// Embed it with new Server(config).start(); front-ends attach as log sinks and observers.
+public class Server implements Closeable {
 
-    private static final int SERVER_PORT = 12345;
-    private static final String SERVER_FOLDER = "MailServer/";
-    private JTextArea logArea;
-    private Set<String> connectedClients;
-    private Map<String, List<byte[]>> fileDataMap = new HashMap<>();
+    private static final int MAX_DATAGRAM = 65507;
+    private static final String TRANSFER_FOLDER = ".transfers";
+    private static final int LEGACY_CHUNK_SIZE = 1024;
+    private static final int DOWNLOAD_CHUNK_SIZE = 1024;
+    private static final int MAX_RANGE_CHUNKS = 64;
+    // One LIST reply stays under a typical Ethernet MTU so it is never fragmented
+    private static final int LIST_DATAGRAM_BYTES = 1400;
+    private static final int MAX_LIST_PAGE = 1024;
+    // No more hits than this fit one SEARCH reply even with empty previews
+    private static final int MAX_SEARCH_HITS = 128;
+    private static final int SACK_BYTES = ReliableSender.MAX_WINDOW / 8;
+    // How long close() waits for the receive thread and then for the worker lanes
+    private static final long SHUTDOWN_DRAIN_MS = 10_000;
+    private static final ThreadLocal<ByteBuffer> SEND_BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_DATAGRAM));
+    private final ServerConfig config;
+    private final Path root;
+    private Transport transport;
+    private Dispatcher dispatcher;
+    private Thread receiver;
+    private volatile boolean closing;
+    private final AsyncLog asyncLog;
+    private final List<ServerObserver> observers = new CopyOnWriteArrayList<>();
+    private final SessionTable sessions;
+    private final FileDigests fileDigests = new FileDigests();
+    private final Journal journal;
+    private final MailStore mailStore;
+    private final MailboxIndex mailboxIndex;
+    private final TransferTable transfers;
+    private final MailingLists mailingLists;
+    private final BlobStore blobs;
+    private final FanOut fanOut;
+    private final SearchIndex searchIndex;
+    // Null unless the server runs as a node of a cluster
+    private final Cluster cluster;
+    private final LongAdder forwarded = new LongAdder();
+    // Startup is measured from process start, so JVM and class loading time is included
+    private final long processStart = ProcessHandle.current().info().startInstant()
+            .map(Instant::toEpochMilli).orElse(System.currentTimeMillis());
+    private final AtomicBoolean firstPacket = new AtomicBoolean();
+    // Made once, so dispatching a packet creates no lambda
+    private final Consumer<Packet> worker = this::work;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final LatencyHistogram appendTimer = metrics.timer("store.append");
+    private final LatencyHistogram assembleTimer = metrics.timer("transfer.assemble");
+    private final LatencyHistogram searchTimer = metrics.timer("search.query");
+    private MetricsEndpoint metricsEndpoint;
 
-    public Server() {
-        setTitle("Mail Server");
-        setSize(600, 500);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+    // Log lines always go to a rolling file; other sinks such as a window are added by the front-end
+    public Server(ServerConfig config) throws IOException {
+        this.config = config;
+        this.root = config.root;
+        asyncLog = new AsyncLog(config.logCapacity, MailStore.TIMESTAMP);
+        asyncLog.addSink(new RollingLogFile(config.logFile, config.logMaxBytes, config.logFiles));
+        journal = new Journal(root, config.fsync, config.fsyncIntervalMs, config.journalBytes, this::log);
+        mailStore = new MailStore(root, config.fsync, config.fsyncIntervalMs, config.segmentBytes, journal, this::log);
+        mailboxIndex = new MailboxIndex(root, mailStore, config.indexEntries);
+        mailingLists = new MailingLists(root);
+        blobs = new BlobStore(root, config.compressAttachments);
+        searchIndex = new SearchIndex(root, mailStore, this::log);
+        fanOut = new FanOut(root, mailStore, mailboxIndex, searchIndex, blobs, (what, delivered, skipped, nanos) ->
+                log(what + " delivered to " + delivered + " mailboxes in " + nanos / 1_000_000 + " ms"
+                        + (skipped > 0 ? ", " + skipped + " recipients do not exist" : "")), journal, this::log);
+        cluster = Cluster.of(config);
+        sessions = new SessionTable(config.sessionTimeoutMs, this::sessionClosed, this::log);
+        transfers = new TransferTable(root.resolve(TRANSFER_FOLDER), config.transferMaxBytes,
+                config.transferSessionMaxBytes, config.transferTimeoutMs, this::transferEvicted, journal, this::log);
+    }
 
-        logArea = new JTextArea();
-        logArea.setEditable(false);
-        JScrollPane scrollPane = new JScrollPane(logArea);
-        add(scrollPane, BorderLayout.CENTER);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ServerLauncher.main(args);
+    }
 
-        connectedClients = new HashSet<>();
+    public void addLogSink(AsyncLog.Sink sink) {
+        asyncLog.addSink(sink);
+    }
 
-        setVisible(true);
+    public void addObserver(ServerObserver observer) {
+        observers.add(observer);
     }
 
     public void log(String message) {
-        SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-        Date date = new Date();
-        logArea.append(formatter.format(date) + " - " + message + "\n");
+        asyncLog.log(message);
     }
 
-    public static void main(String[] args) throws IOException {
-        Server server = new Server();
-        DatagramSocket serverSocket = new DatagramSocket(SERVER_PORT, InetAddress.getByName("0.0.0.0"));
-        server.log("Mail Server is running...");
+    // Binds the socket and starts receiving on a "mail-receive" thread; returns the bound address
+    public InetSocketAddress start() throws IOException {
+        Journal.Recovered recovered = recover();
+        mailboxIndex.load();
+        int reindexed = searchIndex.recover();
+        if (reindexed > 0) {
+            log("Brought the search index of " + reindexed + " mailboxes up to date");
+        }
+        // Deliveries check recipients against the index, so they wait until it is loaded
+        fanOut.resume(recovered.fanOuts());
+        transport = Transport.open(config.transport, new InetSocketAddress(config.bind, config.port), config.packetPool,
+                config.maxDatagram, config.socketBuffer);
+        dispatcher = new Dispatcher(config.workers, config.queueDepth, config.virtualThreads, this::log);
+        InetSocketAddress address = transport.localAddress();
+        long startupMillis = System.currentTimeMillis() - processStart;
+        log("Mail Server is listening on " + clientInfo(address) + " over the " + config.transport + " transport with "
+                + dispatcher.lanes() + " worker lanes and " + mailboxIndex.accounts() + " accounts, "
+                + startupMillis + " ms after process start");
+        for (ServerObserver observer : observers) {
+            observer.started(address, startupMillis);
+        }
 
-        byte[] receiveData = new byte[1024];
+        if (cluster != null) {
+            log("Node " + cluster.name() + " of a cluster of " + cluster.size() + " nodes");
+            cluster.rebalance(mailboxIndex.accountNames(), this::migrate);
+        }
 
-        while (true) {
-            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            serverSocket.receive(receivePacket);
-            String request = new String(receivePacket.getData(), 0, receivePacket.getLength());
-            InetAddress clientAddress = receivePacket.getAddress();
-            int clientPort = receivePacket.getPort();
-            String clientInfo = clientAddress.getHostAddress() + ":" + clientPort;
+        registerGauges();
+        metricsEndpoint = new MetricsEndpoint(metrics, config.metricsPort, config.jmx, String.valueOf(address.getPort()));
+        if (metricsEndpoint.httpAddress() != null) {
+            log("Metrics are served on http://" + clientInfo(metricsEndpoint.httpAddress()) + "/metrics");
+        }
 
-            if (request.equals("CONNECT")) {
-                server.connectedClients.add(clientInfo);
-                server.log(clientInfo + " - Number of connected clients: " + server.connectedClients.size());
-                continue;
+        receiver = Thread.ofPlatform().name("mail-receive").start(() -> {
+            try {
+                transport.receive(this::onPacket);
+            } catch (IOException e) {
+                if (!closing) {
+                    log("Receive loop stopped: " + e.getMessage());
+                }
             }
+        });
+        return address;
+    }
 
-            if (request.equals("DISCONNECT")) {
-                server.connectedClients.remove(clientInfo);
-                server.log(clientInfo + " - Client disconnected. Number of connected clients: " + server.connectedClients.size());
-                continue;
+    // Replays what the journal holds from the previous run into the stores, takes back the uploads
+    // that can resume and checkpoints, so the next start does not replay the same records again.
+    // The fan-out jobs left undelivered are returned for start() to queue; the checkpoint keeps them.
+    private Journal.Recovered recover() throws IOException {
+        long started = System.nanoTime();
+        Journal.Recovered recovered = journal.recover();
+        int replayed = mailStore.replay(recovered);
+        int resumable = transfers.recover(recovered.uploads(), System.nanoTime());
+        journal.checkpoint();
+        if (recovered.records() > 0 || recovered.tornBytes() > 0) {
+            long undelivered = 0;
+            for (Journal.FanOutJob job : recovered.fanOuts()) {
+                undelivered += job.recipients().size() - job.delivered();
             }
+            log("Replayed " + recovered.records() + " journal records (" + recovered.bytes() + " bytes) in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms: " + replayed + " messages put back, "
+                    + undelivered + " fan-out deliveries to finish, " + resumable + " uploads can resume"
+                    + (recovered.tornBytes() > 0 ? ", " + recovered.tornBytes() + " torn bytes rolled back" : ""));
+        }
+        return recovered;
+    }
 
-            // Handle different requests
-            String[] parts = request.split(":", 2);
-            String command = parts[0];
-            String content = parts.length > 1 ? parts[1] : "";
+    public ServerMetrics metrics() {
+        return metrics;
+    }
 
-            switch (command) {
-                case "CREATE_ACCOUNT":
-                    server.createAccount(content, serverSocket, clientAddress, clientPort);
-                    break;
-                case "SEND_EMAIL":
-                    server.sendEmail(content, clientInfo);
-                    break;
-                case "SEND_EMAIL_WITH_ATTACHMENT":
-                    server.receiveFile(receivePacket, serverSocket, clientAddress, clientPort);
-                    break;
-                case "DOWNLOAD_FILE":
-                    server.downloadFile(content, serverSocket, clientAddress, clientPort);
-                    break;
-                case "LOGIN":
-                    server.sendFileList(content, serverSocket, clientAddress, clientPort, clientInfo);
-                    break;
-                default:
-                    server.sendResponse("Unknown command", serverSocket, clientAddress, clientPort);
-                    break;
+    public void awaitTermination() throws InterruptedException {
+        receiver.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
+        if (transport != null) {
+            transport.close();
+            // Requests already handed to the lanes finish before the stores they write to close
+            try {
+                receiver.join(SHUTDOWN_DRAIN_MS);
+                dispatcher.shutdown();
+                if (!dispatcher.awaitTermination(SHUTDOWN_DRAIN_MS)) {
+                    log("Closing with " + dispatcher.queuedTasks() + " requests still queued");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
+        sessions.close();
+        transfers.close();
+        fanOut.close();
+        searchIndex.close();
+        mailStore.close();
+        // Everything is on disk now, so the next start only has unfinished uploads and fan-out jobs to take back
+        journal.checkpoint();
+        journal.close();
+        for (ServerObserver observer : observers) {
+            observer.stopped();
+        }
+        asyncLog.close();
+    }
+
+    private void onPacket(Packet packet) throws IOException {
+        long received = System.nanoTime();
+        if (!firstPacket.get() && firstPacket.compareAndSet(false, true)) {
+            log("First packet received " + (System.currentTimeMillis() - processStart) + " ms after process start");
+        }
+        int length = packet.length();
+        metrics.received(length);
+        Session source = sessions.touch((InetSocketAddress) packet.source(), received);
+        // Other nodes pass on the traffic of many clients, which were rate limited where they arrived
+        boolean fromNode = cluster != null && cluster.isNode(source.address());
+        if (!fromNode && !source.admit(received, config.sessionRate)) {
+            packet.release();
+            metrics.rateLimited();
+            return;
+        }
+        Frame frame = packet.frame();
+        Session session = source;
+        try {
+            frame.decode(packet.data());
+            if (frame.opcode() == Opcode.FORWARD) {
+                if (!fromNode) {
+                    throw new ProtocolException("FORWARD from outside the cluster");
+                }
+                session = sessions.touch(Cluster.decodeForward(frame, packet.data()), received);
+                frame.decode(packet.data());
+            }
+        } catch (IOException e) {
+            packet.release();
+            metrics.malformed();
+            log(source.clientInfo() + " - Dropped malformed frame: " + e.getMessage());
+            return;
+        }
+        SocketAddress client = session.address();
+        String clientInfo = session.clientInfo();
+
+        // Every packet already opened or refreshed the session, so these three need no worker
+        if (frame.opcode() == Opcode.CONNECT) {
+            packet.release();
+            log(clientInfo + " - Number of connected clients: " + sessions.size());
+            clientsChanged();
+            metrics.request(Opcode.CONNECT, System.nanoTime() - received, false);
+            return;
+        }
+
+        if (frame.opcode() == Opcode.DISCONNECT) {
+            packet.release();
+            sessions.remove(session);
+            metrics.request(Opcode.DISCONNECT, System.nanoTime() - received, false);
+            return;
+        }
+
+        if (frame.opcode() == Opcode.HEARTBEAT) {
+            long id = frame.id();
+            packet.release();
+            if (!frame.isLegacy()) {
+                ByteBuffer out = SEND_BUFFERS.get().clear();
+                Frame.encode(out, Opcode.HEARTBEAT, id, 0);
+                send(out.flip(), client);
+            }
+            metrics.request(Opcode.HEARTBEAT, System.nanoTime() - received, false);
+            return;
+        }
+
+        // The probe is padded to the size being tried; the answer only carries the size that arrived.
+        // In a cluster, clients are held to datagrams that still fit once wrapped for forwarding.
+        if (frame.opcode() == Opcode.MTU_PROBE) {
+            long id = frame.id();
+            packet.release();
+            int usable = cluster != null && !fromNode ? Math.min(length, config.maxDatagram - Cluster.FORWARD_OVERHEAD) : length;
+            session.probed(usable);
+            ByteBuffer out = SEND_BUFFERS.get().clear();
+            Frame.encode(out, Opcode.MTU_PROBE, id, usable);
+            send(out.flip(), client);
+            metrics.request(Opcode.MTU_PROBE, System.nanoTime() - received, false);
+            return;
+        }
+
+        InetSocketAddress owner = cluster != null ? cluster.route(frame, session) : null;
+        if (owner != null) {
+            ByteBuffer out = SEND_BUFFERS.get().clear();
+            Cluster.encodeForward(out, session.address(), packet.data());
+            packet.release();
+            send(out.flip(), owner);
+            forwarded.increment();
+            return;
+        }
+
+        try {
+            dispatcher.submit(routingKey(frame, client), packet.dispatch(worker, session, received));
+        } catch (InterruptedException e) {
+            packet.release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while dispatching " + frame.opcode());
+        }
     }
 
-    private void createAccount(String accountName, DatagramSocket socket, InetAddress address, int port) throws IOException {
-        File accountFolder = new File(SERVER_FOLDER + accountName);
-        if (!accountFolder.exists()) {
+    // Runs on a worker lane for every packet onPacket did not answer itself
+    private void work(Packet packet) {
+        Frame frame = packet.frame();
+        Session session = packet.session();
+        boolean failed = false;
+        try {
+            handle(frame, session);
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            log(session.clientInfo() + " - Failed to handle " + frame.opcode() + ": " + e.getMessage());
+        } finally {
+            metrics.request(frame.opcode(), System.nanoTime() - packet.received(), failed);
+            packet.release();
+        }
+    }
+
+    private void registerGauges() {
+        metrics.gauge("connectedClients", sessions::size);
+        metrics.gauge("sessionsExpired", sessions::expired);
+        metrics.gauge("inFlightTransfers", transfers::size);
+        metrics.gauge("fanOutPending", fanOut::pending);
+        metrics.gauge("fanOutDelivered", fanOut::delivered);
+        metrics.gauge("blobsDeduplicated", blobs::deduplicated);
+        metrics.gauge("blobBytesSaved", blobs::savedBytes);
+        metrics.gauge("transferReservedBytes", transfers::reservedBytes);
+        metrics.gauge("transferDuplicateChunks", transfers::duplicates);
+        metrics.gauge("transfersRejected", transfers::rejected);
+        metrics.gauge("transfersEvicted", transfers::evictions);
+        metrics.gauge("transfersResumable", transfers::orphans);
+        metrics.gauge("journalBytes", journal::bytes);
+        metrics.gauge("journalCommits", journal::commits);
+        metrics.gauge("journalCheckpoints", journal::checkpoints);
+        metrics.gauge("queuedTasks", dispatcher::queuedTasks);
+        metrics.gauge("workerLanes", dispatcher::lanes);
+        metrics.gauge("accounts", mailboxIndex::accounts);
+        metrics.gauge("indexCachedEntries", mailboxIndex::cachedEntries);
+        metrics.gauge("indexEvictions", mailboxIndex::evictions);
+        metrics.gauge("searchOpenIndexes", searchIndex::openAccounts);
+        metrics.gauge("clusterForwarded", forwarded::sum);
+        metrics.gauge("logPending", asyncLog::pending);
+        metrics.gauge("logDropped", asyncLog::dropped);
+        metrics.hitRate("mailboxIndex", mailboxIndex::hits, mailboxIndex::misses);
+        metrics.hitRate("fileDigests", fileDigests::hits, fileDigests::misses);
+    }
+
+    private void send(ByteBuffer data, SocketAddress client) throws IOException {
+        if (closing) {
+            // The socket is going or gone; requests still draining at shutdown finish without a reply
+            return;
+        }
+        metrics.sent(data.remaining());
+        transport.send(data, client);
+    }
+
+    private void clientsChanged() {
+        for (ServerObserver observer : observers) {
+            observer.clientsChanged(sessions.size());
+        }
+    }
+
+    // Called when a client disconnects or its session times out; uploads it left unfinished are dropped
+    private void sessionClosed(Session session, boolean idle) {
+        String clientInfo = session.clientInfo();
+        log(clientInfo + (idle ? " - Session expired." : " - Client disconnected.") + " Number of connected clients: " + sessions.size());
+        for (Transfer transfer : transfers.sessionClosed(session)) {
+            log(clientInfo + " - Aborted unfinished upload of " + transfer.fileName() + " for " + transfer.toAccount());
+        }
+        clientsChanged();
+    }
+
+    private void transferEvicted(Transfer transfer) {
+        Session owner = transfer.owner;
+        log((owner != null ? owner.clientInfo() + " - Upload" : "Interrupted upload") + " of " + transfer.fileName()
+                + " for " + transfer.toAccount() + " timed out and was discarded");
+    }
+
+    private static String clientInfo(SocketAddress client) {
+        InetSocketAddress address = (InetSocketAddress) client;
+        return address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    // Requests that touch the same mailbox share a key so they are handled in order;
+    // binary uploads stay together by transfer id
+    private static long routingKey(Frame frame, SocketAddress client) {
+        if (frame.opcode() == null) {
+            return client.hashCode();
+        }
+        switch (frame.opcode()) {
+            case SEND_EMAIL:
+                return frame.fieldHash(1);
+            case ATTACH_BEGIN:
+            case DOWNLOAD_RANGE:
+                return frame.id();
+            case ATTACH_CHUNK:
+                return frame.isLegacy() ? frame.fieldHash(1) : frame.id();
+            case CREATE_ACCOUNT:
+            case LOGIN:
+            case LIST:
+            case SEARCH:
+            case DOWNLOAD_FILE:
+                return frame.fieldHash(0);
+            default:
+                return client.hashCode();
+        }
+    }
+
+    private void handle(Frame frame, Session session) throws IOException {
+        SocketAddress client = session.address();
+        String clientInfo = session.clientInfo();
+        if (frame.opcode() == null) {
+            reply(frame, Opcode.ERROR, "Unknown command", client);
+            return;
+        }
+        switch (frame.opcode()) {
+            case CREATE_ACCOUNT:
+                createAccount(frame, client, clientInfo);
+                break;
+            case SEND_EMAIL:
+                sendEmail(frame.field(0), frame.field(1), frame.field(2), session);
+                break;
+            case ATTACH_BEGIN:
+                beginTransfer(frame, session);
+                break;
+            case ATTACH_CHUNK:
+                receiveFile(frame, session);
+                break;
+            case DOWNLOAD_FILE:
+                downloadFile(frame, session);
+                break;
+            case DOWNLOAD_RANGE:
+                sendRange(frame, client, clientInfo);
+                break;
+            case LOGIN:
+                session.account(frame.field(0));
+                sendFileList(frame, client, clientInfo);
+                break;
+            case LIST:
+                session.account(frame.field(0));
+                sendListPage(frame, client, clientInfo);
+                break;
+            case SEARCH:
+                session.account(frame.field(0));
+                search(frame, client, clientInfo);
+                break;
+            default:
+                reply(frame, Opcode.ERROR, "Unknown command", client);
+                break;
+        }
+    }
+
+    private void createAccount(Frame frame, SocketAddress client, String clientInfo) throws IOException {
+        String accountName = frame.field(0);
+        // Commas and a leading '@' are recipient syntax, and the name is a folder under the root, so it
+        // may neither leave the root nor clash with the server's own '.journal', '.content' and the like
+        if (!isPlainName(accountName) || accountName.indexOf(',') >= 0 || accountName.charAt(0) == MailingLists.PREFIX) {
+            reply(frame, Opcode.ERROR, "Invalid account name!", client);
+            log(clientInfo + " - Invalid account name: " + accountName);
+            return;
+        }
+        File accountFolder = root.resolve(accountName).toFile();
+        if (!mailboxIndex.exists(accountName) && !accountFolder.exists()) {
             accountFolder.mkdirs();
             File newEmail = new File(accountFolder, "new_email.txt");
             try (BufferedWriter writer = new BufferedWriter(new FileWriter(newEmail))) {
                 writer.write("Welcome to your new account!");
             }
-            sendResponse("Account created successfully!", socket, address, port);
-            log(address.getHostAddress() + ":" + port + " - Created account: " + accountName);
+            mailboxIndex.accountCreated(accountName);
+            mailboxIndex.fileAdded(accountName, newEmail.getName(), newEmail.lastModified(), newEmail.length());
+            reply(frame, Opcode.REPLY, "Account created successfully!", client);
+            log(clientInfo + " - Created account: " + accountName);
         } else {
-            sendResponse("Account already exists!", socket, address, port);
-            log(address.getHostAddress() + ":" + port + " - Account already exists: " + accountName);
+            reply(frame, Opcode.ERROR, "Account already exists!", client);
+            log(clientInfo + " - Account already exists: " + accountName);
         }
     }
 
-    private void sendEmail(String emailData, String clientInfo) {
-        String[] data = emailData.split(":", 3);
-        if (data.length < 3) {
+    private void sendEmail(String fromAccount, String toAccount, String emailContent, Session session) throws IOException {
+        String clientInfo = session.clientInfo();
+        if (fromAccount.isEmpty() || toAccount.isEmpty()) {
             log(clientInfo + " - Invalid email data format.");
             return;
         }
 
-        String fromAccount = data[0];
-        String toAccount = data[1];
-        String emailContent = data[2];
+        if (isMultiRecipient(toAccount)) {
+            List<String> recipients = recipients(toAccount, clientInfo);
+            if (cluster != null && !cluster.isNode(session)) {
+                recipients = sendToOtherNodes(fromAccount, recipients, emailContent);
+            }
+            if (!recipients.isEmpty()) {
+                fanOut.message(fromAccount, recipients, emailContent, System.currentTimeMillis());
+                log(clientInfo + " - Email from " + fromAccount + " queued for " + recipients.size() + " recipients");
+            }
+            return;
+        }
 
-        File accountFolder = new File(SERVER_FOLDER + toAccount);
-        if (!accountFolder.exists()) {
+        if (!mailboxIndex.exists(toAccount)) {
             log(clientInfo + " - Account " + toAccount + " does not exist!");
             return;
         }
 
-        File emailFile = new File(accountFolder, "email_from_" + fromAccount + ".txt");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(emailFile, true))) {
-            SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-            Date date = new Date();
-            writer.write(formatter.format(date) + " - " + emailContent + "\n");
+        try {
+            long timestamp = System.currentTimeMillis();
+            long started = System.nanoTime();
+            mailStore.append(toAccount, fromAccount, emailContent, timestamp);
+            appendTimer.record(System.nanoTime() - started);
+            mailboxIndex.messageAppended(toAccount, fromAccount, timestamp);
+            searchIndex.added(toAccount, fromAccount, emailContent, timestamp);
             log(clientInfo + " - Email sent from " + fromAccount + " to " + toAccount);
         } catch (IOException e) {
             log(clientInfo + " - Failed to send email from " + fromAccount + " to " + toAccount + ": " + e.getMessage());
         }
     }
 
-    private void sendFileList(String accountName, DatagramSocket socket, InetAddress address, int port, String clientInfo) throws IOException {
-        File accountFolder = new File(SERVER_FOLDER + accountName);
-        if (accountFolder.exists()) {
-            String[] fileList = accountFolder.list();
-            String response = String.join(",", Arrays.asList(fileList != null ? fileList : new String[]{}));
-            sendResponse(response, socket, address, port);
-            log(clientInfo + " - Sent file list for account: " + accountName);
-        } else {
-            sendResponse("Account not found!", socket, address, port);
-            log(clientInfo + " - Account not found: " + accountName);
+    // Each node that owns some of the recipients gets the message once, addressed to those recipients;
+    // returns the ones this node owns. A long recipient list takes several datagrams.
+    private List<String> sendToOtherNodes(String fromAccount, List<String> recipients, String emailContent) throws IOException {
+        List<String> local = new ArrayList<>();
+        int fixed = Frame.MAX_HEADER + 2 * 4 + Frame.utf8Length(fromAccount) + Frame.utf8Length(emailContent);
+        for (Map.Entry<InetSocketAddress, List<String>> group : cluster.byOwner(recipients).entrySet()) {
+            if (cluster.isSelf(group.getKey())) {
+                local.addAll(group.getValue());
+                continue;
+            }
+            StringJoiner to = new StringJoiner(",");
+            for (String account : group.getValue()) {
+                if (to.length() > 0 && fixed + to.length() + 1 + Frame.utf8Length(account) > config.maxDatagram) {
+                    sendEmailTo(group.getKey(), fromAccount, to.toString(), emailContent);
+                    to = new StringJoiner(",");
+                }
+                to.add(account);
+            }
+            sendEmailTo(group.getKey(), fromAccount, to.toString(), emailContent);
         }
+        return local;
     }
 
-    private void sendResponse(String response, DatagramSocket socket, InetAddress address, int port) throws IOException {
-        byte[] sendData = response.getBytes();
-        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, address, port);
-        socket.send(sendPacket);
+    private void sendEmailTo(InetSocketAddress node, String fromAccount, String toAccounts, String emailContent) throws IOException {
+        ByteBuffer out = SEND_BUFFERS.get().clear();
+        Frame.encode(out, Opcode.SEND_EMAIL, 0, 0, fromAccount, toAccounts, emailContent);
+        send(out.flip(), node);
     }
 
-    private void downloadFile(String fileData, DatagramSocket socket, InetAddress address, int port) throws IOException {
-        String[] data = fileData.split(":", 2);
-        String accountName = data[0];
-        String fileName = data[1];
+    // One path segment that is none of the server's own files and folders, which all start with '.'.
+    // Account and file names from clients are resolved against the storage root, so they must be.
+    private static boolean isPlainName(String name) {
+        return !name.isEmpty() && name.charAt(0) != '.' && name.indexOf('/') < 0 && name.indexOf('\\') < 0;
+    }
 
-        File file = new File(SERVER_FOLDER + accountName + "/" + fileName);
-        if (file.exists()) {
-            byte[] fileBytes = Files.readAllBytes(file.toPath());
-            DatagramPacket sendPacket = new DatagramPacket(fileBytes, fileBytes.length, address, port);
-            socket.send(sendPacket);
-            log(address.getHostAddress() + ":" + port + " - Sent file: " + fileName + " to " + accountName);
+    // "a,b,@list" addresses several accounts and mailing lists at once
+    private static boolean isMultiRecipient(String toAccount) {
+        return toAccount.indexOf(',') >= 0 || toAccount.charAt(0) == MailingLists.PREFIX;
+    }
 
-            // Ensure the Downloads directory exists
-            String defaultPath = System.getProperty("user.home") + "/Downloads";
-            File downloadsDir = new File(defaultPath);
-            if (!downloadsDir.exists()) {
-                downloadsDir.mkdirs();
+    // Expands lists and drops duplicates, so an account on two lists gets one copy
+    private List<String> recipients(String toAccount, String clientInfo) throws IOException {
+        Set<String> recipients = new LinkedHashSet<>();
+        for (String address : toAccount.split(",")) {
+            String name = address.strip();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (name.charAt(0) == MailingLists.PREFIX) {
+                List<String> members = mailingLists.members(name.substring(1));
+                if (members == null) {
+                    log(clientInfo + " - Mailing list " + name + " does not exist!");
+                } else {
+                    recipients.addAll(members);
+                }
+            } else {
+                recipients.add(name);
             }
+        }
+        return new ArrayList<>(recipients);
+    }
 
-            // Save the file to the specified path
-            File downloadedFile = new File(downloadsDir, fileName);
-            try (FileOutputStream fos = new FileOutputStream(downloadedFile)) {
-                fos.write(fileBytes);
+    private void sendFileList(Frame frame, SocketAddress client, String clientInfo) throws IOException {
+        String accountName = frame.field(0);
+        if (mailboxIndex.exists(accountName)) {
+            // Stored messages show up under the old per-sender file names, already sorted by the index
+            StringJoiner response = new StringJoiner(",");
+            for (MailboxEntry entry : mailboxIndex.listing(accountName)) {
+                response.add(entry.name());
             }
+            reply(frame, Opcode.REPLY, response.toString(), client);
+            log(clientInfo + " - Sent file list for account: " + accountName);
         } else {
-            sendResponse("File not found!", socket, address, port);
-            log(address.getHostAddress() + ":" + port + " - File not found: " + fileName);
+            reply(frame, Opcode.ERROR, "Account not found!", client);
+            log(clientInfo + " - Account not found: " + accountName);
         }
     }
 
-    // Receive file in parts and reassemble
-    private void receiveFile(DatagramPacket receivePacket, DatagramSocket socket, InetAddress address, int port) throws IOException {
-        String[] metadata = extractMetadata(receivePacket);
-        String toAccount = metadata[2]; // Assuming the recipient's account name is the second element
-        String fileName = metadata[4];
+    // LIST: fields are the account and an optional name filter, seq the cursor into the filtered and sorted
+    // listing, and the payload the page size and sort order. The reply's seq is the cursor to continue from
+    // and its payload the number of matches followed by as many entries as fit in one datagram, so a page
+    // may take several requests. A page size of 0 only asks for the number of matches.
+    private void sendListPage(Frame frame, SocketAddress client, String clientInfo) throws IOException {
+        String accountName = frame.field(0);
+        if (!mailboxIndex.exists(accountName)) {
+            reply(frame, Opcode.ERROR, "Account not found!", client);
+            log(clientInfo + " - Account not found: " + accountName);
+            return;
+        }
+        ByteBuffer params = frame.payload();
+        long pageSize = params.hasRemaining() ? Frame.getVarint(params) : MAX_LIST_PAGE;
+        MailboxIndex.Sort sort = MailboxIndex.Sort.of(params.hasRemaining() ? params.get() : 0);
+        if (pageSize > MAX_LIST_PAGE || frame.seq() > Integer.MAX_VALUE) {
+            reply(frame, Opcode.ERROR, "Invalid page", client);
+            return;
+        }
 
-        try {
-            int chunkIndex = Integer.parseInt(metadata[5]);
-            int totalChunks = Integer.parseInt(metadata[6]);
+        List<MailboxEntry> view = mailboxIndex.listing(accountName, sort, frame.field(1));
+        int first = (int) Math.min(frame.seq(), view.size());
+        int end = (int) Math.min(view.size(), first + pageSize);
+        int budget = LIST_DATAGRAM_BYTES - Frame.MAX_HEADER - 2 * Frame.varintLength(view.size());
+        int last = first;
+        while (last < end && (budget -= view.get(last).encodedLength()) >= 0) {
+            last++;
+        }
+        if (last == first && first < end) {
+            last++; // An entry too long for the budget still goes out on its own
+        }
 
-            String fileKey = toAccount + "/" + fileName; // Use a unique key for each file
+        ByteBuffer out = SEND_BUFFERS.get().clear();
+        Frame.encode(out, Opcode.REPLY, frame.id(), last);
+        Frame.putVarint(out, view.size());
+        Frame.putVarint(out, last - first);
+        for (int i = first; i < last; i++) {
+            view.get(i).write(out);
+        }
+        send(out.flip(), client);
+        if (first == 0) {
+            log(clientInfo + " - Sent file list for account: " + accountName);
+        }
+    }
 
-            if (!fileDataMap.containsKey(fileKey)) {
-                fileDataMap.put(fileKey, new ArrayList<>(Collections.nCopies(totalChunks, null)));
+    // SEARCH: fields are the account and the query, seq the cursor into the hits, and the payload the page
+    // size and the range of receive times in milliseconds, 0 meaning unbounded. The reply is laid out like
+    // a LIST reply with SearchHit entries, newest first.
+    private void search(Frame frame, SocketAddress client, String clientInfo) throws IOException {
+        String accountName = frame.field(0);
+        if (!mailboxIndex.exists(accountName)) {
+            reply(frame, Opcode.ERROR, "Account not found!", client);
+            log(clientInfo + " - Account not found: " + accountName);
+            return;
+        }
+        ByteBuffer params = frame.payload();
+        long pageSize = params.hasRemaining() ? Frame.getVarint(params) : MAX_LIST_PAGE;
+        long since = params.hasRemaining() ? Frame.getVarint(params) : 0;
+        long until = params.hasRemaining() ? Frame.getVarint(params) : 0;
+        if (pageSize > MAX_LIST_PAGE || frame.seq() > Integer.MAX_VALUE) {
+            reply(frame, Opcode.ERROR, "Invalid page", client);
+            return;
+        }
+
+        long started = System.nanoTime();
+        int first = (int) frame.seq();
+        SearchIndex.Page page = searchIndex.search(accountName, frame.field(1), since, until, first,
+                (int) Math.min(pageSize, MAX_SEARCH_HITS));
+        searchTimer.record(System.nanoTime() - started);
+        List<SearchHit> hits = page.hits();
+        int budget = LIST_DATAGRAM_BYTES - Frame.MAX_HEADER - 2 * Frame.varintLength(page.total());
+        int count = 0;
+        while (count < hits.size() && (budget -= hits.get(count).encodedLength()) >= 0) {
+            count++;
+        }
+        if (count == 0 && !hits.isEmpty()) {
+            count++; // A hit too long for the budget still goes out on its own
+        }
+
+        ByteBuffer out = SEND_BUFFERS.get().clear();
+        Frame.encode(out, Opcode.REPLY, frame.id(), Math.min(first, page.total()) + count);
+        Frame.putVarint(out, page.total());
+        Frame.putVarint(out, count);
+        for (int i = 0; i < count; i++) {
+            hits.get(i).write(out);
+        }
+        send(out.flip(), client);
+        if (first == 0) {
+            log(clientInfo + " - Searched " + accountName + " for \"" + frame.field(1) + "\": " + page.total() + " hits");
+        }
+    }
+
+    // Legacy text requests get a bare text reply; framed requests get a frame echoing their id
+    private void reply(Frame request, Opcode opcode, String response, SocketAddress client) throws IOException {
+        if (request.isLegacy()) {
+            send(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)), client);
+            return;
+        }
+        ByteBuffer out = SEND_BUFFERS.get().clear();
+        Frame.encode(out, opcode, request.id(), 0);
+        Frame.putUtf8(out, response);
+        send(out.flip(), client);
+    }
+
+    // Framed clients get the file's size, chunk size and SHA-256 here and then pull the data
+    // with DOWNLOAD_RANGE; legacy clients still get the file in a single datagram. A client that
+    // accepts deflate is sent a deflated attachment as stored, and the size and digest are of that form.
+    private void downloadFile(Frame frame, Session session) throws IOException {
+        SocketAddress client = session.address();
+        String clientInfo = session.clientInfo();
+        String accountName = frame.field(0);
+        String fileName = frame.field(1);
+        ByteBuffer params = frame.payload();
+        boolean acceptsDeflate = params.hasRemaining() && (params.get() & ChunkedDownload.ACCEPT_DEFLATE) != 0;
+        if (!isPlainName(accountName) || !isPlainName(fileName)) {
+            reply(frame, Opcode.ERROR, "File not found!", client);
+            log(clientInfo + " - Refused download of " + fileName + " from " + accountName + ": not a plain name");
+            return;
+        }
+
+        BlobStore.Blob blob = frame.isLegacy() ? null : blobs.resolve(root.resolve(accountName), fileName);
+        if (blob != null && (acceptsDeflate || !blob.deflated())) {
+            startDownload(frame, session, blob.storedSize(), blob.storedDigest(),
+                    blob.deflated() ? ChunkedDownload.DEFLATE : ChunkedDownload.IDENTITY, acceptsDeflate);
+            log(clientInfo + " - Download of " + fileName + " from " + accountName + " started");
+            return;
+        }
+
+        File file = resolveFile(accountName, fileName, true).toFile();
+        if (!file.isFile()) {
+            reply(frame, Opcode.ERROR, "File not found!", client);
+            log(clientInfo + " - File not found: " + fileName);
+            return;
+        }
+
+        ByteBuffer out = SEND_BUFFERS.get().clear();
+        if (frame.isLegacy()) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (out.hasRemaining() && channel.read(out) > 0) {
+                    // keep reading until the datagram is full or the file ends
+                }
             }
+            send(out.flip(), client);
+            log(clientInfo + " - Sent file: " + fileName + " to " + accountName);
+            return;
+        }
 
-            List<byte[]> fileChunks = fileDataMap.get(fileKey);
+        startDownload(frame, session, file.length(), fileDigests.digest(file.toPath()), ChunkedDownload.IDENTITY, acceptsDeflate);
+        log(clientInfo + " - Download of " + fileName + " from " + accountName + " started");
+    }
 
-            // Calculate the length of metadata
-            int metadataLength = Arrays.stream(metadata).mapToInt(String::length).sum() + (metadata.length - 1); // Add the length of colons
+    // Older clients do not expect the encoding, so it is only sent to those that accept deflate
+    private void startDownload(Frame frame, Session session, long size, byte[] digest, int encoding, boolean acceptsDeflate) throws IOException {
+        ByteBuffer out = SEND_BUFFERS.get().clear();
+        Frame.encode(out, Opcode.REPLY, frame.id(), 0);
+        Frame.putVarint(out, size);
+        // Clients that probed the path get chunks that fill its datagrams
+        int datagramBytes = Math.min(session.datagramBytes(), config.maxDatagram);
+        Frame.putVarint(out, Math.max(DOWNLOAD_CHUNK_SIZE, PathMtu.chunkSize(datagramBytes)));
+        out.put(digest);
+        if (acceptsDeflate) {
+            out.put((byte) encoding);
+        }
+        send(out.flip(), session.address());
+    }
 
-            // Extract the file chunk data
-            byte[] chunkData = Arrays.copyOfRange(receivePacket.getData(), metadataLength, receivePacket.getLength());
+    // "email_from_<sender>.txt" is served from the message store when it holds mail from that sender.
+    // Only the initial DOWNLOAD_FILE re-renders it, so ranges keep reading the copy the digest was taken of.
+    // Attachments are served from the blob store, inflated if they are stored deflated.
+    private Path resolveFile(String accountName, String fileName, boolean render) throws IOException {
+        Path file = root.resolve(accountName).resolve(fileName);
+        BlobStore.Blob blob = blobs.resolve(root.resolve(accountName), fileName);
+        if (blob != null) {
+            return blobs.plain(blob);
+        }
+        if (fileName.startsWith("email_from_") && fileName.endsWith(".txt")) {
+            String sender = fileName.substring("email_from_".length(), fileName.length() - ".txt".length());
+            if (render && mailboxIndex.hasSender(accountName, sender)) {
+                return mailStore.render(accountName, sender);
+            }
+            Path rendered = mailStore.renderedFile(accountName, sender);
+            if (!render && Files.exists(rendered)) {
+                return rendered;
+            }
+        }
+        return file;
+    }
 
-            fileChunks.set(chunkIndex, chunkData);
+    // DOWNLOAD_RANGE: id is the download id, seq the first chunk, payload the chunk count and chunk size
+    // and, from clients that accept deflate, the encoding the download started with
+    private void sendRange(Frame frame, SocketAddress client, String clientInfo) throws IOException {
+        String accountName = frame.field(0);
+        String fileName = frame.field(1);
+        ByteBuffer params = frame.payload();
+        long count = Frame.getVarint(params);
+        long chunkSize = Frame.getVarint(params);
+        int encoding = params.hasRemaining() ? params.get() : ChunkedDownload.IDENTITY;
+        if (!isPlainName(accountName) || !isPlainName(fileName)) {
+            reply(frame, Opcode.ERROR, "File not found!", client);
+            return;
+        }
+        if (count <= 0 || count > MAX_RANGE_CHUNKS || chunkSize <= 0 || chunkSize > MAX_DATAGRAM - Frame.MAX_HEADER) {
+            reply(frame, Opcode.ERROR, "Invalid range", client);
+            return;
+        }
 
-            if (fileChunks.stream().allMatch(Objects::nonNull)) {
-                assembleFile(toAccount, fileName, fileChunks);
-                fileDataMap.remove(fileKey);
+        Path file;
+        if (encoding == ChunkedDownload.DEFLATE) {
+            BlobStore.Blob blob = blobs.resolve(root.resolve(accountName), fileName);
+            file = blob != null && blob.deflated() ? blob.file() : root.resolve(accountName).resolve(fileName);
+        } else {
+            file = resolveFile(accountName, fileName, false);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long index = frame.seq(); index < frame.seq() + count; index++) {
+                long position = index * chunkSize;
+                if (position >= size && !(index == 0 && size == 0)) {
+                    break;
+                }
+                ByteBuffer out = SEND_BUFFERS.get().clear();
+                Frame.encode(out, Opcode.DOWNLOAD_DATA, frame.id(), index);
+                int start = out.position();
+                out.limit(start + (int) Math.min(chunkSize, size - position));
+                while (out.hasRemaining() && channel.read(out, position + out.position() - start) > 0) {
+                    // positional reads until the chunk is complete
+                }
+                send(out.flip(), client);
+            }
+        } catch (NoSuchFileException e) {
+            reply(frame, Opcode.ERROR, "File not found!", client);
+            log(clientInfo + " - File not found: " + fileName);
+        }
+    }
+
+    // ATTACH_BEGIN carries from, to, content and file name once; the chunk count rides in seq
+    // and the payload holds the file size and chunk size as varints
+    private void beginTransfer(Frame frame, Session session) throws IOException {
+        SocketAddress client = session.address();
+        String clientInfo = session.clientInfo();
+        String toAccount = frame.field(1);
+        String fileName = frame.field(3);
+        long totalChunks = frame.seq();
+        ByteBuffer sizes = frame.payload();
+        long fileSize = sizes.hasRemaining() ? Frame.getVarint(sizes) : -1;
+        long chunkSize = sizes.hasRemaining() ? Frame.getVarint(sizes) : LEGACY_CHUNK_SIZE;
+        // The file's version, e.g. its modification time; clients that send one can resume the upload later
+        long version = sizes.hasRemaining() ? Frame.getVarint(sizes) : 0;
+        // The file and recipient names end up in paths under the root. Names starting with '.' are the
+        // server's own; the one exception is a mailbox moving between nodes.
+        boolean archive = fileName.equals(AccountArchive.FILE_NAME) && cluster != null && cluster.isNode(session);
+        // The chunk count must be the one the size implies: the reservation is made for totalChunks full
+        // chunks, and a count out of step with the size would let chunks land past the end of the file
+        if (!isPlainName(toAccount) || !(archive || isPlainName(fileName)) || totalChunks > Integer.MAX_VALUE
+                || chunkSize <= 0 || chunkSize > PathMtu.chunkSize(config.maxDatagram) || fileSize < 0
+                || totalChunks != fileSize / chunkSize + (fileSize % chunkSize == 0 ? 0 : 1)) {
+            reply(frame, Opcode.ERROR, "Invalid attachment header", client);
+            return;
+        }
+        Transfer transfer = transfers.begin(session, frame.id(), frame.field(0), toAccount, fileName, (int) totalChunks,
+                (int) chunkSize, fileSize, version, System.nanoTime());
+        if (transfer == null) {
+            reply(frame, Opcode.ERROR, "Too many uploads in progress, try again later", client);
+            log(clientInfo + " - Refused " + fileName + " for " + toAccount + ": upload budget exhausted");
+            return;
+        }
+        // seq tells the client how many chunks the server already has, so a resumed upload skips them
+        ByteBuffer out = SEND_BUFFERS.get().clear();
+        Frame.encode(out, Opcode.REPLY, frame.id(), transfer.cumulative());
+        Frame.putUtf8(out, "Ready");
+        send(out.flip(), client);
+        if (transfer.cumulative() > 0) {
+            log(clientInfo + " - Resuming " + fileName + " for " + toAccount + " at chunk " + transfer.cumulative()
+                    + " of " + totalChunks);
+        } else {
+            log(clientInfo + " - Receiving " + fileName + " for " + toAccount + " in " + totalChunks + " chunks");
+        }
+        // Nothing left to send: an empty file, or one whose last chunk arrived before the server stopped
+        if (transfer.isComplete()) {
+            assembleFile(transfer);
+            transfers.finished(transfer);
+        }
+    }
+
+    // Receive file in parts and reassemble
+    private void receiveFile(Frame frame, Session session) throws IOException {
+        SocketAddress client = session.address();
+        String clientInfo = session.clientInfo();
+        Transfer transfer;
+        int chunkIndex;
+        long now = System.nanoTime();
+        if (frame.isLegacy()) {
+            String toAccount = frame.field(1);
+            String fileName = frame.field(3);
+            if (!isPlainName(toAccount) || !isPlainName(fileName)) {
+                log(clientInfo + " - Dropped chunk of " + fileName + " for " + toAccount + ": not a plain name");
+                return;
+            }
+            try {
+                chunkIndex = Integer.parseInt(frame.field(4));
+                int totalChunks = Integer.parseInt(frame.field(5));
+                if (totalChunks <= 0) {
+                    log(clientInfo + " - Dropped chunk of " + fileName + ": " + totalChunks + " total chunks");
+                    return;
+                }
+                // Old clients always cut files into 1024-byte chunks and never announce the size
+                transfer = transfers.legacy(session, toAccount + "/" + fileName, toAccount, fileName, totalChunks,
+                        LEGACY_CHUNK_SIZE, now);
+            } catch (NumberFormatException e) {
+                log(clientInfo + " - Failed to parse chunk index or total chunks for " + fileName);
+                return;
+            }
+            if (transfer == null) {
+                log(clientInfo + " - Dropped chunk of " + fileName + " for " + toAccount + ": upload budget exhausted");
+                return;
             }
-        } catch (NumberFormatException e) {
-            System.err.println("Failed to parse chunk index or total chunks. Received invalid metadata: " + Arrays.toString(metadata));
+        } else {
+            transfer = transfers.get(session, frame.id());
+            chunkIndex = (int) frame.seq();
+            if (transfer == null) {
+                int totalChunks = transfers.completedChunks(session, frame.id());
+                if (totalChunks >= 0) {
+                    sendAck(Opcode.ACK, frame.id(), totalChunks, null, client);
+                } else {
+                    log(clientInfo + " - Dropped chunk " + chunkIndex + " of unknown transfer " + frame.id());
+                }
+                return;
+            }
+        }
+
+        if (chunkIndex < 0 || chunkIndex >= transfer.totalChunks()) {
+            log(clientInfo + " - Chunk " + chunkIndex + " is out of range for " + transfer.fileName());
+            return;
+        }
+        if (!transfer.fits(chunkIndex, frame.payload().remaining())) {
+            log(clientInfo + " - Chunk " + chunkIndex + " of " + transfer.fileName() + " has the wrong length");
+            return;
+        }
+
+        // A chunk beyond the next expected one opens a new hole: NACK so the sender resends it right away
+        boolean gap = chunkIndex > transfer.highest() + 1;
+        boolean complete = transfers.store(transfer, chunkIndex, frame.payload(), now);
+        if (complete) {
+            assembleFile(transfer);
+            transfers.finished(transfer);
+        }
+        if (!frame.isLegacy()) {
+            sendAck(gap && !complete ? Opcode.NACK : Opcode.ACK, frame.id(), transfer.cumulative(), transfer, client);
         }
     }
 
-    private void assembleFile(String toAccount, String fileName, List<byte[]> fileChunks) throws IOException {
-        File accountFolder = new File(SERVER_FOLDER + toAccount);
-        if (!accountFolder.exists()) {
-            accountFolder.mkdirs(); // Ensure the folder exists
+    private void sendAck(Opcode opcode, long transferId, int cumulative, Transfer transfer, SocketAddress client) throws IOException {
+        ByteBuffer out = SEND_BUFFERS.get().clear();
+        Frame.encode(out, opcode, transferId, cumulative);
+        if (transfer != null && transfer.highest() > cumulative) {
+            int bytes = Math.min(SACK_BYTES, (transfer.highest() - cumulative + 7) / 8);
+            transfer.writeSack(out, bytes);
         }
+        send(out.flip(), client);
+    }
 
-        File outputFile = new File(accountFolder, fileName);
-        System.out.println("Saving file to: " + outputFile.getAbsolutePath()); // Debug log
+    // Every attachment goes into the blob store, so recipients and repeated uploads of the same
+    // bytes share one stored copy
+    private void assembleFile(Transfer transfer) throws IOException {
+        Path assembled = root.resolve(TRANSFER_FOLDER).resolve(transfer.fileName() + "." + System.nanoTime() + ".assembled");
+        long started = System.nanoTime();
+        byte[] digest = transfer.digest();
+        transfer.finish(assembled);
+        if (cluster != null && transfer.fileName().equals(AccountArchive.FILE_NAME)) {
+            try {
+                importAccount(transfer.toAccount(), assembled);
+            } finally {
+                Files.deleteIfExists(assembled);
+            }
+            return;
+        }
+        BlobStore.Blob blob = blobs.put(assembled, digest);
+        assembleTimer.record(System.nanoTime() - started);
+        if (isMultiRecipient(transfer.toAccount())) {
+            List<String> recipients = recipients(transfer.toAccount(), transfer.owner.clientInfo());
+            if (cluster != null && !cluster.isNode(transfer.owner)) {
+                recipients = uploadToOtherNodes(blob, transfer.fileName(), recipients);
+            }
+            if (recipients.isEmpty()) {
+                blobs.release(blob);
+            } else {
+                fanOut.file(blob, transfer.fileName(), recipients);
+            }
+            log("File " + transfer.fileName() + " has been assembled and queued for " + recipients.size() + " recipients.");
+            return;
+        }
+
+        Path reference = blobs.attach(root.resolve(transfer.toAccount()), transfer.fileName(), blob);
+        mailboxIndex.accountCreated(transfer.toAccount());
+        mailboxIndex.fileAdded(transfer.toAccount(), transfer.fileName(), Files.getLastModifiedTime(reference).toMillis(), blob.size());
+        log("File " + transfer.fileName() + " has been successfully assembled and saved in " + transfer.toAccount() + "'s folder.");
+    }
+
+    // Recipients on other nodes get the file uploaded to their node, once per node, on a virtual thread
+    // that holds a reference to the blob until the upload is done; returns the recipients this node owns
+    private List<String> uploadToOtherNodes(BlobStore.Blob blob, String fileName, List<String> recipients) throws IOException {
+        List<String> local = new ArrayList<>();
+        for (Map.Entry<InetSocketAddress, List<String>> group : cluster.byOwner(recipients).entrySet()) {
+            if (cluster.isSelf(group.getKey())) {
+                local.addAll(group.getValue());
+                continue;
+            }
+            InetSocketAddress node = group.getKey();
+            String to = String.join(",", group.getValue());
+            blobs.retain(blob, 1);
+            Thread.ofVirtual().name("mail-cluster-upload").start(() -> {
+                try {
+                    ClientEngine.await(cluster.engine(node).upload(cluster.name(), to, cluster.secret(), blobs.plain(blob),
+                            fileName, null));
+                    log("File " + fileName + " passed on to " + clientInfo(node) + " for " + group.getValue().size() + " recipients");
+                } catch (IOException e) {
+                    log("Failed to pass " + fileName + " on to " + clientInfo(node) + ": " + e.getMessage());
+                } finally {
+                    try {
+                        blobs.release(blob);
+                    } catch (IOException e) {
+                        log("Failed to release the blob of " + fileName + ": " + e.getMessage());
+                    }
+                }
+            });
+        }
+        return local;
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            for (byte[] chunk : fileChunks) {
-                fos.write(chunk);
+    // Runs on the rebalance thread for each account another node now owns: the account is written
+    // to an archive, uploaded to the owner, and removed here once the owner has taken it in
+    private boolean migrate(String account, InetSocketAddress owner) {
+        Path archive = root.resolve(TRANSFER_FOLDER).resolve(account + "." + System.nanoTime() + ".account");
+        try {
+            Files.createDirectories(archive.getParent());
+            AccountArchive.write(archive, account, root.resolve(account), mailStore.read(account), blobs);
+            long size = Files.size(archive);
+            ClientEngine.await(cluster.engine(owner).upload(cluster.name(), account, cluster.secret(), archive,
+                    AccountArchive.FILE_NAME, null));
+            retire(account);
+            log("Moved mailbox " + account + " to " + clientInfo(owner) + " (" + size + " bytes)");
+            return true;
+        } catch (IOException e) {
+            log("Failed to move mailbox " + account + " to " + clientInfo(owner) + ": " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(archive);
+            } catch (IOException e) {
+                // Left for the next cleanup of the transfer folder
             }
         }
-        log("File " + fileName + " has been successfully assembled and saved in " + toAccount + "'s folder.");
     }
 
-    private String[] extractMetadata(DatagramPacket receivePacket) {
-        String packetData = new String(receivePacket.getData(), 0, receivePacket.getLength()).trim();
-        System.out.println("Extracting metadata from packet data: " + packetData); // Dòng debug
+    // Takes in a mailbox another node moved here. What the account already has is kept, so mail
+    // that arrived here while it moved is not lost.
+    private void importAccount(String account, Path archive) throws IOException {
+        Path accountDir = root.resolve(account);
+        Path scratch = root.resolve(TRANSFER_FOLDER);
+        int[] counts = new int[2];
+        Files.createDirectories(accountDir);
+        mailboxIndex.accountCreated(account);
+        String archived = AccountArchive.read(archive, scratch, new AccountArchive.Sink() {
+            @Override
+            public void message(String from, String body, long timestamp) throws IOException {
+                mailStore.append(account, from, body, timestamp);
+                mailboxIndex.messageAppended(account, from, timestamp);
+                searchIndex.added(account, from, body, timestamp);
+                counts[0]++;
+            }
 
-        String[] parts = packetData.split(":", 7);
+            @Override
+            public void file(String name, boolean attachment, long timestamp, Path content, byte[] sha256) throws IOException {
+                if (!isPlainName(name)) {
+                    throw new IOException("Unexpected file name in account archive: " + name);
+                }
+                long size = Files.size(content);
+                if (attachment) {
+                    Path reference = blobs.attach(accountDir, name, blobs.put(content, sha256));
+                    Files.setLastModifiedTime(reference, FileTime.fromMillis(timestamp));
+                } else if (!Files.exists(accountDir.resolve(name))) {
+                    Files.move(content, accountDir.resolve(name));
+                    Files.setLastModifiedTime(accountDir.resolve(name), FileTime.fromMillis(timestamp));
+                }
+                mailboxIndex.fileAdded(account, name, timestamp, size);
+                counts[1]++;
+            }
+        });
+        if (!archived.equals(account)) {
+            log("Account archive for " + archived + " was uploaded as " + account);
+        }
+        log("Took in mailbox " + account + " with " + counts[0] + " messages and " + counts[1] + " files");
+    }
 
-        if (parts.length < 7) {
-            System.err.println("Received invalid metadata format: " + Arrays.toString(parts));
-            throw new IllegalArgumentException("Invalid metadata format: " + Arrays.toString(parts));
+    // Drops the local copy of an account that now lives on another node
+    private void retire(String account) throws IOException {
+        Path accountDir = root.resolve(account);
+        mailboxIndex.accountRemoved(account);
+        mailStore.release(account);
+        searchIndex.release(account);
+        Path references = accountDir.resolve(BlobStore.REFERENCE_FOLDER);
+        if (Files.isDirectory(references)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(references)) {
+                for (Path reference : files) {
+                    String name = reference.getFileName().toString();
+                    BlobStore.Blob blob = name.startsWith(".") ? null : blobs.resolve(accountDir, name);
+                    if (blob != null) {
+                        blobs.release(blob);
+                    }
+                }
+            }
         }
+        deleteTree(accountDir);
+    }
 
-        parts[6] = parts[6].replaceAll("[^0-9]", "");
+    private static void deleteTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
 
-        return parts;
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException failure) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
 }
@@ -0,0 +1,155 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.Set;
+
+// Everything the engine needs to start, read from "mail.*" keys. Command-line options win
+// over system properties, which win over a --config properties file, which wins over the defaults.
+// An option "--name value" sets "mail.name"; a bare "--name" sets it to true.
+public class ServerConfig {
+
+    public static final String USAGE = String.join("\n",
+            "Usage: Server [--port 12345] [--bind 0.0.0.0] [--root MailServer/] [--workers N] [--queueDepth 1024]",
+            "              [--transport socket|nio] [--virtualThreads] [--fsync none|batch|always] [--headless]",
+            "              [--metricsPort 9100] [--jmx false] [--sessionTimeoutMs 60000] [--sessionRate 0]",
+            "              [--cluster host:port,host:port,...] [--node host:port] [--clusterSecret S]",
+            "              [--config server.properties]",
+            "The other mail.* settings are options too, e.g. --segmentBytes 67108864 or --logFile server.log.");
+
+    private static final Set<String> OPTIONS = Set.of("bind", "port", "root", "workers", "queueDepth", "virtualThreads",
+            "transport", "packetPool", "fsync", "fsyncIntervalMs", "segmentBytes", "journalBytes", "indexEntries", "logCapacity", "logFile",
+            "logMaxBytes", "logFiles", "logWindowLines", "headless", "metricsPort", "jmx", "sessionTimeoutMs", "sessionRate",
+            "transferMaxBytes", "transferSessionMaxBytes", "transferTimeoutMs", "maxDatagram",
+            "socketBuffer", "compressAttachments", "cluster", "node", "clusterSecret", "config");
+
+    public final String bind;
+    public final int port;
+    public final Path root;
+    public final int workers;
+    public final int queueDepth;
+    public final boolean virtualThreads;
+    public final String transport;
+    public final int packetPool;
+    public final MailStore.FsyncPolicy fsync;
+    public final long fsyncIntervalMs;
+    public final long segmentBytes;
+    // The journal checkpoints once its file passes this size, which bounds the replay at start
+    public final long journalBytes;
+    public final int indexEntries;
+    public final int logCapacity;
+    public final Path logFile;
+    public final long logMaxBytes;
+    public final int logFiles;
+    public final int logWindowLines;
+    public final boolean headless;
+    // -1 disables the HTTP metrics endpoint, 0 picks a free port
+    public final int metricsPort;
+    public final boolean jmx;
+    // Sessions without a packet for this long are dropped and their uploads aborted
+    public final long sessionTimeoutMs;
+    // Packets per second admitted from one client address, 0 for no limit
+    public final double sessionRate;
+    // Upload budgets in bytes of part file, for the whole server and for one client address
+    public final long transferMaxBytes;
+    public final long transferSessionMaxBytes;
+    // Uploads without a chunk for this long are discarded
+    public final long transferTimeoutMs;
+    // Largest datagram accepted, which bounds the upload chunk size clients can negotiate
+    public final int maxDatagram;
+    public final int socketBuffer;
+    // Attachments that deflate well are stored deflated
+    public final boolean compressAttachments;
+    // Every node of the cluster as host:port, empty when the server runs on its own
+    public final String cluster;
+    // This node as it appears in that list
+    public final String node;
+    // Shared by every node; a node's uploads carry it to be trusted as coming from a node
+    public final String clusterSecret;
+
+    public ServerConfig(Properties properties) {
+        bind = properties.getProperty("mail.bind", "0.0.0.0");
+        port = Integer.parseInt(properties.getProperty("mail.port", "12345"));
+        root = Paths.get(properties.getProperty("mail.root", "MailServer/"));
+        workers = Integer.parseInt(properties.getProperty("mail.workers", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        queueDepth = Integer.parseInt(properties.getProperty("mail.queueDepth", "1024"));
+        virtualThreads = Boolean.parseBoolean(properties.getProperty("mail.virtualThreads", "false"));
+        transport = properties.getProperty("mail.transport", "socket");
+        // Pooled buffers hold a whole datagram, so the pool is capped at 1024 x 64 KB of direct memory
+        packetPool = Integer.parseInt(properties.getProperty("mail.packetPool", "1024"));
+        fsync = MailStore.FsyncPolicy.valueOf(properties.getProperty("mail.fsync", "batch").toUpperCase());
+        fsyncIntervalMs = Long.parseLong(properties.getProperty("mail.fsyncIntervalMs", "10"));
+        segmentBytes = Long.parseLong(properties.getProperty("mail.segmentBytes", String.valueOf(64L * 1024 * 1024)));
+        journalBytes = Long.parseLong(properties.getProperty("mail.journalBytes", String.valueOf(64L * 1024 * 1024)));
+        indexEntries = Integer.parseInt(properties.getProperty("mail.indexEntries", "1000000"));
+        logCapacity = Integer.parseInt(properties.getProperty("mail.logCapacity", "65536"));
+        logFile = properties.containsKey("mail.logFile") ? Paths.get(properties.getProperty("mail.logFile"))
+                : root.resolve(".logs").resolve("server.log");
+        logMaxBytes = Long.parseLong(properties.getProperty("mail.logMaxBytes", String.valueOf(16L * 1024 * 1024)));
+        logFiles = Integer.parseInt(properties.getProperty("mail.logFiles", "5"));
+        logWindowLines = Integer.parseInt(properties.getProperty("mail.logWindowLines", "5000"));
+        headless = Boolean.parseBoolean(properties.getProperty("mail.headless", "false"));
+        metricsPort = Integer.parseInt(properties.getProperty("mail.metricsPort", "-1"));
+        jmx = Boolean.parseBoolean(properties.getProperty("mail.jmx", "true"));
+        sessionTimeoutMs = Long.parseLong(properties.getProperty("mail.sessionTimeoutMs", "60000"));
+        sessionRate = Double.parseDouble(properties.getProperty("mail.sessionRate", "0"));
+        transferMaxBytes = Long.parseLong(properties.getProperty("mail.transferMaxBytes", String.valueOf(16L * 1024 * 1024 * 1024)));
+        transferSessionMaxBytes = Long.parseLong(properties.getProperty("mail.transferSessionMaxBytes", String.valueOf(2L * 1024 * 1024 * 1024)));
+        transferTimeoutMs = Long.parseLong(properties.getProperty("mail.transferTimeoutMs", "120000"));
+        maxDatagram = Integer.parseInt(properties.getProperty("mail.maxDatagram", String.valueOf(PathMtu.MAX_DATAGRAM)));
+        socketBuffer = Integer.parseInt(properties.getProperty("mail.socketBuffer", String.valueOf(4 * 1024 * 1024)));
+        compressAttachments = Boolean.parseBoolean(properties.getProperty("mail.compressAttachments", "true"));
+        cluster = properties.getProperty("mail.cluster", "");
+        node = properties.getProperty("mail.node", (bind.equals("0.0.0.0") ? "127.0.0.1" : bind) + ":" + port);
+        clusterSecret = properties.getProperty("mail.clusterSecret", "");
+    }
+
+    public static ServerConfig defaults() {
+        return new ServerConfig(System.getProperties());
+    }
+
+    public static ServerConfig parse(String[] args) throws IOException {
+        Properties options = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || args[i].length() == 2) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String name = args[i].substring(2);
+            int equals = name.indexOf('=');
+            String value = null;
+            if (equals >= 0) {
+                value = name.substring(equals + 1);
+                name = name.substring(0, equals);
+            }
+            if (!OPTIONS.contains(name)) {
+                throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+            if (value != null) {
+                options.setProperty("mail." + name, value);
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.setProperty("mail." + name, args[++i]);
+            } else {
+                options.setProperty("mail." + name, "true");
+            }
+        }
+
+        Properties merged = new Properties();
+        String configFile = options.getProperty("mail.config", System.getProperty("mail.config"));
+        if (configFile != null) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(configFile))) {
+                merged.load(reader);
+            }
+        }
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("mail.")) {
+                merged.setProperty(key, System.getProperty(key));
+            }
+        }
+        merged.putAll(options);
+        return new ServerConfig(merged);
+    }
+}
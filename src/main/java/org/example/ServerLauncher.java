@@ -0,0 +1,50 @@
+package org.example;
+
+import javax.swing.*;
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+// Command-line entry point. The engine binds first; the Swing log window is only created
+// afterwards, on the EDT, when there is a display and --headless was not given, so AWT start-up
+// never delays the first packet. Run with --help for the options.
+public class ServerLauncher {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ServerConfig config;
+        try {
+            if (args.length > 0 && (args[0].equals("--help") || args[0].equals("-h"))) {
+                System.out.println(ServerConfig.USAGE);
+                return;
+            }
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(ServerConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Server server = new Server(config);
+        InetSocketAddress address = server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close the server: " + e.getMessage());
+            }
+        }));
+
+        if (config.headless || GraphicsEnvironment.isHeadless()) {
+            System.out.println("Mail Server listening on " + address + ", logging to " + config.logFile);
+        } else {
+            SwingUtilities.invokeLater(() -> {
+                LogWindow window = new LogWindow("Mail Server", config.logWindowLines);
+                server.addLogSink(window);
+                server.addObserver(window);
+                window.started(address, 0);
+            });
+        }
+        server.awaitTermination();
+    }
+}
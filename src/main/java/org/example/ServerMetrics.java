@@ -0,0 +1,210 @@
+package org.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+// Counters, per-opcode latency histograms and named timers for one server. Everything on
+// the packet path is a LongAdder or a LatencyHistogram, so recording never takes a lock;
+// gauges and hit rates are suppliers that are only read when someone asks for a snapshot.
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    private final long startMillis = System.currentTimeMillis();
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LatencyHistogram[] requests = new LatencyHistogram[Opcode.values().length + 1];
+    private final LongAdder[] requestFailures = new LongAdder[requests.length];
+    private final Map<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private final Map<String, DoubleSupplier> hitRates = new LinkedHashMap<>();
+
+    public ServerMetrics() {
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new LatencyHistogram();
+            requestFailures[i] = new LongAdder();
+        }
+    }
+
+    public void received(int bytes) {
+        packetsIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    public void sent(int bytes) {
+        packetsOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    public void malformed() {
+        malformed.increment();
+    }
+
+    public void rateLimited() {
+        rateLimited.increment();
+    }
+
+    // Latency from the moment the datagram was read until its handler returned, queueing included
+    public void request(Opcode opcode, long nanos, boolean failed) {
+        int slot = opcode == null ? requests.length - 1 : opcode.ordinal();
+        requests[slot].record(nanos);
+        if (failed) {
+            requestFailures[slot].increment();
+            failures.increment();
+        }
+    }
+
+    public LatencyHistogram timer(String name) {
+        return timers.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    public synchronized void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public synchronized void hitRate(String name, LongSupplier hits, LongSupplier misses) {
+        hitRates.put(name, () -> {
+            long hit = hits.getAsLong();
+            long total = hit + misses.getAsLong();
+            return total == 0 ? 0 : (double) hit / total;
+        });
+    }
+
+    @Override
+    public long getPacketsIn() {
+        return packetsIn.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getPacketsOut() {
+        return packetsOut.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMalformedPackets() {
+        return malformed.sum();
+    }
+
+    @Override
+    public long getRateLimitedPackets() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failures.sum();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getGauges() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        gauges.forEach((name, value) -> values.put(name, value.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public synchronized Map<String, Double> getCacheHitRates() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        hitRates.forEach((name, value) -> values.put(name, value.getAsDouble()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < requests.length; i++) {
+            if (requests[i].count() > 0) {
+                values.put(requestName(i), requests[i].count());
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getP99LatencyMicros() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < requests.length; i++) {
+            if (requests[i].count() > 0) {
+                values.put(requestName(i), requests[i].percentile(0.99) / 1000);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public String getJson() {
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\"uptimeMs\":").append(System.currentTimeMillis() - startMillis);
+        json.append(",\"counters\":{\"packetsIn\":").append(getPacketsIn())
+                .append(",\"bytesIn\":").append(getBytesIn())
+                .append(",\"packetsOut\":").append(getPacketsOut())
+                .append(",\"bytesOut\":").append(getBytesOut())
+                .append(",\"malformedPackets\":").append(getMalformedPackets())
+                .append(",\"rateLimitedPackets\":").append(getRateLimitedPackets())
+                .append(",\"failedRequests\":").append(getFailedRequests()).append('}');
+        json.append(",\"gauges\":{");
+        appendValues(json, getGauges());
+        json.append("},\"cacheHitRates\":{");
+        appendValues(json, getCacheHitRates());
+        json.append("},\"requests\":{");
+        String separator = "";
+        for (int i = 0; i < requests.length; i++) {
+            if (requests[i].count() > 0) {
+                json.append(separator).append('"').append(requestName(i)).append("\":");
+                appendHistogram(json, requests[i]);
+                json.setLength(json.length() - 1);
+                json.append(",\"failures\":").append(requestFailures[i].sum()).append('}');
+                separator = ",";
+            }
+        }
+        json.append("},\"timers\":{");
+        separator = "";
+        for (Map.Entry<String, LatencyHistogram> timer : new TreeMap<>(timers).entrySet()) {
+            json.append(separator).append('"').append(timer.getKey()).append("\":");
+            appendHistogram(json, timer.getValue());
+            separator = ",";
+        }
+        return json.append("}}").toString();
+    }
+
+    private static String requestName(int slot) {
+        return slot < Opcode.values().length ? Opcode.values()[slot].name() : "UNKNOWN";
+    }
+
+    private static void appendValues(StringBuilder json, Map<String, ? extends Number> values) {
+        String separator = "";
+        for (Map.Entry<String, ? extends Number> value : values.entrySet()) {
+            json.append(separator).append('"').append(value.getKey()).append("\":").append(value.getValue());
+            separator = ",";
+        }
+    }
+
+    // Latencies are recorded in nanoseconds and reported in microseconds
+    private static void appendHistogram(StringBuilder json, LatencyHistogram histogram) {
+        json.append("{\"count\":").append(histogram.count())
+                .append(",\"meanUs\":").append(Math.round(histogram.mean() / 1000))
+                .append(",\"p50Us\":").append(histogram.percentile(0.50) / 1000)
+                .append(",\"p90Us\":").append(histogram.percentile(0.90) / 1000)
+                .append(",\"p99Us\":").append(histogram.percentile(0.99) / 1000)
+                .append(",\"p999Us\":").append(histogram.percentile(0.999) / 1000)
+                .append(",\"maxUs\":").append(histogram.max() / 1000).append('}');
+    }
+}
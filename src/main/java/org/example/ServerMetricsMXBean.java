@@ -0,0 +1,31 @@
+package org.example;
+
+import java.util.Map;
+
+// JMX view of ServerMetrics, registered as org.example:type=MailServer,name=<port>
+public interface ServerMetricsMXBean {
+
+    long getPacketsIn();
+
+    long getBytesIn();
+
+    long getPacketsOut();
+
+    long getBytesOut();
+
+    long getMalformedPackets();
+
+    long getRateLimitedPackets();
+
+    long getFailedRequests();
+
+    Map<String, Long> getGauges();
+
+    Map<String, Double> getCacheHitRates();
+
+    Map<String, Long> getRequestCounts();
+
+    Map<String, Long> getP99LatencyMicros();
+
+    String getJson();
+}
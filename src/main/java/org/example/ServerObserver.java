@@ -0,0 +1,17 @@
+package org.example;
+
+import java.net.InetSocketAddress;
+
+// Optional front-end hooked onto a running Server. Callbacks arrive on server threads
+// and must return quickly; Swing observers hand them to the EDT themselves.
+public interface ServerObserver {
+
+    default void started(InetSocketAddress address, long startupMillis) {
+    }
+
+    default void clientsChanged(int connectedClients) {
+    }
+
+    default void stopped() {
+    }
+}
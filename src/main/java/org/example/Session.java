@@ -0,0 +1,171 @@
+package org.example;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One client address as the server sees it. The receive thread refreshes lastSeen and runs the
+// rate limiter; workers record the account, and the TransferTable files the session's uploads
+// here so they can be aborted when the session disconnects or goes idle.
+public class Session {
+
+    private static final int MAX_FORWARDED = 64;
+
+    final long key;
+    final InetSocketAddress address;
+    private final String clientInfo;
+    volatile long lastSeen;
+    volatile boolean closed;
+    private volatile String account;
+    // Uploads in progress by the client's transfer id, and legacy ones by "toAccount/fileName"
+    private volatile Map<Long, Transfer> transfers;
+    private volatile Map<String, Transfer> legacyTransfers;
+    // Bytes reserved by those uploads, guarded by the TransferTable
+    long transferBytes;
+    // In cluster mode, the node each upload or download of this client was forwarded to, by transfer id
+    private Map<Long, InetSocketAddress> forwarded;
+    // In cluster mode, set when this is another node's connection for passing on uploads
+    private volatile boolean peer;
+    // Largest MTU probe that arrived from this client, 0 until it has probed
+    private volatile int datagramBytes;
+    // Token bucket, only touched by the receive thread
+    private double tokens = -1;
+    private long refilled;
+    // Intrusive link for the expiry wheel, guarded by the table's wheel lock
+    Session nextInSlot;
+
+    Session(long key, InetSocketAddress address, long now) {
+        this.key = key;
+        this.address = address;
+        this.clientInfo = address.getAddress().getHostAddress() + ":" + address.getPort();
+        this.lastSeen = now;
+    }
+
+    public InetSocketAddress address() {
+        return address;
+    }
+
+    // "ip:port", built once instead of on every packet
+    public String clientInfo() {
+        return clientInfo;
+    }
+
+    public String account() {
+        return account;
+    }
+
+    public void account(String account) {
+        this.account = account;
+    }
+
+    public int datagramBytes() {
+        return datagramBytes;
+    }
+
+    void probed(int bytes) {
+        if (bytes > datagramBytes) {
+            datagramBytes = bytes;
+        }
+    }
+
+    // Only the most recent transfers are remembered; an older one still running would have to start over
+    synchronized void forwarded(long id, InetSocketAddress node) {
+        if (forwarded == null) {
+            forwarded = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, InetSocketAddress> eldest) {
+                    return size() > MAX_FORWARDED;
+                }
+            };
+        }
+        forwarded.put(id, node);
+    }
+
+    synchronized InetSocketAddress forwardedTo(long id) {
+        return forwarded != null ? forwarded.get(id) : null;
+    }
+
+    void peer() {
+        peer = true;
+    }
+
+    boolean isPeer() {
+        return peer;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    Transfer transfer(long id) {
+        Map<Long, Transfer> map = transfers;
+        return map != null ? map.get(id) : null;
+    }
+
+    Transfer legacyTransfer(String fileKey) {
+        Map<String, Transfer> map = legacyTransfers;
+        return map != null ? map.get(fileKey) : null;
+    }
+
+    void transferStarted(Transfer transfer) {
+        transferMap().put(transfer.clientId, transfer);
+    }
+
+    void transferFinished(long id, Transfer transfer) {
+        transfers.remove(id, transfer);
+    }
+
+    void legacyTransferStarted(Transfer transfer) {
+        legacyTransferMap().put(transfer.legacyKey, transfer);
+    }
+
+    void legacyTransferFinished(String fileKey, Transfer transfer) {
+        legacyTransfers.remove(fileKey, transfer);
+    }
+
+    Collection<Transfer> transfers() {
+        Map<Long, Transfer> map = transfers;
+        return map != null ? map.values() : List.of();
+    }
+
+    Collection<Transfer> legacyTransfers() {
+        Map<String, Transfer> map = legacyTransfers;
+        return map != null ? map.values() : List.of();
+    }
+
+    // Most sessions never upload, so the maps are only created on the first transfer
+    private synchronized Map<Long, Transfer> transferMap() {
+        if (transfers == null) {
+            transfers = new ConcurrentHashMap<>();
+        }
+        return transfers;
+    }
+
+    private synchronized Map<String, Transfer> legacyTransferMap() {
+        if (legacyTransfers == null) {
+            legacyTransfers = new ConcurrentHashMap<>();
+        }
+        return legacyTransfers;
+    }
+
+    // Packets per second with a one second burst; a rate of 0 admits everything
+    boolean admit(long now, double rate) {
+        if (rate <= 0) {
+            return true;
+        }
+        if (tokens < 0) {
+            tokens = rate;
+        } else {
+            tokens = Math.min(rate, tokens + (now - refilled) * rate / 1e9);
+        }
+        refilled = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
@@ -0,0 +1,280 @@
+package org.example;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Live sessions by client address. IPv4 addresses are packed with the port into one long and kept
+// in striped open-addressing tables, so a lookup neither builds a string nor boxes a key; other
+// address families fall back to a ConcurrentHashMap.
+//
+// Idle sessions are found with a hashed timer wheel. A packet only writes lastSeen; the wheel
+// holds each session in the slot of the deadline it had when it was last scheduled, and when that
+// slot comes round a session that has been active since is simply put back further on. Ticking,
+// scheduling and expiry are all constant time per session.
+public class SessionTable {
+
+    public interface CloseListener {
+        // idle is false for an explicit DISCONNECT
+        void closed(Session session, boolean idle);
+    }
+
+    private static final int STRIPES = 64;
+    private static final int WHEEL_SLOTS = 512;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Map<InetSocketAddress, Session> others = new ConcurrentHashMap<>();
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final CloseListener listener;
+    private final Consumer<String> log;
+    private final Session[] wheel = new Session[WHEEL_SLOTS];
+    private final Object wheelLock = new Object();
+    private long currentTick;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder expired = new LongAdder();
+    private final Thread ticker;
+
+    public SessionTable(long timeoutMillis, CloseListener listener, Consumer<String> log) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        // The wheel covers at least one timeout so most sessions are looked at once per timeout
+        this.tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(10), timeoutNanos / (WHEEL_SLOTS / 2));
+        this.listener = listener;
+        this.log = log;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        currentTick = System.nanoTime() / tickNanos;
+        ticker = Thread.ofPlatform().name("mail-sessions").daemon(true).start(this::run);
+    }
+
+    // The session for the address, created on first contact
+    public Session touch(InetSocketAddress address, long now) {
+        Session session;
+        if (address.getAddress() instanceof Inet4Address ipv4) {
+            long key = pack(ipv4, address.getPort());
+            Stripe stripe = stripes[stripeOf(key)];
+            synchronized (stripe) {
+                session = stripe.get(key);
+                if (session == null) {
+                    session = new Session(key, address, now);
+                    stripe.put(key, session);
+                    created(session, now);
+                    return session;
+                }
+            }
+        } else {
+            session = others.get(address);
+            if (session == null) {
+                Session fresh = new Session(-1, address, now);
+                session = others.putIfAbsent(address, fresh);
+                if (session == null) {
+                    created(fresh, now);
+                    return fresh;
+                }
+            }
+        }
+        session.lastSeen = now;
+        return session;
+    }
+
+    public Session get(InetSocketAddress address) {
+        if (address.getAddress() instanceof Inet4Address ipv4) {
+            long key = pack(ipv4, address.getPort());
+            Stripe stripe = stripes[stripeOf(key)];
+            synchronized (stripe) {
+                return stripe.get(key);
+            }
+        }
+        return others.get(address);
+    }
+
+    // Explicit disconnect; the wheel forgets the session the next time its slot comes round
+    public boolean remove(Session session) {
+        if (!unlink(session)) {
+            return false;
+        }
+        listener.closed(session, false);
+        return true;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public long expired() {
+        return expired.sum();
+    }
+
+    public void close() {
+        ticker.interrupt();
+    }
+
+    private void created(Session session, long now) {
+        size.incrementAndGet();
+        schedule(session, now + timeoutNanos);
+    }
+
+    private boolean unlink(Session session) {
+        boolean removed;
+        if (session.key >= 0) {
+            Stripe stripe = stripes[stripeOf(session.key)];
+            synchronized (stripe) {
+                removed = stripe.get(session.key) == session && stripe.remove(session.key);
+            }
+        } else {
+            removed = others.remove(session.address, session);
+        }
+        if (removed) {
+            session.closed = true;
+            size.decrementAndGet();
+        }
+        return removed;
+    }
+
+    private void schedule(Session session, long deadline) {
+        synchronized (wheelLock) {
+            long tick = Math.min(Math.max(deadline / tickNanos, currentTick + 1), currentTick + WHEEL_SLOTS - 1);
+            int slot = (int) (tick & (WHEEL_SLOTS - 1));
+            session.nextInSlot = wheel[slot];
+            wheel[slot] = session;
+        }
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(tickNanos));
+            } catch (InterruptedException e) {
+                return;
+            }
+            advance(System.nanoTime());
+        }
+    }
+
+    void advance(long now) {
+        long target = now / tickNanos;
+        while (true) {
+            Session due;
+            synchronized (wheelLock) {
+                if (currentTick >= target) {
+                    return;
+                }
+                currentTick++;
+                int slot = (int) (currentTick & (WHEEL_SLOTS - 1));
+                due = wheel[slot];
+                wheel[slot] = null;
+            }
+            while (due != null) {
+                Session next = due.nextInSlot;
+                due.nextInSlot = null;
+                if (!due.closed) {
+                    long deadline = due.lastSeen + timeoutNanos;
+                    if (deadline - now > 0) {
+                        schedule(due, deadline);
+                    } else if (unlink(due)) {
+                        expired.increment();
+                        try {
+                            listener.closed(due, true);
+                        } catch (RuntimeException e) {
+                            log.accept(due.clientInfo() + " - Failed to close expired session: " + e);
+                        }
+                    }
+                }
+                due = next;
+            }
+        }
+    }
+
+    // 32 bits of address above 16 bits of port; always positive, so -1 can mark the fallback map
+    static long pack(Inet4Address address, int port) {
+        return ((address.hashCode() & 0xFFFFFFFFL) << 16) | port;
+    }
+
+    private static int stripeOf(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 58);
+    }
+
+    // Open addressing with linear probing and backward-shift deletion; key 0 marks a free slot,
+    // which is safe because 0.0.0.0:0 never sends a datagram
+    private static final class Stripe {
+        private long[] keys = new long[16];
+        private Session[] values = new Session[16];
+        private int count;
+
+        Session get(long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        void put(long key, Session value) {
+            if ((count + 1) * 4 > keys.length * 3) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                count++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        boolean remove(long key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != key) {
+                if (keys[i] == 0) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            // Pull later entries of the same probe run back so lookups never stop early
+            int hole = i;
+            for (int j = (hole + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = 0;
+            values[hole] = null;
+            count--;
+            return true;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Session[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Session[oldKeys.length * 2];
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long mixed = key * 0xC2B2AE3D27D4EB4FL;
+            return (int) (mixed ^ (mixed >>> 32));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.example;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Consistent hashing of account names onto cluster nodes. Every node is placed at
+// VIRTUAL_NODES points of a 64-bit ring by hashing "<host>:<port>#<i>", and an account
+// belongs to the first point at or after the hash of its name. Adding a node only takes
+// over the accounts that now land on its points, about 1/n of them, and every node that
+// is given the same list computes the same owners.
+public final class ShardMap {
+
+    public static final int VIRTUAL_NODES = 128;
+
+    private final List<InetSocketAddress> nodes;
+    private final long[] points;
+    private final InetSocketAddress[] owners;
+
+    // Nodes as "host:port"; names rather than resolved addresses decide the positions
+    public ShardMap(List<String> nodeNames) {
+        if (nodeNames.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+        nodes = new ArrayList<>(nodeNames.size());
+        long[][] ring = new long[nodeNames.size() * VIRTUAL_NODES][];
+        for (int n = 0; n < nodeNames.size(); n++) {
+            nodes.add(address(nodeNames.get(n)));
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring[n * VIRTUAL_NODES + v] = new long[] {hash(nodeNames.get(n) + "#" + v), n};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[ring.length];
+        owners = new InetSocketAddress[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = nodes.get((int) ring[i][1]);
+        }
+    }
+
+    // "host:port,host:port,..."
+    public static ShardMap parse(String nodeList) {
+        List<String> names = new ArrayList<>();
+        for (String name : nodeList.split(",")) {
+            if (!name.isBlank()) {
+                names.add(name.strip());
+            }
+        }
+        return new ShardMap(names);
+    }
+
+    public static InetSocketAddress address(String nodeName) {
+        int colon = nodeName.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Cluster node must be host:port: " + nodeName);
+        }
+        return new InetSocketAddress(nodeName.substring(0, colon), Integer.parseInt(nodeName.substring(colon + 1)));
+    }
+
+    public InetSocketAddress owner(String account) {
+        int index = Arrays.binarySearch(points, hash(account));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    public List<InetSocketAddress> nodes() {
+        return nodes;
+    }
+
+    // FNV-1a over the UTF-8 bytes with a final avalanche, so similar names spread over the ring
+    static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
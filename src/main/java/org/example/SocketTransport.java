@@ -0,0 +1,78 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+// The original blocking DatagramSocket path. Datagrams land straight in pooled heap buffers,
+// which go back to the pool once a worker has handled them, and every sending thread copies
+// its datagram into a buffer of its own, so neither direction allocates a buffer per packet.
+// The source address of each datagram is still a new object, as with NioTransport.
+public class SocketTransport implements Transport {
+
+    private final DatagramSocket socket;
+    private final PacketPool pool;
+    private final ThreadLocal<DatagramPacket> sendPackets =
+            ThreadLocal.withInitial(() -> new DatagramPacket(new byte[PathMtu.MAX_DATAGRAM], PathMtu.MAX_DATAGRAM));
+
+    public SocketTransport(SocketAddress bindAddress, int poolSize, int bufferSize, int socketBuffer) throws IOException {
+        this.socket = new DatagramSocket(bindAddress);
+        socket.setReceiveBufferSize(socketBuffer);
+        socket.setSendBufferSize(socketBuffer);
+        pool = new PacketPool(poolSize, bufferSize, false);
+    }
+
+    @Override
+    public void receive(PacketHandler handler) throws IOException {
+        DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+        while (!socket.isClosed()) {
+            Packet packet;
+            try {
+                packet = pool.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+            }
+            ByteBuffer data = packet.data();
+            receivePacket.setData(data.array(), data.arrayOffset(), data.capacity());
+            try {
+                socket.receive(receivePacket);
+            } catch (IOException e) {
+                packet.release();
+                throw e;
+            }
+            data.limit(receivePacket.getLength());
+            packet.source(receivePacket.getSocketAddress());
+            handler.onPacket(packet);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer data, SocketAddress target) throws IOException {
+        DatagramPacket sendPacket = sendPackets.get();
+        int length = data.remaining();
+        data.get(sendPacket.getData(), 0, length);
+        sendPacket.setLength(length);
+        sendPacket.setSocketAddress(target);
+        socket.send(sendPacket);
+    }
+
+    @Override
+    public void send(byte[] data, SocketAddress target) throws IOException {
+        socket.send(new DatagramPacket(data, data.length, target));
+    }
+
+    @Override
+    public InetSocketAddress localAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
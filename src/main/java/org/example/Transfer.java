@@ -0,0 +1,212 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+
+// An attachment being reassembled from its chunks. Each chunk is written straight to
+// its offset in a sparse part file and only a bitset of received chunks stays in
+// memory, so heap use does not grow with the attachment size. The SHA-256 of the file is
+// computed as the in-order prefix grows: a chunk that extends the prefix is hashed as it
+// arrives, and chunks that came early are read back from the part file once the gap closes.
+public class Transfer {
+
+    private final String toAccount;
+    private final String fileName;
+    private final int totalChunks;
+    private final int chunkSize;
+    private final long fileSize;
+    private final Path partFile;
+    private final FileChannel channel;
+    private final BitSet received;
+    private int receivedCount;
+    private volatile int cumulative;
+    private int highest = -1;
+    private long end;
+    private final MessageDigest sha256 = FileDigests.newSha256();
+    private int hashed;
+    private int lastChunkLength = -1;
+    private ByteBuffer readBack;
+    // Bookkeeping for TransferTable; owner is null while an interrupted upload waits to be resumed
+    Session owner;
+    long clientId;
+    String legacyKey;
+    long reserved;
+    volatile long lastActivity;
+    long number;
+    TransferTable.ResumeKey resumeKey;
+    int journaled;
+
+    // fileSize may be -1 when the sender did not announce it (legacy uploads)
+    public Transfer(String toAccount, String fileName, int totalChunks, int chunkSize, long fileSize, Path partFile) throws IOException {
+        this(toAccount, fileName, totalChunks, chunkSize, fileSize, partFile, 0);
+    }
+
+    // With committed above 0, picks up a part file whose first committed chunks are known to be on
+    // disk, as after a restart; whatever came after them is treated as never received
+    public Transfer(String toAccount, String fileName, int totalChunks, int chunkSize, long fileSize, Path partFile,
+                    int committed) throws IOException {
+        this.toAccount = toAccount;
+        this.fileName = fileName;
+        this.totalChunks = totalChunks;
+        this.chunkSize = chunkSize;
+        this.fileSize = fileSize;
+        this.partFile = partFile;
+        // Grows with the chunks that arrive rather than with the count the client announced
+        this.received = new BitSet();
+        if (committed > 0) {
+            channel = FileChannel.open(partFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            received.set(0, committed);
+            receivedCount = committed;
+            cumulative = committed;
+            highest = committed - 1;
+            if (committed == totalChunks) {
+                lastChunkLength = (int) (fileSize - (long) (totalChunks - 1) * chunkSize);
+            }
+            end = Math.min((long) committed * chunkSize, fileSize);
+            try {
+                hashUpTo(committed);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return;
+        }
+        Files.createDirectories(partFile.getParent());
+        channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE);
+        if (fileSize > 0) {
+            // Preallocate by writing the last byte; the holes before it stay sparse
+            channel.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+        }
+    }
+
+    public String toAccount() {
+        return toAccount;
+    }
+
+    public String fileName() {
+        return fileName;
+    }
+
+    public int totalChunks() {
+        return totalChunks;
+    }
+
+    public boolean has(int index) {
+        return received.get(index);
+    }
+
+    // Every chunk but the last fills chunkSize exactly; the last holds the rest of the file, or
+    // at most chunkSize when the size was not announced. Anything else would spill into the next
+    // chunk's place or past the reservation.
+    public boolean fits(int index, int length) {
+        if (index < totalChunks - 1) {
+            return length == chunkSize;
+        }
+        if (fileSize >= 0) {
+            return length == fileSize - (long) (totalChunks - 1) * chunkSize;
+        }
+        return length <= chunkSize;
+    }
+
+    // Writes the chunk in place; duplicates are ignored. Returns true once every chunk has arrived.
+    public synchronized boolean store(int index, ByteBuffer data) throws IOException {
+        if (!received.get(index)) {
+            long offset = (long) index * chunkSize;
+            long chunkEnd = offset + data.remaining();
+            if (index == totalChunks - 1) {
+                lastChunkLength = data.remaining();
+            }
+            if (index == hashed) {
+                sha256.update(data.duplicate());
+                hashed++;
+            }
+            while (data.hasRemaining()) {
+                channel.write(data, chunkEnd - data.remaining());
+            }
+            end = Math.max(end, chunkEnd);
+            received.set(index);
+            receivedCount++;
+            highest = Math.max(highest, index);
+            cumulative = received.nextClearBit(cumulative);
+            hashUpTo(Math.min(cumulative, totalChunks));
+        }
+        return isComplete();
+    }
+
+    private void hashUpTo(int limit) throws IOException {
+        while (hashed < limit) {
+            int length = hashed == totalChunks - 1 ? lastChunkLength : chunkSize;
+            if (readBack == null || readBack.capacity() < length) {
+                readBack = ByteBuffer.allocate(chunkSize);
+            }
+            readBack.clear().limit(length);
+            long offset = (long) hashed * chunkSize;
+            while (readBack.hasRemaining()) {
+                if (channel.read(readBack, offset + readBack.position()) < 0) {
+                    throw new IOException("Part file shorter than its chunks");
+                }
+            }
+            sha256.update(readBack.flip());
+            hashed++;
+        }
+    }
+
+    // SHA-256 of the whole file, available once every chunk has arrived
+    public synchronized byte[] digest() {
+        if (!isComplete()) {
+            throw new IllegalStateException("Transfer is incomplete");
+        }
+        return sha256.digest();
+    }
+
+    public boolean isComplete() {
+        return receivedCount == totalChunks;
+    }
+
+    // Index of the first chunk still missing
+    public int cumulative() {
+        return cumulative;
+    }
+
+    public int highest() {
+        return highest;
+    }
+
+    // Selective ack: bit i is set when chunk cumulative + 1 + i has arrived
+    public void writeSack(ByteBuffer out, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            int bits = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                if (received.get(cumulative + 1 + i * 8 + bit)) {
+                    bits |= 1 << bit;
+                }
+            }
+            out.put((byte) bits);
+        }
+    }
+
+    // Puts the chunks written so far on disk; not under the lock, so chunks keep arriving meanwhile
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    // Trims the part file to the bytes actually received and moves it into place
+    public synchronized void finish(Path target) throws IOException {
+        channel.truncate(end);
+        channel.close();
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized void abort() throws IOException {
+        channel.close();
+        Files.deleteIfExists(partFile);
+    }
+}
@@ -0,0 +1,422 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Uploads being reassembled. Transfers belong to the session that began them, so two clients
+// that pick the same transfer id, or upload the same file name to the same account, never
+// share a part file. Each transfer reserves its announced size against a global and a
+// per-session budget; chunks go straight to the part file, so the budget bounds disk use and
+// heap only holds a bitset per transfer. A "mail-transfers" thread aborts uploads that have
+// gone quiet even though their session is still alive.
+//
+// With a Journal, uploads that announce their file's version are resumable: how many chunks
+// are on disk is journaled at each group commit, and an upload whose session closed, or that
+// the previous run left, waits for its idle timeout for an ATTACH_BEGIN with the same sender,
+// recipient, file name, size, chunk size and version to pick it up where it stopped.
+public class TransferTable {
+
+    public interface EvictionListener {
+        void evicted(Transfer transfer);
+    }
+
+    private static final int COMPLETED_CAPACITY = 1024;
+
+    private final Path folder;
+    private final long maxBytes;
+    private final long maxSessionBytes;
+    private final long idleNanos;
+    private final EvictionListener listener;
+    private final Journal journal;
+    private final Consumer<String> log;
+    private final Set<Transfer> live = ConcurrentHashMap.newKeySet();
+    // Interrupted uploads waiting for their client to come back, guarded by this
+    private final Map<ResumeKey, Transfer> orphans = new LinkedHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private long reservedBytes;
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // Recently finished transfers and their chunk counts, so retransmits after a lost final ACK still get acked
+    private final Map<Completed, Integer> completed = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Completed, Integer> eldest) {
+            return size() > COMPLETED_CAPACITY;
+        }
+    });
+    private final Thread sweeper;
+
+    private record Completed(Session session, long id) {
+    }
+
+    record ResumeKey(String from, String toAccount, String fileName, long fileSize, int chunkSize, long version) {
+    }
+
+    public TransferTable(Path folder, long maxBytes, long maxSessionBytes, long idleMillis, EvictionListener listener,
+                         Consumer<String> log) {
+        this(folder, maxBytes, maxSessionBytes, idleMillis, listener, null, log);
+    }
+
+    public TransferTable(Path folder, long maxBytes, long maxSessionBytes, long idleMillis, EvictionListener listener,
+                         Journal journal, Consumer<String> log) {
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+        this.maxSessionBytes = maxSessionBytes;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.listener = listener;
+        this.journal = journal;
+        this.log = log;
+        if (journal != null) {
+            journal.beforeCommit(this::commitProgress);
+        }
+        long period = Math.max(100, idleMillis / 4);
+        sweeper = Thread.ofPlatform().name("mail-transfers").daemon(true).start(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sweep(System.nanoTime());
+            }
+        });
+    }
+
+    // The session's transfer with this id, an interrupted one it resumes, a new one, or null when
+    // the budget is exhausted. A version of 0 means the file's version is unknown, so it never resumes.
+    public Transfer begin(Session session, long id, String from, String toAccount, String fileName, int totalChunks,
+                          int chunkSize, long fileSize, long version, long now) throws IOException {
+        Transfer transfer = session.transfer(id);
+        if (transfer == null) {
+            ResumeKey key = journal != null && version != 0 && fileSize >= 0
+                    ? new ResumeKey(from, toAccount, fileName, fileSize, chunkSize, version) : null;
+            transfer = key != null ? adopt(session, key, now) : null;
+            if (transfer == null) {
+                transfer = open(session, (long) totalChunks * chunkSize, toAccount, fileName, totalChunks, chunkSize,
+                        fileSize, now);
+                if (transfer != null && key != null) {
+                    transfer.resumeKey = key;
+                    journal.began(new Journal.Upload(transfer.number, from, toAccount, fileName, totalChunks, chunkSize,
+                            fileSize, version, 0));
+                }
+            }
+            if (transfer != null) {
+                transfer.clientId = id;
+                session.transferStarted(transfer);
+            }
+        }
+        return transfer;
+    }
+
+    private Transfer adopt(Session session, ResumeKey key, long now) {
+        synchronized (this) {
+            Transfer transfer = orphans.get(key);
+            if (transfer == null || session.transferBytes + transfer.reserved > maxSessionBytes) {
+                return null;
+            }
+            orphans.remove(key);
+            session.transferBytes += transfer.reserved;
+            transfer.owner = session;
+            transfer.lastActivity = now;
+            return transfer;
+        }
+    }
+
+    // Takes back the uploads the journal says the previous run left unfinished, up to the chunks
+    // known to be on disk, for their clients to resume. Part files nothing refers to any more are
+    // deleted. Returns how many uploads can be resumed.
+    public int recover(Collection<Journal.Upload> uploads, long now) throws IOException {
+        Set<Path> kept = new HashSet<>();
+        for (Journal.Upload upload : uploads) {
+            nextId.accumulateAndGet(upload.number(), Math::max);
+            Path partFile = partFile(upload.number());
+            Transfer transfer = null;
+            if (Files.exists(partFile)) {
+                try {
+                    transfer = new Transfer(upload.toAccount(), upload.fileName(), upload.totalChunks(), upload.chunkSize(),
+                            upload.fileSize(), partFile, upload.committed());
+                } catch (IOException e) {
+                    log.accept("Failed to take back the upload of " + upload.fileName() + ": " + e.getMessage());
+                }
+            }
+            Transfer replaced = null;
+            long bytes = (long) upload.totalChunks() * upload.chunkSize();
+            synchronized (this) {
+                if (transfer != null && reservedBytes + bytes <= maxBytes) {
+                    transfer.number = upload.number();
+                    transfer.resumeKey = new ResumeKey(upload.from(), upload.toAccount(), upload.fileName(),
+                            upload.fileSize(), upload.chunkSize(), upload.version());
+                    transfer.reserved = bytes;
+                    transfer.journaled = upload.committed();
+                    transfer.lastActivity = now;
+                    reservedBytes += transfer.reserved;
+                    live.add(transfer);
+                    replaced = orphans.put(transfer.resumeKey, transfer);
+                    if (replaced != null) {
+                        live.remove(replaced);
+                        reservedBytes -= replaced.reserved;
+                    }
+                    kept.add(partFile);
+                } else if (transfer != null) {
+                    replaced = transfer;
+                }
+            }
+            if (transfer == null) {
+                journal.ended(upload.number());
+            }
+            if (replaced != null) {
+                discard(replaced);
+            }
+        }
+        if (Files.isDirectory(folder)) {
+            try (DirectoryStream<Path> parts = Files.newDirectoryStream(folder, "upload-*.part")) {
+                for (Path part : parts) {
+                    if (!kept.contains(part)) {
+                        Files.deleteIfExists(part);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            return orphans.size();
+        }
+    }
+
+    public Transfer get(Session session, long id) {
+        return session.transfer(id);
+    }
+
+    // Old clients never begin a transfer; the first chunk for "toAccount/fileName" opens it
+    public Transfer legacy(Session session, String fileKey, String toAccount, String fileName, int totalChunks,
+                           int chunkSize, long now) throws IOException {
+        Transfer transfer = session.legacyTransfer(fileKey);
+        if (transfer == null) {
+            transfer = open(session, (long) totalChunks * chunkSize, toAccount, fileName, totalChunks, chunkSize, -1, now);
+            if (transfer != null) {
+                transfer.legacyKey = fileKey;
+                session.legacyTransferStarted(transfer);
+            }
+        }
+        return transfer;
+    }
+
+    // Chunk count of a transfer the session finished recently, or -1
+    public int completedChunks(Session session, long id) {
+        Integer chunks = completed.get(new Completed(session, id));
+        return chunks != null ? chunks : -1;
+    }
+
+    // Stores one chunk; a chunk that already arrived is counted and otherwise ignored
+    public boolean store(Transfer transfer, int index, ByteBuffer data, long now) throws IOException {
+        transfer.lastActivity = now;
+        if (transfer.has(index)) {
+            duplicates.increment();
+            return transfer.isComplete();
+        }
+        return transfer.store(index, data);
+    }
+
+    // Forgets a transfer that has been assembled
+    public void finished(Transfer transfer) {
+        if (release(transfer) && transfer.legacyKey == null) {
+            completed.put(new Completed(transfer.owner, transfer.clientId), transfer.totalChunks());
+        }
+    }
+
+    // Aborts every transfer the session left unfinished and returns them; resumable ones are kept
+    // for the client to pick up again
+    public List<Transfer> sessionClosed(Session session) {
+        List<Transfer> aborted = new ArrayList<>();
+        for (Transfer transfer : session.transfers()) {
+            if (transfer.resumeKey != null) {
+                orphan(session, transfer);
+            } else if (abort(transfer)) {
+                aborted.add(transfer);
+            }
+        }
+        for (Transfer transfer : session.legacyTransfers()) {
+            if (abort(transfer)) {
+                aborted.add(transfer);
+            }
+        }
+        return aborted;
+    }
+
+    private void orphan(Session session, Transfer transfer) {
+        Transfer replaced;
+        synchronized (this) {
+            if (transfer.owner != session || !live.contains(transfer)) {
+                return;
+            }
+            session.transferBytes -= transfer.reserved;
+            transfer.owner = null;
+            replaced = orphans.put(transfer.resumeKey, transfer);
+            if (replaced != null) {
+                live.remove(replaced);
+                reservedBytes -= replaced.reserved;
+            }
+        }
+        session.transferFinished(transfer.clientId, transfer);
+        if (replaced != null) {
+            discard(replaced);
+        }
+    }
+
+    // Runs before each journal commit: forces the part files that gained chunks and journals how far they got
+    private void commitProgress() {
+        for (Transfer transfer : live) {
+            int chunks = transfer.cumulative();
+            if (transfer.resumeKey == null || chunks <= transfer.journaled) {
+                continue;
+            }
+            try {
+                transfer.force();
+            } catch (IOException e) {
+                // Finished or aborted meanwhile
+                continue;
+            }
+            journal.progress(transfer.number, chunks);
+            transfer.journaled = chunks;
+        }
+    }
+
+    public int size() {
+        return live.size();
+    }
+
+    // Interrupted uploads waiting to be resumed
+    public synchronized int orphans() {
+        return orphans.size();
+    }
+
+    public synchronized long reservedBytes() {
+        return reservedBytes;
+    }
+
+    public long duplicates() {
+        return duplicates.sum();
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public void close() {
+        sweeper.interrupt();
+    }
+
+    private Transfer open(Session session, long bytes, String toAccount, String fileName, int totalChunks, int chunkSize,
+                          long fileSize, long now) throws IOException {
+        synchronized (this) {
+            if (totalChunks < 0 || bytes < 0 || reservedBytes + bytes > maxBytes
+                    || session.transferBytes + bytes > maxSessionBytes) {
+                rejected.increment();
+                return null;
+            }
+            reservedBytes += bytes;
+            session.transferBytes += bytes;
+        }
+        Transfer transfer;
+        long number = nextId.incrementAndGet();
+        try {
+            transfer = new Transfer(toAccount, fileName, totalChunks, chunkSize, fileSize, partFile(number));
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                reservedBytes -= bytes;
+                session.transferBytes -= bytes;
+            }
+            throw e;
+        }
+        transfer.owner = session;
+        transfer.number = number;
+        transfer.reserved = bytes;
+        transfer.lastActivity = now;
+        live.add(transfer);
+        return transfer;
+    }
+
+    // Part files are named by a server-wide counter, never by anything the client chose
+    private Path partFile(long number) {
+        return folder.resolve("upload-" + number + ".part");
+    }
+
+    private boolean release(Transfer transfer) {
+        Session session;
+        synchronized (this) {
+            session = transfer.owner;
+            // An orphan that was adopted meanwhile is no longer this caller's to release
+            if (session == null && !orphans.remove(transfer.resumeKey, transfer)) {
+                return false;
+            }
+            if (!live.remove(transfer)) {
+                return false;
+            }
+            reservedBytes -= transfer.reserved;
+            if (session != null) {
+                session.transferBytes -= transfer.reserved;
+            }
+        }
+        if (session != null && transfer.legacyKey != null) {
+            session.legacyTransferFinished(transfer.legacyKey, transfer);
+        } else if (session != null) {
+            session.transferFinished(transfer.clientId, transfer);
+        }
+        if (transfer.resumeKey != null) {
+            journal.ended(transfer.number);
+        }
+        return true;
+    }
+
+    // Deletes an upload that is already out of the table
+    private void discard(Transfer transfer) {
+        if (transfer.resumeKey != null) {
+            journal.ended(transfer.number);
+        }
+        try {
+            transfer.abort();
+        } catch (IOException e) {
+            log.accept("Failed to delete " + transfer.fileName() + " upload: " + e.getMessage());
+        }
+    }
+
+    private boolean abort(Transfer transfer) {
+        if (!release(transfer)) {
+            return false;
+        }
+        try {
+            transfer.abort();
+        } catch (IOException e) {
+            log.accept("Failed to delete " + transfer.fileName() + " upload: " + e.getMessage());
+        }
+        return true;
+    }
+
+    void sweep(long now) {
+        for (Transfer transfer : live) {
+            if (now - transfer.lastActivity > idleNanos && abort(transfer)) {
+                evictions.increment();
+                listener.evicted(transfer);
+            }
+        }
+    }
+}
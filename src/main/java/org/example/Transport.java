@@ -0,0 +1,39 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+public interface Transport extends Closeable {
+
+    // Blocks the calling thread, handing every received datagram to the handler.
+    // The handler owns the packet and must release it when done.
+    void receive(PacketHandler handler) throws IOException;
+
+    void send(ByteBuffer data, SocketAddress target) throws IOException;
+
+    // The bound address, with the real port when port 0 was asked for
+    InetSocketAddress localAddress() throws IOException;
+
+    default void send(byte[] data, SocketAddress target) throws IOException {
+        send(ByteBuffer.wrap(data), target);
+    }
+
+    // socketBuffer sizes the kernel send and receive buffers, so a burst of large chunks is queued rather than dropped
+    static Transport open(String mode, SocketAddress bindAddress, int poolSize, int bufferSize, int socketBuffer) throws IOException {
+        switch (mode) {
+            case "nio":
+                return new NioTransport(bindAddress, poolSize, bufferSize, socketBuffer);
+            case "socket":
+                return new SocketTransport(bindAddress, poolSize, bufferSize, socketBuffer);
+            default:
+                throw new IllegalArgumentException("Unknown transport mode: " + mode);
+        }
+    }
+
+    interface PacketHandler {
+        void onPacket(Packet packet) throws IOException;
+    }
+}
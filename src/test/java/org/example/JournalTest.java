@@ -0,0 +1,218 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// A journal whose file stops taking writes part of the way through a group commit or a
+// checkpoint must keep every record it was given: once the file works again the next commit
+// writes them, and a restart replays all of them in order.
+class JournalTest {
+
+    private static final String ACCOUNT = "bob";
+    private static final Journal.Upload UPLOAD = new Journal.Upload(7, "alice", ACCOUNT, "big.bin", 4, 1024, 4096, 0, 1);
+
+    @TempDir
+    Path root;
+
+    @Test
+    void recordsSurviveAFailedCommit() throws IOException {
+        try (FailingJournal journal = new FailingJournal(root)) {
+            message(journal, "one");
+            message(journal, "two");
+            journal.failAfter(20);
+            assertThrows(IOException.class, journal::commit);
+            long position = message(journal, "three");
+            journal.failAfter(-1);
+            journal.await(position);
+        }
+
+        assertEquals(List.of("one", "two", "three"), bodies(recover()));
+    }
+
+    @Test
+    void recordsSurviveACheckpointThatCannotWriteTheOldFile() throws IOException {
+        try (FailingJournal journal = new FailingJournal(root)) {
+            journal.began(UPLOAD);
+            message(journal, "one");
+            journal.failAfter(0);
+            assertThrows(IOException.class, journal::checkpoint);
+            message(journal, "two");
+            journal.failAfter(-1);
+        }
+
+        Journal.Recovered recovered = recover();
+        assertEquals(List.of(UPLOAD), List.copyOf(recovered.uploads()));
+        assertEquals(List.of("one", "two"), bodies(recovered));
+    }
+
+    @Test
+    void recordsSurviveACheckpointThatCannotWriteItsSnapshot() throws IOException {
+        try (FailingJournal journal = new FailingJournal(root)) {
+            journal.began(UPLOAD);
+            message(journal, "one");
+            journal.commit();
+            journal.failAfter(10);
+            assertThrows(IOException.class, journal::checkpoint);
+            message(journal, "two");
+            journal.failAfter(-1);
+        }
+
+        Journal.Recovered recovered = recover();
+        assertEquals(List.of(UPLOAD), List.copyOf(recovered.uploads()));
+        assertEquals(List.of("one", "two"), bodies(recovered));
+    }
+
+    private static long message(Journal journal, String body) {
+        return journal.message(ACCOUNT, "alice", body, (short) 0, 0);
+    }
+
+    private Journal.Recovered recover() throws IOException {
+        try (Journal journal = new Journal(root, MailStore.FsyncPolicy.BATCH, 60_000, Long.MAX_VALUE, line -> { })) {
+            return journal.recover();
+        }
+    }
+
+    private static List<String> bodies(Journal.Recovered recovered) {
+        return recovered.messages().getOrDefault(ACCOUNT, List.of()).stream().map(Journal.Message::body).toList();
+    }
+
+    // Commits only when told to: the interval is far longer than any test
+    private static final class FailingJournal extends Journal {
+
+        private volatile long allowance = -1;
+
+        FailingJournal(Path root) throws IOException {
+            super(root, MailStore.FsyncPolicy.BATCH, 60_000, Long.MAX_VALUE, line -> { });
+        }
+
+        // Lets this many more bytes through, then fails every write; -1 lets everything through
+        void failAfter(long bytes) {
+            allowance = bytes;
+        }
+
+        @Override
+        FileChannel open(long fileNumber) throws IOException {
+            return new FailingChannel(super.open(fileNumber));
+        }
+
+        private final class FailingChannel extends FileChannel {
+
+            private final FileChannel file;
+
+            FailingChannel(FileChannel file) {
+                this.file = file;
+            }
+
+            @Override
+            public int write(ByteBuffer src, long position) throws IOException {
+                long left = allowance;
+                if (left < 0) {
+                    return file.write(src, position);
+                }
+                if (left == 0) {
+                    throw new IOException("No space left on device");
+                }
+                ByteBuffer part = src.slice(src.position(), (int) Math.min(left, src.remaining()));
+                int written = file.write(part, position);
+                src.position(src.position() + written);
+                allowance = left - written;
+                return written;
+            }
+
+            @Override
+            public void force(boolean metaData) throws IOException {
+                file.force(metaData);
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return file.read(dst);
+            }
+
+            @Override
+            public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+                return file.read(dsts, offset, length);
+            }
+
+            @Override
+            public int write(ByteBuffer src) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long position() throws IOException {
+                return file.position();
+            }
+
+            @Override
+            public FileChannel position(long newPosition) throws IOException {
+                file.position(newPosition);
+                return this;
+            }
+
+            @Override
+            public long size() throws IOException {
+                return file.size();
+            }
+
+            @Override
+            public FileChannel truncate(long size) throws IOException {
+                file.truncate(size);
+                return this;
+            }
+
+            @Override
+            public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+                return file.transferTo(position, count, target);
+            }
+
+            @Override
+            public long transferFrom(ReadableByteChannel src, long position, long count) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(ByteBuffer dst, long position) throws IOException {
+                return file.read(dst, position);
+            }
+
+            @Override
+            public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+                return file.map(mode, position, size);
+            }
+
+            @Override
+            public FileLock lock(long position, long size, boolean shared) throws IOException {
+                return file.lock(position, size, shared);
+            }
+
+            @Override
+            public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+                return file.tryLock(position, size, shared);
+            }
+
+            @Override
+            protected void implCloseChannel() throws IOException {
+                file.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A UDP relay between one client and the server that loses and reorders datagrams on purpose.
+// Which datagrams go is decided by a seeded Random, so a failing run can be repeated. A datagram
+// picked for reordering is held back until the next one in the same direction has gone out; one
+// still held when the link goes quiet for a few milliseconds is let go on its own.
+final class LossyProxy implements Closeable {
+
+    private static final int QUIET_MILLIS = 5;
+    private static final int TO_SERVER = 0;
+    private static final int TO_CLIENT = 1;
+
+    private final DatagramSocket socket;
+    private final InetSocketAddress server;
+    private final Random random;
+    private final Thread relay;
+    private final DatagramPacket[] held = new DatagramPacket[2];
+    private final Map<Opcode, AtomicInteger> frames = new ConcurrentHashMap<>();
+    private final Map<Long, AtomicInteger> chunkCopies = new ConcurrentHashMap<>();
+    private final Set<Long> dropOnce = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final AtomicInteger reordered = new AtomicInteger();
+    private volatile SocketAddress client;
+    private volatile double lossRate;
+    private volatile double reorderRate;
+    private volatile boolean cut;
+
+    LossyProxy(InetSocketAddress server, long seed) throws IOException {
+        this.server = server;
+        this.random = new Random(seed);
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        socket.setReceiveBufferSize(4 * 1024 * 1024);
+        socket.setSendBufferSize(4 * 1024 * 1024);
+        socket.setSoTimeout(QUIET_MILLIS);
+        relay = Thread.ofPlatform().name("lossy-proxy").daemon(true).start(this::relay);
+    }
+
+    int port() {
+        return socket.getLocalPort();
+    }
+
+    // Share of datagrams dropped, in both directions
+    void lose(double rate) {
+        lossRate = rate;
+    }
+
+    // Share of datagrams held back behind the next one
+    void reorder(double rate) {
+        reorderRate = rate;
+    }
+
+    // While cut, nothing gets through
+    void cut(boolean cut) {
+        this.cut = cut;
+    }
+
+    // Drops the first copy of this upload chunk, whatever the loss rate
+    void dropFirstCopyOf(long chunk) {
+        dropOnce.add(chunk);
+    }
+
+    // Frames of this opcode seen so far, dropped ones included
+    int frames(Opcode opcode) {
+        AtomicInteger count = frames.get(opcode);
+        return count == null ? 0 : count.get();
+    }
+
+    // Copies of this upload chunk the client has sent so far
+    int chunkCopies(long chunk) {
+        AtomicInteger count = chunkCopies.get(chunk);
+        return count == null ? 0 : count.get();
+    }
+
+    int dropped() {
+        return dropped.get();
+    }
+
+    int reordered() {
+        return reordered.get();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        try {
+            relay.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void relay() {
+        byte[] buffer = new byte[PathMtu.MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        Frame frame = new Frame();
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    release(TO_SERVER);
+                    release(TO_CLIENT);
+                    continue;
+                }
+                int direction = packet.getSocketAddress().equals(server) ? TO_CLIENT : TO_SERVER;
+                if (direction == TO_SERVER) {
+                    client = packet.getSocketAddress();
+                } else if (client == null) {
+                    continue;
+                }
+                byte[] data = Arrays.copyOf(buffer, packet.getLength());
+                boolean forced = count(frame, data, direction);
+                if (cut || forced || random.nextDouble() < lossRate) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                DatagramPacket out = new DatagramPacket(data, data.length, direction == TO_SERVER ? server : client);
+                if (held[direction] == null && random.nextDouble() < reorderRate) {
+                    held[direction] = out;
+                    reordered.incrementAndGet();
+                    continue;
+                }
+                socket.send(out);
+                release(direction);
+            } catch (IOException e) {
+                // Closed, or an ICMP error from an earlier send; the loop condition tells which
+            }
+        }
+    }
+
+    private void release(int direction) throws IOException {
+        if (held[direction] != null) {
+            socket.send(held[direction]);
+            held[direction] = null;
+        }
+    }
+
+    // Counts the frame and tells whether it is a chunk marked to be dropped
+    private boolean count(Frame frame, byte[] data, int direction) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (!Frame.isFramed(buffer)) {
+            return false;
+        }
+        try {
+            frame.decode(buffer);
+        } catch (IOException e) {
+            return false;
+        }
+        if (frame.opcode() == null) {
+            return false;
+        }
+        frames.computeIfAbsent(frame.opcode(), opcode -> new AtomicInteger()).incrementAndGet();
+        if (direction != TO_SERVER || frame.opcode() != Opcode.ATTACH_CHUNK) {
+            return false;
+        }
+        chunkCopies.computeIfAbsent(frame.seq(), chunk -> new AtomicInteger()).incrementAndGet();
+        return dropOnce.remove(frame.seq());
+    }
+}
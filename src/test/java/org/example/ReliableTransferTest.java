@@ -0,0 +1,180 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Uploads and downloads between a ClientEngine and a real server on loopback, through a
+// LossyProxy that drops and reorders datagrams. Every file is fetched back over a clean link
+// and compared byte for byte with what was sent.
+class ReliableTransferTest {
+
+    private static final long SEED = 20261017;
+    private static final int CHUNKS = 48;
+    private static final String ACCOUNT = "bob";
+
+    @TempDir
+    Path dir;
+
+    private final List<String> log = new CopyOnWriteArrayList<>();
+    private Server server;
+    private LossyProxy proxy;
+    private int chunkSize;
+
+    @BeforeEach
+    void start() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("mail.bind", "127.0.0.1");
+        properties.setProperty("mail.port", "0");
+        properties.setProperty("mail.root", dir.resolve("root").toString());
+        properties.setProperty("mail.fsync", "none");
+        properties.setProperty("mail.headless", "true");
+        properties.setProperty("mail.jmx", "false");
+        // A client that goes away without a word leaves its upload for the next one within a second
+        properties.setProperty("mail.sessionTimeoutMs", "1000");
+        server = new Server(new ServerConfig(properties));
+        server.addLogSink(log::addAll);
+        proxy = new LossyProxy(server.start(), SEED);
+        try (ClientEngine engine = connect()) {
+            ClientEngine.await(engine.request(Opcode.CREATE_ACCOUNT, ACCOUNT));
+        }
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        proxy.close();
+        server.close();
+    }
+
+    @Test
+    void lostChunkIsResentOnNack() throws IOException {
+        try (ClientEngine engine = connect()) {
+            Path file = randomFile("one-lost.bin");
+            proxy.dropFirstCopyOf(5);
+            ClientEngine.await(engine.upload(ACCOUNT, ACCOUNT, "", file, null));
+
+            assertTrue(proxy.chunkCopies(5) >= 2, "chunk 5 was never resent");
+            assertTrue(proxy.frames(Opcode.NACK) > 0, "the gap after chunk 5 was not NACKed");
+            assertStored(engine, file);
+        }
+    }
+
+    @Test
+    void uploadCompletesUnderLoss() throws IOException {
+        try (ClientEngine engine = connect()) {
+            Path file = randomFile("lossy-upload.bin");
+            proxy.lose(0.05);
+            ClientEngine.await(engine.upload(ACCOUNT, ACCOUNT, "", file, null));
+            proxy.lose(0);
+
+            assertTrue(proxy.dropped() > 0, "nothing was dropped");
+            assertStored(engine, file);
+        }
+    }
+
+    @Test
+    void uploadCompletesWhenChunksArriveOutOfOrder() throws IOException {
+        try (ClientEngine engine = connect()) {
+            Path file = randomFile("reordered-upload.bin");
+            proxy.reorder(0.2);
+            ClientEngine.await(engine.upload(ACCOUNT, ACCOUNT, "", file, null));
+            proxy.reorder(0);
+
+            assertTrue(proxy.reordered() > 0, "nothing was reordered");
+            assertTrue(proxy.frames(Opcode.NACK) > 0, "out-of-order chunks were not NACKed");
+            assertStored(engine, file);
+        }
+    }
+
+    @Test
+    void downloadCompletesUnderLossAndReordering() throws IOException {
+        try (ClientEngine engine = connect()) {
+            Path file = randomFile("lossy-download.bin");
+            ClientEngine.await(engine.upload(ACCOUNT, ACCOUNT, "", file, null));
+            proxy.lose(0.05);
+            proxy.reorder(0.1);
+            Path copy = dir.resolve("copy-" + file.getFileName());
+            ClientEngine.await(engine.download(ACCOUNT, file.getFileName().toString(), copy, null));
+
+            assertTrue(proxy.dropped() > 0 && proxy.reordered() > 0, "the link was clean");
+            assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(copy));
+        }
+    }
+
+    @Test
+    void uploadResumesUnderLossAfterTheClientGoesAway() throws IOException, InterruptedException {
+        Path file = randomFile("resumed.bin");
+        try (ClientEngine first = connect()) {
+            CountDownLatch halfway = new CountDownLatch(1);
+            proxy.lose(0.03);
+            CompletableFuture<Void> upload = first.upload(ACCOUNT, ACCOUNT, "", file, (done, total) -> {
+                if (done >= total / 2) {
+                    proxy.cut(true);
+                    halfway.countDown();
+                }
+            });
+            assertTrue(halfway.await(30, TimeUnit.SECONDS), "the upload never got halfway");
+            first.close();
+            assertThrows(IOException.class, () -> ClientEngine.await(upload));
+        }
+        proxy.cut(false);
+        awaitResumable();
+
+        int chunksBefore = proxy.frames(Opcode.ATTACH_CHUNK);
+        try (ClientEngine second = connect()) {
+            ClientEngine.await(second.upload(ACCOUNT, ACCOUNT, "", file, null));
+            proxy.lose(0);
+
+            assertTrue(log.stream().anyMatch(line -> line.contains("Resuming resumed.bin for " + ACCOUNT)),
+                    "the second upload started over");
+            assertTrue(proxy.frames(Opcode.ATTACH_CHUNK) - chunksBefore < CHUNKS, "chunks the server had were sent again");
+            assertStored(second, file);
+        }
+    }
+
+    private ClientEngine connect() throws IOException {
+        ClientEngine engine = new ClientEngine(InetAddress.getLoopbackAddress(), proxy.port());
+        chunkSize = ClientEngine.await(engine.connect());
+        return engine;
+    }
+
+    // Just under CHUNKS chunks at the size the engines upload with
+    private Path randomFile(String name) throws IOException {
+        byte[] data = new byte[CHUNKS * chunkSize - 100];
+        new Random(SEED).nextBytes(data);
+        return Files.write(dir.resolve(name), data);
+    }
+
+    private void awaitResumable() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+        while (server.metrics().getGauges().getOrDefault("transfersResumable", 0L) == 0) {
+            assertTrue(System.nanoTime() < deadline, "the interrupted upload was never kept for resuming");
+            Thread.sleep(50);
+        }
+    }
+
+    private void assertStored(ClientEngine engine, Path file) throws IOException {
+        proxy.lose(0);
+        proxy.reorder(0);
+        Path copy = dir.resolve("stored-" + file.getFileName());
+        ClientEngine.await(engine.download(ACCOUNT, file.getFileName().toString(), copy, null));
+        assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(copy));
+    }
+}